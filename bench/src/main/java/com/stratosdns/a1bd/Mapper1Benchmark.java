@@ -0,0 +1,77 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Job1_TermCount.Mapper1 over one Zipf document per operation, with and without in-mapper aggregation, on 1, 4
+ * and 16 map threads (more than one thread always aggregates in-mapper). The records counter is input lines/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Mapper1Benchmark {
+
+    @Param("50000")
+    int vocabulary;
+
+    @Param("1.0")
+    double exponent;
+
+    @Param("100000")
+    int tokens;
+
+    @Param({"false", "true"})
+    boolean inMapper;
+
+    @Param({"1", "4", "16"})
+    int threads;
+
+    private LongWritable[] offsets;
+    private Text[] lines;
+    private Job1_TermCount.Mapper1 mapper;
+    private Job1_TermCount.Mapper1.Context context;
+    private final MockContexts.Sink<Text, IntWritable> sink = new MockContexts.Sink<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        List<byte[]> doc = new ZipfCorpus(vocabulary, exponent, 42).document(tokens);
+        offsets = new LongWritable[doc.size()];
+        lines = new Text[doc.size()];
+        long pos = 0;
+        for (int i = 0; i < lines.length; i++) {
+            offsets[i] = new LongWritable(pos);
+            lines[i] = new Text(doc.get(i));
+            pos += doc.get(i).length + 1;
+        }
+        Configuration conf = new Configuration(false);
+        conf.setBoolean(Job1_TermCount.INMAPPER_KEY, inMapper);
+        conf.setInt(LinePipeline.THREADS_KEY, threads);
+        mapper = new Job1_TermCount.Mapper1();
+        context = MockContexts.mapContext(conf, "doc-00001.txt", sink);
+        mapper.setup(context); // threaded mode starts its pool here, once per trial
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mapper.cleanup(context);
+    }
+
+    @Benchmark
+    public long map(MockContexts.InputRecords in) throws Exception {
+        sink.records = 0;
+        for (int i = 0; i < lines.length; i++) mapper.map(offsets[i], lines[i], context);
+        mapper.flushInput(context); // in-mapper mode flushes here, threaded mode also waits for the pool
+        in.records += lines.length;
+        return sink.records;
+    }
+}
@@ -0,0 +1,136 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Job4_TFIDF.Mapper4 (the IDF lookup join) over the Step2 records of {@code docs} Zipf documents per
+ * operation, on 1, 4 and 16 map threads (binary records are always joined on the task thread). A Step3 output
+ * directory (part-r-00000 + idfdict-r-00000) is written to a temp dir in setup. The records counter is input
+ * records/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Mapper4Benchmark {
+
+    @Param("50000")
+    int vocabulary;
+
+    @Param("1.0")
+    double exponent;
+
+    @Param("20")
+    int docs;
+
+    @Param("20000")
+    int tokens;
+
+    @Param({"dict", "map"})
+    String lookup;
+
+    @Param({"false", "true"})
+    boolean binary;
+
+    @Param({"1", "4", "16"})
+    int threads;
+
+    private final LongWritable offset = new LongWritable();
+    private Object[] keys;
+    private Writable[] values;
+    private File idfDir;
+    private Job4_TFIDF.Mapper4 mapper;
+    private Job4_TFIDF.Mapper4.Context context;
+    private final MockContexts.Sink<Text, DoubleWritable> sink = new MockContexts.Sink<>();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        ZipfCorpus corpus = new ZipfCorpus(vocabulary, exponent, 42);
+        List<Object> k = new ArrayList<>();
+        List<Writable> v = new ArrayList<>();
+        TreeMap<String, Double> sumTf = new TreeMap<>();
+        for (int d = 0; d < docs; d++) {
+            String docId = String.format("doc-%05d.txt", d);
+            Map<String, Integer> counts = ZipfCorpus.termCounts(corpus.document(tokens));
+            int total = 0;
+            for (int c : counts.values()) total += c;
+            for (Map.Entry<String, Integer> e : counts.entrySet()) {
+                double tf = (double) e.getValue() / total;
+                sumTf.merge(e.getKey(), tf, Double::sum);
+                if (binary) {
+                    TermDocWritable td = new TermDocWritable();
+                    td.set(e.getKey(), docId);
+                    k.add(td);
+                    v.add(new DoubleWritable(tf));
+                } else {
+                    k.add(offset);
+                    v.add(new Text(e.getKey() + "\t" + docId + "\t" + tf));
+                }
+            }
+        }
+        keys = k.toArray();
+        values = v.toArray(new Writable[0]);
+
+        idfDir = Files.createTempDirectory("bench-idf").toFile();
+        File dict = new File(idfDir, IdfDictionary.FILE_PREFIX + "-r-00000");
+        try (Writer part = new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(new File(idfDir, "part-r-00000")), StandardCharsets.UTF_8));
+             IdfDictionary.Writer dw = new IdfDictionary.Writer(new FileOutputStream(dict))) {
+            Text t = new Text();
+            for (Map.Entry<String, Double> e : sumTf.entrySet()) {
+                double idf = Math.log((double) docs / e.getValue());
+                part.write(e.getKey() + "\t" + idf + "\n");
+                t.set(e.getKey());
+                dw.append(t, idf);
+            }
+        }
+
+        Configuration conf = new Configuration(false);
+        conf.set("fs.defaultFS", "file:///");
+        conf.set("tfidf.idfDir", idfDir.getAbsolutePath());
+        conf.set(Job4_TFIDF.LOOKUP_KEY, lookup);
+        conf.setInt(LinePipeline.THREADS_KEY, threads);
+        // what Job4_TFIDF.configure registers through job.addCacheFile
+        conf.set("mapreduce.job.cache.files", dict.toURI() + "#" + dict.getName());
+        mapper = new Job4_TFIDF.Mapper4();
+        context = MockContexts.mapContext(conf, "part-r-00000", sink);
+        mapper.setup(context); // threaded mode starts its pool here, once per trial
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mapper.cleanup(context);
+        File[] files = idfDir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        idfDir.delete();
+    }
+
+    @Benchmark
+    public long map(MockContexts.InputRecords in) throws Exception {
+        sink.records = 0;
+        for (int i = 0; i < keys.length; i++) mapper.map(keys[i], values[i], context);
+        mapper.flushInput(context); // threaded mode writes the last batches here
+        in.records += keys.length;
+        return sink.records;
+    }
+}
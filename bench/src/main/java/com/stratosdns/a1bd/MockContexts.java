@@ -0,0 +1,144 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * Lightweight task contexts for driving mappers and reducers outside a job.
+ *
+ * Contexts are Hadoop's own Wrapped{Mapper,Reducer} contexts over the real *ContextImpl classes, so write()
+ * and getCounter() take the same code path as in a task; only the record writer (a counting sink) and the
+ * status reporter are stubs. The benchmarks call map()/reduce() directly with their own inputs.
+ */
+public final class MockContexts {
+
+    private MockContexts() {
+    }
+
+    /** Counts records and keeps the last pair so the JIT cannot drop the writes. */
+    public static final class Sink<K, V> extends RecordWriter<K, V> {
+        public long records;
+        public K lastKey;
+        public V lastValue;
+
+        @Override
+        public void write(K key, V value) {
+            records++;
+            lastKey = key;
+            lastValue = value;
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+
+    /** Input records handed to map() per iteration; JMH reports them as records/s next to ops/s. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class InputRecords {
+        public long records;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            records = 0;
+        }
+    }
+
+    private static final class Reporter extends StatusReporter {
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+
+    // ReduceContextImpl reads its first record in the constructor; an empty iterator is enough
+    private static final RawKeyValueIterator EMPTY = new RawKeyValueIterator() {
+        @Override
+        public DataInputBuffer getKey() {
+            return null;
+        }
+
+        @Override
+        public DataInputBuffer getValue() {
+            return null;
+        }
+
+        @Override
+        public boolean next() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public org.apache.hadoop.util.Progress getProgress() {
+            return null;
+        }
+    };
+
+    /** Map context for a split of the given file name (mappers read docId from the split path). */
+    public static <KI, VI, KO, VO> Mapper<KI, VI, KO, VO>.Context mapContext(
+            Configuration conf, String fileName, Sink<KO, VO> sink) {
+        InputSplit split = new FileSplit(new Path("/bench/" + fileName), 0, 0, new String[0]);
+        MapContextImpl<KI, VI, KO, VO> impl =
+                new MapContextImpl<>(conf, new TaskAttemptID(), null, sink, null, new Reporter(), split);
+        return new WrappedMapper<KI, VI, KO, VO>().getMapContext(impl);
+    }
+
+    public static <KI, VI, KO, VO> Reducer<KI, VI, KO, VO>.Context reduceContext(
+            Configuration conf, Class<KI> keyClass, Class<VI> valueClass, Sink<KO, VO> sink) throws IOException {
+        try {
+            ReduceContextImpl<KI, VI, KO, VO> impl = new ReduceContextImpl<>(conf, new TaskAttemptID(), EMPTY,
+                    null, null, sink, null, new Reporter(), null, keyClass, valueClass);
+            return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(impl);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Job2_TF.Reducer2 over {@code docs} Zipf documents per operation. Each reduce call sees the document's
+ * TOTAL record followed by its "term\tf" records, with the key's tag advancing as the framework would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Reducer2Benchmark {
+
+    @Param("50000")
+    int vocabulary;
+
+    @Param("1.0")
+    double exponent;
+
+    @Param("20")
+    int docs;
+
+    @Param("20000")
+    int tokens;
+
+    @Param({"false", "true"})
+    boolean binary;
+
+    /** Replays one document's values; moves the key from TOTAL to TERM after the first value. */
+    private static final class DocValues implements Iterable<Text> {
+        final DocTagKey key = new DocTagKey();
+        final Text docId;
+        final Text[] values;
+
+        DocValues(String docId, Text[] values) {
+            this.docId = new Text(docId);
+            this.values = values;
+        }
+
+        @Override
+        public Iterator<Text> iterator() {
+            return new Iterator<Text>() {
+                int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < values.length;
+                }
+
+                @Override
+                public Text next() {
+                    key.set(docId, i == 0 ? DocTagKey.TOTAL : DocTagKey.TERM);
+                    return values[i++];
+                }
+            };
+        }
+    }
+
+    private DocValues[] input;
+    private Job2_TF.Reducer2 reducer;
+    private Job2_TF.Reducer2.Context context;
+    private final MockContexts.Sink<Writable, DoubleWritable> sink = new MockContexts.Sink<>();
+
+    @Setup
+    public void setup() throws Exception {
+        ZipfCorpus corpus = new ZipfCorpus(vocabulary, exponent, 42);
+        input = new DocValues[docs];
+        for (int d = 0; d < docs; d++) {
+            Map<String, Integer> counts = ZipfCorpus.termCounts(corpus.document(tokens));
+            List<Text> values = new ArrayList<>();
+            int total = 0;
+            for (int c : counts.values()) total += c;
+            values.add(new Text(Integer.toString(total)));
+            for (Map.Entry<String, Integer> e : counts.entrySet()) values.add(new Text(e.getKey() + "\t" + e.getValue()));
+            input[d] = new DocValues(String.format("doc-%05d.txt", d), values.toArray(new Text[0]));
+        }
+        Configuration conf = new Configuration(false);
+        conf.setBoolean(IntermediateFormat.BINARY_KEY, binary);
+        reducer = new Job2_TF.Reducer2();
+        context = MockContexts.reduceContext(conf, DocTagKey.class, Text.class, sink);
+        reducer.setup(context);
+    }
+
+    @Benchmark
+    public long reduce() throws Exception {
+        sink.records = 0;
+        for (DocValues doc : input) {
+            doc.key.set(doc.docId, DocTagKey.TOTAL);
+            reducer.reduce(doc.key, doc, context);
+        }
+        return sink.records;
+    }
+}
@@ -0,0 +1,74 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Job5_TopNByFrequency.Reducer5 (Top-N heap selection) over {@code docs} Zipf documents per operation. Each
+ * reduce call gets the document's "term\tf" values in shuffled order, as with the combiner disabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Reducer5Benchmark {
+
+    @Param("50000")
+    int vocabulary;
+
+    @Param("1.0")
+    double exponent;
+
+    @Param("20")
+    int docs;
+
+    @Param("20000")
+    int tokens;
+
+    @Param({"5", "100"})
+    int topN;
+
+    private Text[] docIds;
+    private List<List<Text>> values;
+    private Job5_TopNByFrequency.Reducer5 reducer;
+    private Job5_TopNByFrequency.Reducer5.Context context;
+    private final MockContexts.Sink<Text, Text> sink = new MockContexts.Sink<>();
+
+    @Setup
+    public void setup() throws Exception {
+        ZipfCorpus corpus = new ZipfCorpus(vocabulary, exponent, 42);
+        docIds = new Text[docs];
+        values = new ArrayList<>();
+        for (int d = 0; d < docs; d++) {
+            docIds[d] = new Text(String.format("doc-%05d.txt", d));
+            List<Text> doc = new ArrayList<>();
+            for (Map.Entry<String, Integer> e : ZipfCorpus.termCounts(corpus.document(tokens)).entrySet()) {
+                doc.add(new Text(e.getKey() + "\t" + e.getValue()));
+            }
+            Collections.shuffle(doc, new Random(d));
+            values.add(doc);
+        }
+        Configuration conf = new Configuration(false);
+        conf.setInt("topn.N", topN);
+        reducer = new Job5_TopNByFrequency.Reducer5();
+        context = MockContexts.reduceContext(conf, Text.class, Text.class, sink);
+        reducer.setup(context);
+    }
+
+    @Benchmark
+    public long reduce() throws Exception {
+        sink.records = 0;
+        for (int d = 0; d < docIds.length; d++) reducer.reduce(docIds[d], values.get(d), context);
+        return sink.records;
+    }
+}
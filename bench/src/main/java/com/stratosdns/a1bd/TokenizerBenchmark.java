@@ -0,0 +1,63 @@
+package com.stratosdns.a1bd;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizer.tokenize over one Zipf document per operation: the byte-level sink API used by the mappers,
+ * and the String -> List<String> convenience method for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenizerBenchmark {
+
+    @Param("50000")
+    int vocabulary;
+
+    @Param("1.0")
+    double exponent;
+
+    @Param("100000")
+    int tokens;
+
+    @Param({"true", "false"})
+    boolean stopwords;
+
+    private byte[][] lines;
+    private String[] strings;
+    private Tokenizer tokenizer;
+    private long acc;
+    private final Tokenizer.TokenSink sink = (b, s, l) -> acc += l + b[s];
+
+    @Setup
+    public void setup() {
+        List<byte[]> doc = new ZipfCorpus(vocabulary, exponent, 42).document(tokens);
+        lines = doc.toArray(new byte[0][]);
+        strings = new String[lines.length];
+        for (int i = 0; i < lines.length; i++) strings[i] = new String(lines[i], StandardCharsets.UTF_8);
+        tokenizer = stopwords ? new Tokenizer() : new Tokenizer(Collections.<String>emptyList());
+    }
+
+    @Benchmark
+    public long bytes() throws Exception {
+        acc = 0;
+        for (byte[] line : lines) tokenizer.tokenize(line, 0, line.length, sink);
+        return acc;
+    }
+
+    // Static helper always filters the default stopwords, so only the stopwords=true rows compare directly
+    @Benchmark
+    public long stringList() {
+        long n = 0;
+        for (String line : strings) n += Tokenizer.tokenize(line).size();
+        return n;
+    }
+}
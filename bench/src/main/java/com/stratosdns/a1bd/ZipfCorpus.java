@@ -0,0 +1,95 @@
+package com.stratosdns.a1bd;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Synthetic documents whose word frequencies follow a Zipf law (rank r drawn with probability ∝ 1 / r^s).
+ *
+ * The most frequent ranks are the default stopwords, the rest are random lowercase words of 2-12 letters.
+ * Lines mix capitalized words and punctuation so the tokenizer does real work. Fixed seed: the same
+ * parameters always give the same corpus.
+ */
+public final class ZipfCorpus {
+
+    private final String[] vocabulary;
+    private final double[] cdf;
+    private final Random random;
+
+    public ZipfCorpus(int vocabularySize, double exponent, long seed) {
+        random = new Random(seed);
+        vocabulary = new String[vocabularySize];
+        Set<String> used = new HashSet<>();
+        int r = 0;
+        for (String w : Tokenizer.DEFAULT_STOPWORDS) {
+            if (r == vocabularySize) break;
+            vocabulary[r++] = w;
+            used.add(w);
+        }
+        char[] buf = new char[12];
+        while (r < vocabularySize) {
+            int len = 2 + random.nextInt(11);
+            for (int i = 0; i < len; i++) buf[i] = (char) ('a' + random.nextInt(26));
+            String w = new String(buf, 0, len);
+            if (used.add(w)) vocabulary[r++] = w;
+        }
+        cdf = new double[vocabularySize];
+        double sum = 0;
+        for (int i = 0; i < vocabularySize; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < vocabularySize; i++) cdf[i] /= sum;
+    }
+
+    public String nextWord() {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        if (i < 0) i = -i - 1;
+        return vocabulary[Math.min(i, vocabulary.length - 1)];
+    }
+
+    /** One document of about {@code tokens} words as UTF-8 lines of 8-15 words. */
+    public List<byte[]> document(int tokens) {
+        List<byte[]> lines = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        int left = tokens;
+        while (left > 0) {
+            int n = Math.min(left, 8 + random.nextInt(8));
+            sb.setLength(0);
+            for (int i = 0; i < n; i++) {
+                String w = nextWord();
+                if (i == 0 || random.nextInt(10) == 0) {
+                    sb.append(Character.toUpperCase(w.charAt(0))).append(w, 1, w.length());
+                } else {
+                    sb.append(w);
+                }
+                sb.append(i == n - 1 ? "." : random.nextInt(8) == 0 ? ", " : " ");
+            }
+            lines.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+            left -= n;
+        }
+        return lines;
+    }
+
+    /** f(t,d) of a generated document as the pipeline's tokenizer sees it, in term order. */
+    public static TreeMap<String, Integer> termCounts(List<byte[]> lines) {
+        TreeMap<String, Integer> counts = new TreeMap<>();
+        Tokenizer tokenizer = new Tokenizer();
+        try {
+            for (byte[] line : lines) {
+                tokenizer.tokenize(line, 0, line.length,
+                        (b, s, l) -> counts.merge(new String(b, s, l, StandardCharsets.UTF_8), 1, Integer::sum));
+            }
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return counts;
+    }
+}
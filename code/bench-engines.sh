@@ -0,0 +1,42 @@
+#!/bin/bash
+# Times --engine=local against the MapReduce path on corpora of growing size.
+#
+# usage: ./bench-engines.sh <seed_input_dir> [copies...]
+#   RUN   command that starts the Driver (default: hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar)
+#   WORK  scratch directory for corpora and outputs (default: /tmp/a1bd-bench)
+#
+# Each corpus holds <copies> copies of every seed file (one document per copy), so N and the
+# vocabulary grow together. Outputs of both engines are compared before the timings are printed.
+set -e
+seed=$1; shift
+[ -d "$seed" ] || { echo "usage: $0 <seed_input_dir> [copies...]" >&2; exit 1; }
+copies=${*:-1 10 50 200}
+RUN=${RUN:-"hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar"}
+WORK=${WORK:-/tmp/a1bd-bench}
+
+printf "%8s %8s %10s %10s %10s\n" docs MB mapreduce local speedup
+for k in $copies; do
+  in=$WORK/in_$k
+  rm -rf "$in" && mkdir -p "$in"
+  for i in $(seq -w 1 "$k"); do
+    for f in "$seed"/*; do cp "$f" "$in/$(basename "$f" .txt)_$i.txt"; done
+  done
+  docs=$(ls "$in" | wc -l)
+  mb=$(du -sm "$in" | cut -f1)
+
+  s=$(date +%s.%N); $RUN "$in" "$WORK/mr_$k" 5 >/dev/null 2>&1; e=$(date +%s.%N)
+  mr=$(awk "BEGIN{print $e - $s}")
+  s=$(date +%s.%N); $RUN "$in" "$WORK/local_$k" 5 --engine=local >/dev/null 2>&1; e=$(date +%s.%N)
+  lo=$(awk "BEGIN{print $e - $s}")
+
+  for d in step2_tf step3_idf step4_tfidf top5_freq; do
+    # last column compared with relative tolerance 1e-9 (Σ tf is summed in a different order)
+    if ! paste <(cat "$WORK/mr_$k/$d"/part-* | sort) <(cat "$WORK/local_$k/$d"/part-* | sort) | awk -F'\t' '
+        { h = NF / 2; for (i = 1; i < h; i++) if ($i != $(i + h)) exit 1
+          x = $h; y = $NF; m = (x < 0 ? -x : x); if (m < 1) m = 1
+          if ((x - y) > 1e-9 * m || (y - x) > 1e-9 * m) exit 1 }'; then
+      echo "WARN: $d differs between engines for $k copies" >&2
+    fi
+  done
+  printf "%8d %8d %9.1fs %9.1fs %9.1fx\n" "$docs" "$mb" "$mr" "$lo" "$(awk "BEGIN{print $mr / $lo}")"
+done
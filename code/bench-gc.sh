@@ -0,0 +1,49 @@
+#!/bin/bash
+# Per-stage wall-clock, GC and CPU time of the MapReduce pipeline, optionally against a baseline build.
+#
+# usage: ./bench-gc.sh <seed_input_dir> [copies] [driver options...]
+#   RUN       command that starts the Driver (default: hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar)
+#   BASELINE  command that starts the Driver of the build to compare against (optional)
+#   WORK      scratch directory for the corpus and outputs (default: /tmp/a1bd-bench)
+#
+# The corpus holds <copies> copies (default 20) of every seed file. Times are read from each run's
+# _metrics/summary.json (the TaskCounter group, so older builds without gcTimeMs work as a baseline).
+set -e
+seed=$1; shift
+[ -d "$seed" ] || { echo "usage: $0 <seed_input_dir> [copies] [driver options...]" >&2; exit 1; }
+k=${1:-20}; shift || true
+RUN=${RUN:-"hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar"}
+WORK=${WORK:-/tmp/a1bd-bench}
+
+in=$WORK/gc_in_$k
+if [ ! -d "$in" ]; then
+  mkdir -p "$in"
+  for i in $(seq -w 1 "$k"); do
+    for f in "$seed"/*; do cp "$f" "$in/$(basename "$f" .txt)_$i.txt"; done
+  done
+fi
+echo "corpus: $(ls "$in" | wc -l) docs, $(du -sm "$in" | cut -f1) MB"
+
+report() {
+  python3 - "$1/_metrics/summary.json" <<'EOF'
+import json, sys
+stages = json.load(open(sys.argv[1]))["stages"]
+tot = [0, 0, 0]
+for s in stages:
+    tc = s["counters"].get("org.apache.hadoop.mapreduce.TaskCounter", {})
+    row = [s["wallClockMs"], tc.get("GC_TIME_MILLIS", 0), tc.get("CPU_MILLISECONDS", 0)]
+    tot = [a + b for a, b in zip(tot, row)]
+    print("  %-45s %8d %8d %8d" % (s["name"][:45], *row))
+print("  %-45s %8d %8d %8d" % ("total", *tot))
+EOF
+}
+
+for side in BASELINE RUN; do
+  cmd=${!side}
+  [ -n "$cmd" ] || continue
+  out=$WORK/gc_${side,,}_$k
+  $cmd "$in" "$out" 5 "$@" >/dev/null 2>&1
+  echo "$side:"
+  printf "  %-45s %8s %8s %8s\n" stage wall_ms gc_ms cpu_ms
+  report "$out"
+done
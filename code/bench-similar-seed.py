@@ -0,0 +1,39 @@
+#!/usr/bin/env python3
+# Synthetic seed files for bench-similar.sh whose unrelated documents have low cosine.
+#
+# usage: ./bench-similar-seed.py <out_dir> <files>
+#
+# Each file has 5000 lines of 10 words. Every 200 lines (one bench-similar.sh document at CHUNKS=25) draw 70 % of
+# their words from a fresh Zipf-weighted topic of 3000 random words and 30 % from 500 common words, so only the
+# copies of one document are near-duplicates. Output is the same for the same arguments.
+import bisect, itertools, os, random, sys
+
+if len(sys.argv) != 3:
+    sys.exit("usage: %s <out_dir> <files>" % sys.argv[0])
+out, files = sys.argv[1], int(sys.argv[2])
+rnd = random.Random(7)
+letters = "abcdefghijklmnopqrstuvwxyz"
+
+
+def word():
+    return "".join(rnd.choice(letters) for _ in range(rnd.randint(4, 9)))
+
+
+def zipf(n):
+    return list(itertools.accumulate(1.0 / (i + 1) for i in range(n)))
+
+
+def pick(words, cum):
+    return words[bisect.bisect(cum, rnd.random() * cum[-1])]
+
+
+common = [word() for _ in range(500)]
+common_cum, topic_cum = zipf(len(common)), zipf(3000)
+os.makedirs(out, exist_ok=True)
+for b in range(files):
+    with open(os.path.join(out, "book%03d.txt" % b), "w") as f:
+        for line in range(5000):
+            if line % 200 == 0:
+                topic = [word() for _ in range(3000)]
+            ws = [pick(topic, topic_cum) if rnd.random() < 0.7 else pick(common, common_cum) for _ in range(10)]
+            f.write(" ".join(ws) + "\n")
@@ -0,0 +1,66 @@
+#!/bin/bash
+# Recall and time of --similar-docs (LSH) against --similar-exact (all pairs) on corpora of growing size.
+#
+# usage: ./bench-similar.sh <seed_input_dir> [copies...] [-- driver options...]
+#   RUN     command that starts the Driver (default: hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar)
+#   WORK    scratch directory for corpora and outputs (default: /tmp/a1bd-bench)
+#   CHUNKS  documents cut from each seed file (default 25)
+#
+# Every seed file is cut into CHUNKS documents of consecutive lines, and each document is written <copies>
+# times with a random 0-60 % of its lines dropped (fixed seed), so the corpus holds near-duplicates over the
+# whole similarity range. Steps 1-4 run once per corpus; the exact run reuses them through --resume. Times are
+# the two similarity stages from _metrics/summary.json. Recall is the share of exact pairs the LSH run found.
+set -e
+seed=$1; shift
+[ -d "$seed" ] || { echo "usage: $0 <seed_input_dir> [copies...] [-- driver options...]" >&2; exit 1; }
+copies=""
+while [ $# -gt 0 ] && [ "$1" != "--" ]; do copies="$copies $1"; shift; done
+[ "$1" = "--" ] && shift
+copies=${copies:-4 16 64}
+RUN=${RUN:-"hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar"}
+WORK=${WORK:-/tmp/a1bd-bench}
+CHUNKS=${CHUNKS:-25}
+
+stage_ms() {
+  python3 - "$1/_metrics/summary.json" <<'EOF'
+import json, sys
+stages = json.load(open(sys.argv[1]))["stages"]
+print(sum(s["wallClockMs"] for s in stages if s["name"].startswith("similar_")))
+EOF
+}
+
+printf "%6s %10s %8s %8s %12s %8s %10s %10s\n" docs all_pairs exact lsh lsh_compared recall exact_s lsh_s
+for k in $copies; do
+  in=$WORK/sim_in_$k
+  if [ ! -d "$in" ]; then
+    mkdir -p "$in"
+    python3 - "$seed" "$in" "$k" "$CHUNKS" <<'EOF'
+import os, random, sys
+seed, out, k, chunks = sys.argv[1], sys.argv[2], int(sys.argv[3]), int(sys.argv[4])
+rnd = random.Random(42)
+for name in sorted(os.listdir(seed)):
+    lines = open(os.path.join(seed, name), encoding="utf-8", errors="replace").read().splitlines()
+    size = max(1, len(lines) // chunks)
+    for c in range(chunks):
+        part = lines[c * size:(c + 1) * size]
+        for i in range(k):
+            drop = rnd.uniform(0.0, 0.6)
+            with open(os.path.join(out, "%s_c%02d_%03d.txt" % (os.path.splitext(name)[0], c, i)), "w", encoding="utf-8") as f:
+                f.write("\n".join(l for l in part if rnd.random() >= drop) + "\n")
+EOF
+  fi
+  docs=$(ls "$in" | wc -l)
+  out=$WORK/sim_out_$k
+  $RUN "$in" "$out" 5 --combine-input --similar-docs "$@" >/dev/null 2>&1
+  lsh_ms=$(stage_ms "$out")
+  compared=$(python3 -c "import json; s=json.load(open('$out/_metrics/summary.json'))['stages']; print(sum(x['counters'].get('com.stratosdns.a1bd.PipelineCounters', {}).get('SIMILAR_CANDIDATES', 0) for x in s))")
+  rm -rf "$WORK/sim_lsh_$k" && cp -r "$out/similar_docs" "$WORK/sim_lsh_$k"
+  $RUN "$in" "$out" 5 --combine-input --similar-docs --similar-exact --resume "$@" >/dev/null 2>&1
+  exact_ms=$(stage_ms "$out")
+  exact=$(cat "$out"/similar_docs/part-* | wc -l)
+  lsh=$(cat "$WORK/sim_lsh_$k"/part-* | wc -l)
+  # every LSH pair is an exact pair (its cosine is computed exactly), so recall = lsh / exact
+  found=$(comm -12 <(cut -f1,2 "$out"/similar_docs/part-* | sort) <(cut -f1,2 "$WORK/sim_lsh_$k"/part-* | sort) | wc -l)
+  printf "%6d %10d %8d %8d %12d %7.1f%% %9.1fs %9.1fs\n" "$docs" $((docs * (docs - 1) / 2)) "$exact" "$lsh" "$compared" \
+    "$(awk "BEGIN{print $exact ? 100 * $found / $exact : 100}")" "$(awk "BEGIN{print $exact_ms / 1000}")" "$(awk "BEGIN{print $lsh_ms / 1000}")"
+done
@@ -0,0 +1,56 @@
+#!/bin/bash
+# Throughput and end-to-end latency of --engine=stream while documents keep arriving.
+#
+# usage: ./bench-stream.sh <source_dir> [files_per_sec...] [-- driver options...]
+#   RUN     command that starts the Driver (default: hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar)
+#   WORK    scratch directory for inputs and outputs (default: /tmp/a1bd-bench)
+#   FILES   documents fed per rate (default 1000)
+#
+# For every rate the engine starts on an empty input directory, FILES documents from <source_dir> are dropped in
+# at that rate (written under a hidden name, then renamed, as a producer should), and the engine is stopped with
+# SIGTERM once it has ingested all of them. Rate 0 copies everything before the engine starts (backlog). Numbers
+# come from _metrics/stream.json; the last snapshot's Top-N rows are then checked against an --engine=local batch run.
+set -e
+src=$1; shift
+[ -d "$src" ] || { echo "usage: $0 <source_dir> [files_per_sec...] [-- driver options...]" >&2; exit 1; }
+rates=""
+while [ $# -gt 0 ] && [ "$1" != "--" ]; do rates="$rates $1"; shift; done
+[ "$1" = "--" ] && shift
+rates=${rates:-0 20 100}
+RUN=${RUN:-"hadoop jar target/a1-bd-tfidf-1.0-SNAPSHOT.jar"}
+WORK=${WORK:-/tmp/a1bd-bench}
+FILES=${FILES:-1000}
+
+metric() {
+  python3 -c "import json; m=json.load(open('$1/_metrics/stream.json')); print($2)" 2>/dev/null || echo 0
+}
+
+printf "%6s %6s %8s %8s %8s %10s %8s %8s %8s %6s\n" rate docs batches docs/s MB/s tokens/s p50_s p95_s max_s top_ok
+for rate in $rates; do
+  in=$WORK/stream_in_$rate
+  out=$WORK/stream_out_$rate
+  rm -rf "$in" "$out" && mkdir -p "$in"
+  files=$(ls "$src" | head -n "$FILES")
+  if [ "$rate" = 0 ]; then for f in $files; do cp "$src/$f" "$in/$f"; done; fi
+  $RUN "$in" "$out" 5 --engine=stream --stream-interval-ms=1000 "$@" >"$WORK/stream_$rate.log" 2>&1 &
+  pid=$!
+  if [ "$rate" != 0 ]; then
+    delay=$(awk "BEGIN{print 1 / $rate}")
+    for f in $files; do
+      cp "$src/$f" "$in/.$f" && mv "$in/.$f" "$in/$f"
+      sleep "$delay"
+    done
+  fi
+  n=$(echo "$files" | wc -l)
+  while [ "$(metric "$out" "m['filesIngested']")" -lt "$n" ]; do sleep 1; done
+  kill -TERM $pid && wait $pid || true
+  rm -rf "$WORK/stream_local_$rate"
+  $RUN "$in" "$WORK/stream_local_$rate" 5 --engine=local >/dev/null 2>&1
+  snap=$out/snapshots/$(cat "$out/snapshots/LATEST")
+  # the snapshot is split into --stream-partitions part files, the local run writes one
+  ok=$(cmp -s <(cat "$snap"/top5_freq/part-r-* | sort) <(sort "$WORK/stream_local_$rate/top5_freq/part-r-00000") && echo yes || echo NO)
+  printf "%6s %6d %8d %8d %8.1f %10d %8.1f %8.1f %8.1f %6s\n" "$rate" "$n" "$(metric "$out" "m['batches']")" \
+    "$(metric "$out" "m['docsPerSec']")" "$(metric "$out" "m['bytesPerSec'] / 1048576.0")" "$(metric "$out" "m['tokensPerSec']")" \
+    "$(metric "$out" "m['latencyMs']['p50'] / 1000.0")" "$(metric "$out" "m['latencyMs']['p95'] / 1000.0")" \
+    "$(metric "$out" "m['latencyMs']['max'] / 1000.0")" "$ok"
+done
@@ -0,0 +1,142 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.hash.MurmurHash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mergeable summary of Σ_d tf(t,d) per term for the approximate IDF mode.
+ *
+ * A Count-Min sketch (depth = ceil(ln(1/delta)) rows of width = ceil(e/epsilon) double counters) absorbs the
+ * long tail; terms whose partial sum reaches the heavy-hitter threshold are kept exactly in a side map of at
+ * most maxHeavy terms, the largest sums winning. Sums pushed out of the map move into the table, so
+ * estimates never undercount, and with probability 1 - delta overcount by at most epsilon * (total mass in
+ * the sketch), where the total mass equals the number of documents because each document's tf values sum to 1.
+ */
+public class DfSketch implements Writable {
+    private static final MurmurHash HASH = (MurmurHash) MurmurHash.getInstance();
+
+    private int width;
+    private int depth;
+    private double[] table;
+    private long numDocs;
+    private int maxHeavy = Integer.MAX_VALUE;
+    private final HashMap<String, double[]> heavy = new HashMap<>();
+
+    public DfSketch() {
+    }
+
+    public DfSketch(double epsilon, double delta, int maxHeavy) {
+        width = (int) Math.ceil(Math.E / epsilon);
+        depth = (int) Math.ceil(Math.log(1.0 / delta));
+        table = new double[width * depth];
+        this.maxHeavy = Math.max(0, maxHeavy);
+    }
+
+    public void add(byte[] term, int len, double v) {
+        for (int r = 0; r < depth; r++) {
+            table[r * width + bucket(term, len, r)] += v;
+        }
+    }
+
+    public void addHeavy(String term, double v) {
+        heavy.computeIfAbsent(term, t -> new double[1])[0] += v;
+        // trimming only at twice the bound keeps the sort amortized over maxHeavy additions
+        if (heavy.size() > 2L * maxHeavy) trimHeavy();
+    }
+
+    /** Keeps the maxHeavy largest exact sums and folds the others into the Count-Min table. */
+    public void trimHeavy() {
+        if (heavy.size() <= maxHeavy) return;
+        List<Map.Entry<String, double[]>> entries = new ArrayList<>(heavy.entrySet());
+        entries.sort((a, b) -> Double.compare(b.getValue()[0], a.getValue()[0]));
+        for (Map.Entry<String, double[]> e : entries.subList(maxHeavy, entries.size())) {
+            byte[] b = e.getKey().getBytes(StandardCharsets.UTF_8);
+            add(b, b.length, e.getValue()[0]);
+            heavy.remove(e.getKey());
+        }
+    }
+
+    /** Count-Min estimate of the sketched (non-heavy) part of a term's Σ tf. */
+    public double estimate(byte[] term, int len) {
+        double min = Double.MAX_VALUE;
+        for (int r = 0; r < depth; r++) {
+            min = Math.min(min, table[r * width + bucket(term, len, r)]);
+        }
+        return min;
+    }
+
+    public double estimate(Text term) {
+        return estimate(term.getBytes(), term.getLength());
+    }
+
+    public double estimate(String term) {
+        byte[] b = term.getBytes(StandardCharsets.UTF_8);
+        return estimate(b, b.length);
+    }
+
+    private int bucket(byte[] term, int len, int row) {
+        return (HASH.hash(term, len, 0x9747b28c + row) & Integer.MAX_VALUE) % width;
+    }
+
+    public void merge(DfSketch other) {
+        if (table == null) {
+            width = other.width;
+            depth = other.depth;
+            table = new double[width * depth];
+        }
+        if (other.width != width || other.depth != depth) throw new IllegalArgumentException("Sketch dimensions differ");
+        for (int i = 0; i < table.length; i++) table[i] += other.table[i];
+        for (Map.Entry<String, double[]> e : other.heavy.entrySet()) addHeavy(e.getKey(), e.getValue()[0]);
+    }
+
+    public Map<String, double[]> getHeavy() {
+        return heavy;
+    }
+
+    public long getNumDocs() {
+        return numDocs;
+    }
+
+    public void setNumDocs(long numDocs) {
+        this.numDocs = numDocs;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, width);
+        WritableUtils.writeVInt(out, depth);
+        WritableUtils.writeVLong(out, numDocs);
+        for (double d : table) out.writeDouble(d);
+        WritableUtils.writeVInt(out, heavy.size());
+        for (Map.Entry<String, double[]> e : heavy.entrySet()) {
+            Text.writeString(out, e.getKey());
+            out.writeDouble(e.getValue()[0]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        width = WritableUtils.readVInt(in);
+        depth = WritableUtils.readVInt(in);
+        numDocs = WritableUtils.readVLong(in);
+        table = new double[width * depth];
+        for (int i = 0; i < table.length; i++) table[i] = in.readDouble();
+        heavy.clear();
+        int n = WritableUtils.readVInt(in);
+        for (int i = 0; i < n; i++) {
+            String t = Text.readString(in);
+            heavy.put(t, new double[]{in.readDouble()});
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A document as Job7_SimilarDocs buckets and compares it: its LSH band values and its unit-length TF-IDF vector,
+ * as term hashes (64-bit, ascending) with weights.
+ */
+public class DocSignature implements Writable {
+    private final Text docId = new Text();
+    private int[] bands = new int[0];
+    private long[] terms = new long[0];
+    private double[] weights = new double[0];
+    private int size;
+
+    public Text getDocId() {
+        return docId;
+    }
+
+    public int getBand(int i) {
+        return bands[i];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** Takes the arrays as they are; terms must be ascending and the weights of unit length. */
+    public void set(Text docId, int[] bands, long[] terms, double[] weights, int size) {
+        this.docId.set(docId);
+        this.bands = bands;
+        this.terms = terms;
+        this.weights = weights;
+        this.size = size;
+    }
+
+    public DocSignature copy() {
+        DocSignature c = new DocSignature();
+        c.set(docId, bands.clone(), Arrays.copyOf(terms, size), Arrays.copyOf(weights, size), size);
+        return c;
+    }
+
+    /** True when both documents fall into the same bucket of a band before the given one. */
+    public boolean sharesBandBefore(DocSignature o, int band) {
+        for (int i = 0; i < band; i++) if (bands[i] == o.bands[i]) return true;
+        return false;
+    }
+
+    /** Exact cosine similarity: a merge over the sorted term hashes of two unit vectors. */
+    public double cosine(DocSignature o) {
+        double dot = 0.0;
+        int i = 0, j = 0;
+        while (i < size && j < o.size) {
+            int c = Long.compare(terms[i], o.terms[j]);
+            if (c < 0) i++;
+            else if (c > 0) j++;
+            else dot += weights[i++] * o.weights[j++];
+        }
+        return dot;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        docId.write(out);
+        WritableUtils.writeVInt(out, bands.length);
+        for (int b : bands) out.writeInt(b);
+        WritableUtils.writeVInt(out, size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(terms[i]);
+            out.writeDouble(weights[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        docId.readFields(in);
+        int nb = WritableUtils.readVInt(in);
+        if (bands.length != nb) bands = new int[nb];
+        for (int i = 0; i < nb; i++) bands[i] = in.readInt();
+        size = WritableUtils.readVInt(in);
+        if (terms.length < size) {
+            terms = new long[size];
+            weights = new double[size];
+        }
+        for (int i = 0; i < size; i++) {
+            terms[i] = in.readLong();
+            weights[i] = in.readDouble();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// (docId, salt, tag) key for Step2's secondary sort: the TOTAL record of a document sorts before its TERM records.
+// salt is 0 except for hot documents, whose TERM records are spread over several reduce groups (see SkewSampler)
+public class DocTagKey implements WritableComparable<DocTagKey> {
+    public static final byte TOTAL = 0;
+    public static final byte TERM = 1;
+
+    private final Text docId = new Text();
+    private int salt;
+    private byte tag;
+
+    static {
+        WritableComparator.define(DocTagKey.class, new Comparator());
+    }
+
+    /** Sorts serialized keys (docId bytes, salt, tag) without deserializing them. */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(DocTagKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareSerialized(b1, s1, b2, s2, true);
+        }
+    }
+
+    // Serialized form: vint length + docId bytes, vint salt, tag byte. Without the tag this is Step2's grouping
+    static int compareSerialized(byte[] b1, int s1, byte[] b2, int s2, boolean withTag) {
+        try {
+            int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+            int len1 = WritableComparator.readVInt(b1, s1);
+            int len2 = WritableComparator.readVInt(b2, s2);
+            int c = WritableComparator.compareBytes(b1, s1 + n1, len1, b2, s2 + n2, len2);
+            if (c != 0) return c;
+            int p1 = s1 + n1 + len1;
+            int p2 = s2 + n2 + len2;
+            c = Integer.compare(WritableComparator.readVInt(b1, p1), WritableComparator.readVInt(b2, p2));
+            if (c != 0 || !withTag) return c;
+            return Byte.compare(b1[p1 + WritableUtils.decodeVIntSize(b1[p1])], b2[p2 + WritableUtils.decodeVIntSize(b2[p2])]);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public void set(Text docId, byte tag) {
+        set(docId, 0, tag);
+    }
+
+    public void set(String docId, byte tag) {
+        this.docId.set(docId);
+        this.salt = 0;
+        this.tag = tag;
+    }
+
+    public void set(Text docId, int salt, byte tag) {
+        this.docId.set(docId);
+        this.salt = salt;
+        this.tag = tag;
+    }
+
+    public Text getDocId() {
+        return docId;
+    }
+
+    public int getSalt() {
+        return salt;
+    }
+
+    public byte getTag() {
+        return tag;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        docId.write(out);
+        WritableUtils.writeVInt(out, salt);
+        out.writeByte(tag);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        docId.readFields(in);
+        salt = WritableUtils.readVInt(in);
+        tag = in.readByte();
+    }
+
+    @Override
+    public int compareTo(DocTagKey o) {
+        int c = docId.compareTo(o.docId);
+        if (c != 0) return c;
+        c = Integer.compare(salt, o.salt);
+        return c != 0 ? c : Byte.compare(tag, o.tag);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof DocTagKey)) return false;
+        DocTagKey k = (DocTagKey) o;
+        return tag == k.tag && salt == k.salt && docId.equals(k.docId);
+    }
+
+    @Override
+    public int hashCode() {
+        return (docId.hashCode() * 31 + salt) * 31 + tag;
+    }
+
+    @Override
+    public String toString() {
+        return docId + "\t" + salt + "\t" + tag;
+    }
+}
@@ -0,0 +1,104 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+import java.io.IOException;
+
+/**
+ * Input for the tokenizing mappers (Step1 and the fused job) that packs many small documents into each split.
+ *
+ * Keys are the docId of every line (the file name, the same id the TextInputFormat path takes from its
+ * FileSplit), values the line. A file larger than the max split size is cut into several chunks, each read by
+ * LineRecordReader with its usual boundary rules and keyed by the same file name, so partial counts of one
+ * document from different map tasks still meet in the reducer.
+ */
+public class DocumentInputFormat extends CombineFileInputFormat<Text, Text> {
+
+    public static final String COMBINE_KEY = "input.combine";
+    public static final String MAX_SPLIT_MB_KEY = "input.combine.maxSplitMB";
+
+    /** Adds the corpus input to a tokenizing job: combined splits when input.combine is set, else TextInputFormat. */
+    public static void setInput(Job job, Path input) throws IOException {
+        FileInputFormat.addInputPath(job, input);
+        Configuration conf = job.getConfiguration();
+        if (!conf.getBoolean(COMBINE_KEY, false)) {
+            job.setInputFormatClass(TextInputFormat.class);
+            return;
+        }
+        job.setInputFormatClass(DocumentInputFormat.class);
+        // Without a maximum CombineFileInputFormat makes one split per node
+        FileInputFormat.setMaxInputSplitSize(job, conf.getLong(MAX_SPLIT_MB_KEY, 128) * 1024L * 1024L);
+    }
+
+    @Override
+    public RecordReader<Text, Text> createRecordReader(InputSplit split, TaskAttemptContext context) throws IOException {
+        return new CombineFileRecordReader<>((CombineFileSplit) split, context, ChunkReader.class);
+    }
+
+    // Same rule as TextInputFormat: whole-file codecs cannot be cut
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+        CompressionCodec codec = new CompressionCodecFactory(context.getConfiguration()).getCodec(file);
+        return codec == null || codec instanceof SplittableCompressionCodec;
+    }
+
+    /** Reads one file chunk of a combined split; CombineFileRecordReader creates one per chunk. */
+    public static class ChunkReader extends RecordReader<Text, Text> {
+        private final LineRecordReader lines = new LineRecordReader();
+        private final FileSplit chunk;
+        private final Text docId;
+
+        public ChunkReader(CombineFileSplit split, TaskAttemptContext context, Integer index) {
+            Path p = split.getPath(index);
+            chunk = new FileSplit(p, split.getOffset(index), split.getLength(index), null);
+            docId = new Text(p.getName());
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+            lines.initialize(chunk, context);
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException {
+            return lines.nextKeyValue();
+        }
+
+        @Override
+        public Text getCurrentKey() {
+            return docId;
+        }
+
+        @Override
+        public Text getCurrentValue() {
+            return lines.getCurrentValue();
+        }
+
+        @Override
+        public float getProgress() throws IOException {
+            return lines.getProgress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            lines.close();
+        }
+    }
+}
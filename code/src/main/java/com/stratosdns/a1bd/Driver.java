@@ -4,6 +4,11 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Job;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class Driver {
 
     private static boolean isInteger(String s) {
@@ -23,11 +28,73 @@ public class Driver {
         }
     }
 
-    public static void main(String[] args) throws Exception {
+    // Splits "--name" / "--name=value" options out of args; the rest stay positional
+    private static String[] parseOptions(String[] args, Map<String, String> opts) {
+        List<String> positional = new ArrayList<>();
+        for (String a : args) {
+            if (a.startsWith("--")) {
+                int eq = a.indexOf('=');
+                if (eq < 0) opts.put(a.substring(2), "true");
+                else opts.put(a.substring(2, eq), a.substring(eq + 1));
+            } else {
+                positional.add(a);
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
+
+    public static void main(String[] rawArgs) throws Exception {
+        Map<String, String> opts = new LinkedHashMap<>();
+        String[] args = parseOptions(rawArgs, opts);
         if (args.length < 2) {
             System.err.println("Usage:");
-            System.err.println("  hadoop jar a1-bd-tfidf.jar com.stratosdns.a1bd.Driver <hdfs_input_dir> <hdfs_output_base> [topN]");
+            System.err.println("  hadoop jar a1-bd-tfidf.jar com.stratosdns.a1bd.Driver <hdfs_input_dir> <hdfs_output_base> [topN] [options]");
             System.err.println("  hadoop jar a1-bd-tfidf.jar com.stratosdns.a1bd.Driver <hdfs_input_dir> [topN] <hdfs_output_base>  (accepted too)");
+            System.err.println("Options:");
+            System.err.println("  --inmapper-combine        aggregate term counts inside Step1 mappers");
+            System.err.println("  --inmapper-max-mb=<MB>    memory threshold before an in-mapper flush (default 32)");
+            System.err.println("  --map-threads=<n>         tokenize (Step1) and parse/join (Step4) on n threads per map task (default 1)");
+            System.err.println("  --combine-input           pack many small documents into each Step1/fused map task");
+            System.err.println("  --max-split-mb=<MB>       split size for --combine-input (default 128)");
+            System.err.println("  --stopwords=<w1,w2,..>    stopword list instead of the default one; --stopwords=none keeps every token");
+            System.err.println("  --token-cache=<dir>       keep per-document term counts across runs; Step1 tokenizes only new/changed files");
+            System.err.println("  --token-cache-max-mb=<MB> cache size above which least recently used entries are evicted (default 1024)");
+            System.err.println("  --token-cache-split-mb=<MB> cache files larger than this in ranges of this size (default: their block size)");
+            System.err.println("  --binary-intermediate     store step1..step3 as block-compressed SequenceFiles");
+            System.err.println("  --idf-lookup=dict|map     Step4 idf table: compact dictionary (default) or HashMap");
+            System.err.println("  --approximate-idf         Step3 via mergeable Count-Min sketches (exact for heavy hitters)");
+            System.err.println("  --idf-epsilon=<e> --idf-delta=<d> --idf-heavy-threshold=<sum tf>  sketch error bounds");
+            System.err.println("  --idf-heavy-terms=<n>     exact heavy hitters kept per sketch, largest sums first (default 10000)");
+            System.err.println("  --fused                   compute step4_tfidf with 2 jobs instead of Steps 1-4");
+            System.err.println("  --verify-fused            with --fused, also run Steps 1-4 and compare step4_tfidf");
+            System.err.println("  --fused-sumtf-max-mb=<MB> memory for a fused reducer's partial idf sums before they are spilled (default 32)");
+            System.err.println("  --engine=mapreduce|local|stream  local: run every step in this JVM on a thread pool (small corpora);");
+            System.err.println("                            stream: watch the input and publish idf/Top-N snapshots under <outBase>/snapshots");
+            System.err.println("  --local-threads=<n>       worker threads for --engine=local and stream (default: available cores)");
+            System.err.println("  --stream-interval-ms=<ms> how often --engine=stream lists the input (default 2000)");
+            System.err.println("  --stream-batch-docs=<n> --stream-batch-mb=<MB>  most files / bytes per micro-batch (default 1000 / 64)");
+            System.err.println("  --stream-checkpoint=<dir> state of --engine=stream, resumed on restart (default <outBase>/_stream)");
+            System.err.println("  --stream-keep-snapshots=<n>  newest snapshots kept, older ones deleted (default 3)");
+            System.err.println("  --stream-run-seconds=<s>  stop after s seconds (default 0: run until stopped)");
+            System.err.println("  --stream-partitions=<n>   hash partitions of the stream snapshots and term statistics (default 1)");
+            System.err.println("  --stream-max-terms=<n>    terms kept in memory, other partitions spilled to the checkpoint (default 0: all)");
+            System.err.println("  --stream-compact-every=<n>  micro-batch deltas between full checkpoints (default 100)");
+            System.err.println("  --compress                compress map outputs (snappy) and every step's files (bzip2 text,");
+            System.err.println("                            snappy blocks with --binary-intermediate); reports the ratios");
+            System.err.println("  --map-compress=<codec> --output-compress=<codec>  pick codecs (snappy|lz4|bzip2|zstd|gzip|none)");
+            System.err.println("  --encode-ids              run Steps 2-5 on dense int term/document ids (decoded in the final outputs)");
+            System.err.println("  --build-index             also build the inverted index <outBase>/index from step4_tfidf");
+            System.err.println("  --similar-docs            also write near-duplicate document pairs to <outBase>/similar_docs (LSH over step4_tfidf)");
+            System.err.println("  --similar-threshold=<c>   minimum cosine similarity of a reported pair (default 0.8)");
+            System.err.println("  --similar-bands=<b> --similar-rows=<r>  LSH bands and bits per band (default 16 x 8)");
+            System.err.println("  --similar-method=simhash|minhash  LSH over TF-IDF weights (default) or over term sets");
+            System.err.println("  --similar-max-bucket=<n>  documents compared per LSH bucket, 0 = no limit (default 1000)");
+            System.err.println("  --similar-exact           compare all document pairs instead (quadratic; for checking recall)");
+            System.err.println("  --reducers=<n>            reduce tasks per job (default: cluster setting)");
+            System.err.println("  --salt-hot-docs=false     with several reducers, do not split oversized documents in Step2");
+            System.err.println("  --skew-hot-factor=<x>     a document is hot above x times its fair share of tokens (default 1.0)");
+            System.err.println("  --total-order             sample Steps 1 and 3 and range-partition them with TotalOrderPartitioner");
+            System.err.println("  --resume                  keep stage outputs finished by an earlier run with the same inputs and options");
             System.exit(1);
         }
 
@@ -63,53 +130,378 @@ public class Driver {
         System.err.println("  inputDir = " + inputDir);
         System.err.println("  outBase  = " + outBase);
         System.err.println("  topN     = " + topN);
+        System.err.println("  options  = " + opts);
 
         Configuration conf = new Configuration();
+        if (opts.containsKey("inmapper-combine")) {
+            conf.setBoolean(Job1_TermCount.INMAPPER_KEY, Boolean.parseBoolean(opts.get("inmapper-combine")));
+        }
+        if (opts.containsKey("inmapper-max-mb")) {
+            conf.setLong(Job1_TermCount.INMAPPER_MAX_MB_KEY, Long.parseLong(opts.get("inmapper-max-mb")));
+        }
+        if (opts.containsKey("fused-sumtf-max-mb")) {
+            conf.setLong(FusedTFIDF.SUMTF_MAX_MB_KEY, Long.parseLong(opts.get("fused-sumtf-max-mb")));
+        }
+
+        if (opts.containsKey("map-threads")) conf.setInt(LinePipeline.THREADS_KEY, Integer.parseInt(opts.get("map-threads")));
+
+        if (opts.containsKey("combine-input")) {
+            conf.setBoolean(DocumentInputFormat.COMBINE_KEY, Boolean.parseBoolean(opts.get("combine-input")));
+        }
+        if (opts.containsKey("max-split-mb")) conf.setLong(DocumentInputFormat.MAX_SPLIT_MB_KEY, Long.parseLong(opts.get("max-split-mb")));
+
+        if (opts.containsKey("stopwords")) {
+            if ("none".equals(opts.get("stopwords"))) conf.setBoolean(Tokenizer.STOPWORDS_ENABLED_KEY, false);
+            else conf.set(Tokenizer.STOPWORDS_KEY, opts.get("stopwords"));
+        }
+        if (opts.containsKey("token-cache")) conf.set(TokenCache.DIR_KEY, opts.get("token-cache"));
+        if (opts.containsKey("token-cache-max-mb")) conf.setLong(TokenCache.MAX_MB_KEY, Long.parseLong(opts.get("token-cache-max-mb")));
+        if (opts.containsKey("token-cache-split-mb")) conf.setLong(TokenCache.SPLIT_MB_KEY, Long.parseLong(opts.get("token-cache-split-mb")));
+
+        if (opts.containsKey("binary-intermediate")) {
+            conf.setBoolean(IntermediateFormat.BINARY_KEY, Boolean.parseBoolean(opts.get("binary-intermediate")));
+        }
+        if (opts.containsKey("idf-lookup")) {
+            conf.set(Job4_TFIDF.LOOKUP_KEY, opts.get("idf-lookup"));
+        }
+        if (opts.containsKey("idf-epsilon")) conf.setDouble(Job3_ApproxIDF.EPSILON_KEY, Double.parseDouble(opts.get("idf-epsilon")));
+        if (opts.containsKey("idf-delta")) conf.setDouble(Job3_ApproxIDF.DELTA_KEY, Double.parseDouble(opts.get("idf-delta")));
+        if (opts.containsKey("idf-heavy-threshold")) {
+            conf.setDouble(Job3_ApproxIDF.HEAVY_THRESHOLD_KEY, Double.parseDouble(opts.get("idf-heavy-threshold")));
+        }
+        if (opts.containsKey("idf-heavy-terms")) conf.setInt(Job3_ApproxIDF.HEAVY_TERMS_KEY, Integer.parseInt(opts.get("idf-heavy-terms")));
+        if (opts.containsKey("local-threads")) conf.setInt(LocalEngine.THREADS_KEY, Integer.parseInt(opts.get("local-threads")));
+        if (opts.containsKey("stream-interval-ms")) conf.setLong(StreamingEngine.INTERVAL_MS_KEY, Long.parseLong(opts.get("stream-interval-ms")));
+        if (opts.containsKey("stream-batch-docs")) conf.setInt(StreamingEngine.BATCH_DOCS_KEY, Integer.parseInt(opts.get("stream-batch-docs")));
+        if (opts.containsKey("stream-batch-mb")) conf.setLong(StreamingEngine.BATCH_MB_KEY, Long.parseLong(opts.get("stream-batch-mb")));
+        if (opts.containsKey("stream-checkpoint")) conf.set(StreamingEngine.CHECKPOINT_KEY, opts.get("stream-checkpoint"));
+        if (opts.containsKey("stream-keep-snapshots")) conf.setInt(StreamingEngine.KEEP_SNAPSHOTS_KEY, Integer.parseInt(opts.get("stream-keep-snapshots")));
+        if (opts.containsKey("stream-run-seconds")) conf.setLong(StreamingEngine.RUN_SECONDS_KEY, Long.parseLong(opts.get("stream-run-seconds")));
+        if (opts.containsKey("stream-partitions")) conf.setInt(StreamingEngine.PARTITIONS_KEY, Integer.parseInt(opts.get("stream-partitions")));
+        if (opts.containsKey("stream-max-terms")) conf.setLong(StreamingEngine.MAX_TERMS_KEY, Long.parseLong(opts.get("stream-max-terms")));
+        if (opts.containsKey("stream-compact-every")) conf.setInt(StreamingEngine.COMPACT_EVERY_KEY, Integer.parseInt(opts.get("stream-compact-every")));
+        if (opts.containsKey("reducers")) conf.setInt("mapreduce.job.reduces", Integer.parseInt(opts.get("reducers")));
+        if (opts.containsKey("salt-hot-docs")) {
+            conf.setBoolean(SkewSampler.SALT_HOT_DOCS_KEY, Boolean.parseBoolean(opts.get("salt-hot-docs")));
+        }
+        if (opts.containsKey("skew-hot-factor")) conf.setDouble(SkewSampler.HOT_FACTOR_KEY, Double.parseDouble(opts.get("skew-hot-factor")));
+        if (opts.containsKey("total-order")) conf.setBoolean(SkewSampler.TOTAL_ORDER_KEY, Boolean.parseBoolean(opts.get("total-order")));
+        boolean compress = Boolean.parseBoolean(opts.getOrDefault("compress", "false"));
+        String outputCodec = opts.getOrDefault("output-compress",
+                compress ? (IntermediateFormat.isBinary(conf) ? "snappy" : "bzip2") : null);
+        IntermediateFormat.setCompression(conf, opts.getOrDefault("map-compress", compress ? "snappy" : null), outputCodec);
+        boolean reportStorage = IntermediateFormat.isBinary(conf) || (outputCodec != null && !"none".equals(outputCodec));
+        boolean approximateIdf = Boolean.parseBoolean(opts.getOrDefault("approximate-idf", "false"));
+        boolean fused = Boolean.parseBoolean(opts.getOrDefault("fused", "false"));
+        boolean verifyFused = Boolean.parseBoolean(opts.getOrDefault("verify-fused", "false"));
+        boolean buildIndex = Boolean.parseBoolean(opts.getOrDefault("build-index", "false"));
+        boolean similarDocs = Boolean.parseBoolean(opts.getOrDefault("similar-docs", "false"));
+        if (opts.containsKey("similar-threshold")) conf.setDouble(Job7_SimilarDocs.THRESHOLD_KEY, Double.parseDouble(opts.get("similar-threshold")));
+        if (opts.containsKey("similar-bands")) conf.setInt(Job7_SimilarDocs.BANDS_KEY, Integer.parseInt(opts.get("similar-bands")));
+        if (opts.containsKey("similar-rows")) conf.setInt(Job7_SimilarDocs.ROWS_KEY, Integer.parseInt(opts.get("similar-rows")));
+        if (opts.containsKey("similar-method")) conf.set(Job7_SimilarDocs.METHOD_KEY, opts.get("similar-method"));
+        if (opts.containsKey("similar-max-bucket")) conf.setInt(Job7_SimilarDocs.MAX_BUCKET_KEY, Integer.parseInt(opts.get("similar-max-bucket")));
+        if (Boolean.parseBoolean(opts.getOrDefault("similar-exact", "false"))) {
+            // one band of zero bits: a single bucket holding every document
+            conf.setInt(Job7_SimilarDocs.BANDS_KEY, 1);
+            conf.setInt(Job7_SimilarDocs.ROWS_KEY, 0);
+            conf.setInt(Job7_SimilarDocs.MAX_BUCKET_KEY, 0);
+        }
+        boolean encodeIds = Boolean.parseBoolean(opts.getOrDefault("encode-ids", "false"));
+        if (encodeIds && (fused || approximateIdf)) {
+            System.err.println("--encode-ids cannot be combined with --fused or --approximate-idf");
+            System.exit(1);
+        }
+        if (conf.get(TokenCache.DIR_KEY) != null && (fused || !"mapreduce".equals(opts.getOrDefault("engine", "mapreduce")))) {
+            System.err.println("--token-cache replaces Step1 and cannot be combined with --fused or --engine=local|stream");
+            System.exit(1);
+        }
 
         Path inPath   = new Path(inputDir);
+        Path outTopN  = new Path(outBase + "/top" + topN + "_freq");
+        Path outStep4 = new Path(outBase + "/step4_tfidf");
+
+        String engine = opts.getOrDefault("engine", "mapreduce");
+        PipelineMetrics metrics = new PipelineMetrics(conf, outBase, engine);
+        if ("local".equals(engine)) {
+            // Same outputs and layout as Steps 1-4 + Top-N, without job submission
+            new LocalEngine(conf).run(inPath, outBase, topN, metrics);
+            metrics.print();
+            System.err.println("Metrics: " + metrics.write());
+            printOutputs(outBase, topN);
+            return;
+        } else if ("stream".equals(engine)) {
+            // Runs until stopped; each micro-batch publishes <outBase>/snapshots/<seq>/{step3_idf,topN_freq}
+            new StreamingEngine(conf).run(inPath, outBase, topN);
+            return;
+        } else if (!"mapreduce".equals(engine)) {
+            System.err.println("Unknown --engine: " + engine);
+            System.exit(1);
+        }
+        boolean resume = Boolean.parseBoolean(opts.getOrDefault("resume", "false"));
+        // Every stage's files go through the output codec; each stage adds the options that shape its own records
+        String fingerprint = StageScheduler.fingerprint(conf, inPath, "output-compress=" + (outputCodec == null ? "none" : outputCodec));
+        StageScheduler dag = new StageScheduler(conf, metrics, fingerprint, resume);
+
+        // Steps 1-4 (or the fused 2-job equivalent); Top-N only reads tfraw, so it runs next to Steps 2-4
+        StageScheduler.Stage[] steps = fused ? addFused(dag, conf, inPath, outBase)
+                : encodeIds ? addEncodedSteps(dag, conf, inPath, outBase)
+                : addSteps1to4(dag, conf, inPath, outBase, "", approximateIdf);
+        Path tfrawGlob = new Path(outBase + (fused ? "/fused" : "/step1") + "/tfraw*");
+        int n = topN;
+        dag.add(outTopN.getName(), outTopN, 6, () -> encodeIds
+                ? EncodedJobs.configureTopN(conf, new Path(outBase + "/step1_ids"), new Path(outBase + "/ids"), outTopN, n)
+                : Job5_TopNByFrequency.configure(conf, tfrawGlob, outTopN, n), steps[0]);
+
+        // With --verify-fused the classic 4-job pipeline runs next to the fused one
+        String verifyBase = outBase + "/_verify_4job";
+        Path outCompare = new Path(verifyBase + "/compare");
+        StageScheduler.Stage verify = null;
+        if (fused && verifyFused) {
+            StageScheduler.Stage[] classic = addSteps1to4(dag, conf, inPath, verifyBase, "_verify_4job/", false);
+            verify = dag.add("verify_fused", outCompare, 7, () -> FusedTFIDF.configureCompare(conf,
+                    new Path(verifyBase + "/step4_tfidf"), outStep4, 1e-9, outCompare), classic[1], steps[1])
+                    .publish("mismatches", PipelineCounters.VERIFY_MISMATCHES);
+        }
+        if (buildIndex) addIndex(dag, conf, inPath, outBase, steps[1]);
+        if (similarDocs) addSimilarDocs(dag, conf, outBase, steps[1]);
+
+        if (!dag.run()) {
+            metrics.write();
+            System.exit(dag.getFailed().exitCode);
+        }
+
+        if (verify != null) {
+            long bad = verify.result("mismatches");
+            System.err.println("Fused vs 4-job step4_tfidf mismatches: " + bad + (bad != 0 ? " (listed in " + outCompare + ")" : ""));
+            if (bad != 0) {
+                metrics.write();
+                System.exit(7);
+            }
+            deleteIfExists(conf, new Path(verifyBase));
+        }
+
+        if (reportStorage) {
+            for (String dir : new String[]{"step1", "ids", "step1_ids", "step2_tf", "step3_idf", "fused", "step4_tfidf", "top" + topN + "_freq"}) {
+                Path p = new Path(outBase, dir);
+                if (p.getFileSystem(conf).exists(p)) metrics.addStorage(dir, IntermediateFormat.storedAndRawBytes(conf, p));
+            }
+        }
+
+        metrics.print();
+        System.err.println("Metrics: " + metrics.write());
+
+        if (fused) {
+            System.out.println("Pipeline completed.");
+            System.out.println("Outputs:");
+            System.out.println(" - Fused (f(t,d), tf and partial idf sums): " + outBase + "/fused");
+            System.out.println(" - Step4 (tfidf): " + outStep4);
+            System.out.println(" - Top" + topN + " by frequency per document: " + outTopN);
+        } else {
+            printOutputs(outBase, topN);
+        }
+        if (buildIndex) System.out.println(" - Inverted index: " + outBase + "/index");
+        if (similarDocs) System.out.println(" - Similar document pairs: " + outBase + "/similar_docs");
+    }
+
+    private static void printOutputs(String outBase, int topN) {
+        System.out.println("Pipeline completed.");
+        System.out.println("Outputs:");
+        System.out.println(" - Step1 (f(t,d) and doc totals): " + outBase + "/step1");
+        System.out.println(" - Step2 (tf): " + outBase + "/step2_tf");
+        System.out.println(" - Step3 (idf): " + outBase + "/step3_idf");
+        System.out.println(" - Step4 (tfidf): " + outBase + "/step4_tfidf");
+        System.out.println(" - Top" + topN + " by frequency per document: " + outBase + "/top" + topN + "_freq");
+    }
+
+    // Stage settings (see StageScheduler.Stage.settings): the record format of stages writing intermediate files,
+    // plus the tokenizer for stages that tokenize. Options that only change how records are computed, partitioned
+    // or cached (in-mapper aggregation, map threads, input combining, reducers, skew handling, token cache) leave
+    // the records alone and stay out
+    private static String formatSettings(Configuration conf) {
+        return "binary=" + IntermediateFormat.isBinary(conf);
+    }
+
+    private static String tokenizerSettings(Configuration conf) {
+        return formatSettings(conf) + " tokenizer=" + Tokenizer.fingerprint(conf);
+    }
+
+    private static String approximateIdfSettings(Configuration conf) {
+        return "epsilon=" + conf.getDouble(Job3_ApproxIDF.EPSILON_KEY, 1e-4) + " delta=" + conf.getDouble(Job3_ApproxIDF.DELTA_KEY, 0.01)
+                + " heavyThreshold=" + conf.getDouble(Job3_ApproxIDF.HEAVY_THRESHOLD_KEY, 0.01)
+                + " heavyTerms=" + conf.getInt(Job3_ApproxIDF.HEAVY_TERMS_KEY, 10000);
+    }
+
+    // Adds Steps 1-4 writing under outBase; returns {step1, step4}
+    private static StageScheduler.Stage[] addSteps1to4(StageScheduler dag, Configuration conf, Path inPath, String outBase,
+                                                       String prefix, boolean approximateIdf) {
         Path outStep1 = new Path(outBase + "/step1");
         Path outStep2 = new Path(outBase + "/step2_tf");
         Path outStep3 = new Path(outBase + "/step3_idf");
         Path outStep4 = new Path(outBase + "/step4_tfidf");
-        Path outTopN  = new Path(outBase + "/top" + topN + "_freq");
-
-        // Clean previous outputs (so reruns don't fail)
-        deleteIfExists(conf, outStep1);
-        deleteIfExists(conf, outStep2);
-        deleteIfExists(conf, outStep3);
-        deleteIfExists(conf, outStep4);
-        deleteIfExists(conf, outTopN);
-
-        // Step 1: Raw term counts f(t,d) + document totals
-        Job j1 = Job1_TermCount.configure(conf, inPath, outStep1);
-        if (!j1.waitForCompletion(true)) System.exit(2);
+        Path skewDir  = new Path(outBase + "/" + SkewSampler.DIR);
+        boolean totalOrder = conf.getBoolean(SkewSampler.TOTAL_ORDER_KEY, false);
 
         // Glob paths for named MultipleOutputs from Step1
         Path tfrawGlob    = new Path(outStep1.toString() + "/tfraw*");
         Path doctotalGlob = new Path(outStep1.toString() + "/doctotal*");
 
+        StageScheduler.Stage s1 = addStep1(dag, conf, inPath, outBase, prefix);
+
         // Step 2: TF(t,d)
-        Job j2 = Job2_TF.configure(conf, tfrawGlob, doctotalGlob, outStep2);
-        if (!j2.waitForCompletion(true)) System.exit(3);
+        StageScheduler.Stage s2 = dag.add(prefix + "step2_tf", outStep2, 3, () -> {
+            Job j2 = Job2_TF.configure(conf, tfrawGlob, doctotalGlob, outStep2);
+            if (conf.getBoolean(SkewSampler.SALT_HOT_DOCS_KEY, true)) {
+                int hot = SkewSampler.saltHotDocs(j2, doctotalGlob, new Path(skewDir, "hot-docs"));
+                if (hot > 0) System.err.println("Step2: " + hot + " hot document(s) salted over several reducers");
+            }
+            return j2;
+        }, s1).settings(formatSettings(conf));
 
         // Step 3: IDF(t,D)
-        Job j3 = Job3_IDF.configure(conf, outStep2, new Path(outStep1.toString()), outStep3);
-        if (!j3.waitForCompletion(true)) System.exit(4);
+        StageScheduler.Stage s3 = dag.add(prefix + "step3_idf", outStep3, 4, () -> {
+            long numDocs = s1.result("numDocs");
+            if (approximateIdf) return Job3_ApproxIDF.configure(conf, outStep2, numDocs, outStep3);
+            Job j3 = Job3_IDF.configure(conf, outStep2, new Path(outStep1.toString()), numDocs, outStep3);
+            if (totalOrder) SkewSampler.useTotalOrder(j3, new Path(skewDir, "step3.partitions"), Job3_IDF.sampleKeys());
+            return j3;
+        }, s1, s2).settings(formatSettings(conf) + (approximateIdf ? " " + approximateIdfSettings(conf) : ""));
 
         // Step 4: TFIDF(t,d,D)
-        Job j4 = Job4_TFIDF.configure(conf, outStep2, outStep3, outStep4);
-        if (!j4.waitForCompletion(true)) System.exit(5);
+        StageScheduler.Stage s4 = dag.add(prefix + "step4_tfidf", outStep4, 5,
+                () -> Job4_TFIDF.configure(conf, outStep2, outStep3, outStep4), s2, s3);
 
-        // Top-N (raw frequency) per document
-        Job j5 = Job5_TopNByFrequency.configure(conf, tfrawGlob, outTopN, topN);
-        if (!j5.waitForCompletion(true)) System.exit(6);
+        return new StageScheduler.Stage[]{s1, s4};
+    }
 
-        System.out.println("Pipeline completed.");
-        System.out.println("Outputs:");
-        System.out.println(" - Step1 (f(t,d) and doc totals): " + outStep1);
-        System.out.println(" - Step2 (tf): " + outStep2);
-        System.out.println(" - Step3 (idf): " + outStep3);
-        System.out.println(" - Step4 (tfidf): " + outStep4);
-        System.out.println(" - Top" + topN + " by frequency per document: " + outTopN);
+    // Step 1: Raw term counts f(t,d) + document totals
+    private static StageScheduler.Stage addStep1(StageScheduler dag, Configuration conf, Path inPath, String outBase, String prefix) {
+        if (conf.get(TokenCache.DIR_KEY) != null) return addCachedStep1(dag, conf, inPath, outBase, prefix);
+        Path outStep1 = new Path(outBase + "/step1");
+        Path skewDir  = new Path(outBase + "/" + SkewSampler.DIR);
+        boolean totalOrder = conf.getBoolean(SkewSampler.TOTAL_ORDER_KEY, false);
+        return dag.add(prefix + "step1", outStep1, 2, () -> {
+            deleteIfExists(conf, skewDir);
+            Job j1 = Job1_TermCount.configure(conf, inPath, outStep1);
+            if (totalOrder) SkewSampler.useTotalOrder(j1, new Path(skewDir, "step1.partitions"), Job1_TermCount.sampleKeys(conf));
+            return j1;
+        }).settings(tokenizerSettings(conf)).publish("numDocs", Job1_TermCount.Counters.DOCUMENTS).after(j1 -> {
+            long before = j1.getCounters().findCounter(Job1_TermCount.Counters.RECORDS_BEFORE_AGGREGATION).getValue();
+            long after = j1.getCounters().findCounter(Job1_TermCount.Counters.RECORDS_AFTER_AGGREGATION).getValue();
+            System.err.println("Step1 map records: " + before + " before aggregation, " + after + " emitted");
+        });
+    }
+
+    // Step 1 through the token cache: map-only, tokenizing only files without a cached count vector
+    private static StageScheduler.Stage addCachedStep1(StageScheduler dag, Configuration conf, Path inPath, String outBase, String prefix) {
+        Path outStep1 = new Path(outBase + "/step1");
+        Path skewDir  = new Path(outBase + "/" + SkewSampler.DIR);
+        Path manifest = new Path(outBase + "/step1-" + TokenCache.MANIFEST_FILE);
+        Path cacheDir = new Path(conf.get(TokenCache.DIR_KEY));
+        return dag.add(prefix + "step1", outStep1, 2, () -> {
+            deleteIfExists(conf, skewDir);
+            int[] listed = TokenCache.writeManifest(conf, inPath, cacheDir, manifest);
+            System.err.println("Step1 token cache: " + listed[1] + " of " + listed[0] + " input files and ranges (" + listed[2]
+                    + " ranges of large files) unchanged since their last run");
+            return TokenCache.configure(conf, manifest, cacheDir, outStep1, listed[2] > 0);
+        }).settings(tokenizerSettings(conf)).publish("numDocs", Job1_TermCount.Counters.DOCUMENTS).after(j1 -> {
+            manifest.getFileSystem(conf).rename(manifest, new Path(outStep1, TokenCache.MANIFEST_FILE));
+            TokenCache.mergeSources(conf, outStep1, cacheDir);
+            long[] ev = TokenCache.evict(conf, cacheDir, conf.getLong(TokenCache.MAX_MB_KEY, 1024) * 1024L * 1024L);
+            long hits = j1.getCounters().findCounter(PipelineCounters.TOKEN_CACHE_HITS).getValue();
+            long misses = j1.getCounters().findCounter(PipelineCounters.TOKEN_CACHE_MISSES).getValue();
+            System.err.println("Step1 token cache: " + hits + " hits, " + misses + " misses; evicted " + ev[0]
+                    + " entries (" + ev[1] + " B), " + ev[2] + " B cached");
+        });
+    }
+
+    // Step 1, the id dictionary and Steps 2-4 on int ids (--encode-ids); returns {step1_ids, step4}
+    private static StageScheduler.Stage[] addEncodedSteps(StageScheduler dag, Configuration conf, Path inPath, String outBase) {
+        Path outIds      = new Path(outBase + "/ids");
+        Path outEncoded  = new Path(outBase + "/step1_ids");
+        Path outStep2    = new Path(outBase + "/step2_tf");
+        Path outStep3    = new Path(outBase + "/step3_idf");
+        Path outStep4    = new Path(outBase + "/step4_tfidf");
+        Path tfrawGlob    = new Path(outBase + "/step1/tfraw*");
+        Path doctotalGlob = new Path(outBase + "/step1/doctotal*");
+        Path docsFile     = new Path(outBase + "/ids-" + IdDictionary.DOCS_FILE);
+
+        StageScheduler.Stage s1 = addStep1(dag, conf, inPath, outBase, "");
+
+        // Term ids from tfraw, document ids from doctotal; the doc table moves into ids/ when done
+        StageScheduler.Stage sd = dag.add("ids", outIds, 9, () -> {
+            IdDictionary.writeDocTable(conf, doctotalGlob, docsFile);
+            return IdDictionary.configureDictionary(conf, tfrawGlob, outIds);
+        }, s1).after(j -> docsFile.getFileSystem(conf).rename(docsFile, new Path(outIds, IdDictionary.DOCS_FILE)));
+
+        // tfraw + doctotal as (doc, termId) -> count
+        StageScheduler.Stage se = dag.add("step1_ids", outEncoded, 9,
+                () -> IdDictionary.configureEncode(conf, tfrawGlob, doctotalGlob, outIds, outEncoded), sd);
+
+        StageScheduler.Stage s2 = dag.add("step2_tf", outStep2, 3,
+                () -> EncodedJobs.configureTF(conf, outEncoded, outIds, outStep2), se);
+        StageScheduler.Stage s3 = dag.add("step3_idf", outStep3, 4,
+                () -> EncodedJobs.configureIDF(conf, outStep2, outIds, s1.result("numDocs"), outStep3), s1, s2)
+                .settings(formatSettings(conf));
+        StageScheduler.Stage s4 = dag.add("step4_tfidf", outStep4, 5,
+                () -> EncodedJobs.configureTFIDF(conf, outStep2, outStep3, outIds, outStep4), s2, s3);
+
+        return new StageScheduler.Stage[]{se, s4};
+    }
+
+    private static void addIndex(StageScheduler dag, Configuration conf, Path inPath, String outBase, StageScheduler.Stage step4) {
+        Path outIndex = new Path(outBase + "/index");
+        Path docsFile = new Path(outBase + "/index-" + InvertedIndex.DOCS_FILE);
+
+        // Doc ordinals are positions in the sorted input file names; the table moves into the index when done
+        dag.add("index", outIndex, 8, () -> {
+            Job6_InvertedIndex.writeDocTable(conf, inPath, docsFile);
+            return Job6_InvertedIndex.configure(conf, new Path(outBase + "/step4_tfidf"), docsFile, outIndex);
+        }, step4).after(j6 -> docsFile.getFileSystem(conf).rename(docsFile, new Path(outIndex, InvertedIndex.DOCS_FILE)));
+    }
+
+    private static void addSimilarDocs(StageScheduler dag, Configuration conf, String outBase, StageScheduler.Stage step4) {
+        Path outSignatures = new Path(outBase + "/similar_signatures");
+        Path outBuckets = new Path(outBase + "/similar_buckets");
+        Path outSimilar = new Path(outBase + "/similar_docs");
+        int maxBucket = conf.getInt(Job7_SimilarDocs.MAX_BUCKET_KEY, 1000);
+        String lsh = conf.get(Job7_SimilarDocs.METHOD_KEY, "simhash") + " bands=" + conf.getInt(Job7_SimilarDocs.BANDS_KEY, 16) + " rows=" + conf.getInt(Job7_SimilarDocs.ROWS_KEY, 8)
+                + " seed=" + conf.getLong(Job7_SimilarDocs.SEED_KEY, 42);
+        String pairs = "threshold=" + conf.getDouble(Job7_SimilarDocs.THRESHOLD_KEY, 0.8)
+                + " maxBucket=" + maxBucket;
+
+        StageScheduler.Stage sig = dag.add("similar_signatures", outSignatures, 10,
+                () -> Job7_SimilarDocs.configureSignatures(conf, new Path(outBase + "/step4_tfidf"), outSignatures), step4)
+                .settings(lsh);
+        // Cutoffs of the buckets over maxBucket, so the pairs job knows which documents each of them kept
+        StageScheduler.Stage buckets = maxBucket > 0
+                ? dag.add("similar_buckets", outBuckets, 10, () -> Job7_SimilarDocs.configureBuckets(conf, outSignatures, outBuckets), sig)
+                        .settings("maxBucket=" + maxBucket)
+                : sig;
+        dag.add("similar_docs", outSimilar, 10,
+                () -> Job7_SimilarDocs.configurePairs(conf, outSignatures, maxBucket > 0 ? outBuckets : null, outSimilar), buckets)
+                .settings(pairs).publish("pairs", PipelineCounters.SIMILAR_PAIRS).after(j -> {
+                    long candidates = j.getCounters().findCounter(PipelineCounters.SIMILAR_CANDIDATES).getValue();
+                    long similar = j.getCounters().findCounter(PipelineCounters.SIMILAR_PAIRS).getValue();
+                    long truncated = j.getCounters().findCounter(PipelineCounters.SIMILAR_BUCKET_TRUNCATED).getValue();
+                    System.err.println("Similar documents: " + similar + " pairs of " + candidates + " candidates compared"
+                            + (truncated > 0 ? "; " + truncated + " documents dropped from full buckets" : ""));
+                });
+    }
+
+    // Adds the fused job and Step4; returns {fused, step4}
+    private static StageScheduler.Stage[] addFused(StageScheduler dag, Configuration conf, Path inPath, String outBase) {
+        Path outFused = new Path(outBase + "/fused");
+        Path outStep4 = new Path(outBase + "/step4_tfidf");
+
+        // Fused job: f(t,d), tf(t,d) and sorted runs of partial Σ tf(t,d) per term, keyed by document
+        StageScheduler.Stage sf = dag.add("fused", outFused, 2, () -> FusedTFIDF.configure(conf, inPath, outFused))
+                .settings(tokenizerSettings(conf)).publish("numDocs", FusedTFIDF.Counters.DOCUMENTS);
+
+        // Map-only Step4: every mapper merges the runs into its idf dictionary, so no Step3 job sits in between
+        StageScheduler.Stage s4 = dag.add("step4_tfidf", outStep4, 5,
+                () -> FusedTFIDF.configureTfidf(conf, outFused, sf.result("numDocs"), outStep4), sf);
+
+        return new StageScheduler.Stage[]{sf, s4};
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,381 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.stratosdns.a1bd.IdDictionary.hi;
+import static com.stratosdns.a1bd.IdDictionary.lo;
+import static com.stratosdns.a1bd.IdDictionary.pack;
+
+/**
+ * Steps 2-5 over the int records of {@link IdDictionary} (--encode-ids). Same formulas and the same final
+ * step4_tfidf and Top-N files as Job2_TF .. Job5_TopNByFrequency, but in between every key is a LongWritable
+ * (two packed ints) or IntWritable, sorted by Hadoop's raw byte comparators, and step2_tf / step3_idf are
+ * SequenceFiles of ids. Terms and docIds are looked up (in the cached {@link IdTable}s) only when the final
+ * files are written.
+ *
+ * Hot-document salting and total-order partitioning apply to the text keys only and are not used here.
+ */
+public class EncodedJobs {
+
+    // Step 2: the identity map over step1_ids already yields (doc, termId) keys, with the total (termId 0) first
+
+    // All records of a document go to one reducer
+    public static class DocPartitioner extends Partitioner<LongWritable, VIntWritable> {
+        @Override
+        public int getPartition(LongWritable key, VIntWritable value, int numPartitions) {
+            return (hi(key.get()) & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    // One reduce call per document: compare only the doc half (the first 4 bytes, big-endian) of the key
+    public static class DocGroupingComparator extends WritableComparator {
+        public DocGroupingComparator() {
+            super(LongWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return Integer.compare(readInt(b1, s1), readInt(b2, s2));
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            return Integer.compare(hi(((LongWritable) a).get()), hi(((LongWritable) b).get()));
+        }
+    }
+
+    public static class Reducer2 extends Reducer<LongWritable, VIntWritable, LongWritable, DoubleWritable> {
+        private final LongWritable outKey = new LongWritable();
+        private final DoubleWritable outValue = new DoubleWritable();
+
+        // (doc, termId) -> f becomes (termId, doc) -> tf, keyed for Step3's term grouping
+        @Override
+        protected void reduce(LongWritable key, Iterable<VIntWritable> values, Context context) throws IOException, InterruptedException {
+            int totalTerms = 0;
+            for (VIntWritable v : values) {
+                // the framework updates key as values advance
+                long k = key.get();
+                if (lo(k) == 0) {
+                    totalTerms += v.get();
+                    continue;
+                }
+                if (totalTerms == 0) return;
+                outKey.set(pack(lo(k), hi(k)));
+                outValue.set((double) v.get() / (double) totalTerms);
+                context.write(outKey, outValue);
+            }
+        }
+    }
+
+    // Step 3: Σ tf per term id
+
+    public static class Mapper3 extends Mapper<LongWritable, DoubleWritable, IntWritable, DoubleWritable> {
+        private final IntWritable term = new IntWritable();
+
+        @Override
+        protected void map(LongWritable key, DoubleWritable value, Context context) throws IOException, InterruptedException {
+            term.set(hi(key.get()));
+            context.write(term, value);
+        }
+    }
+
+    public static class Combiner3 extends Reducer<IntWritable, DoubleWritable, IntWritable, DoubleWritable> {
+        private final DoubleWritable sum = new DoubleWritable();
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<DoubleWritable> values, Context context) throws IOException, InterruptedException {
+            double s = 0.0;
+            for (DoubleWritable v : values) s += v.get();
+            sum.set(s);
+            context.write(key, sum);
+        }
+    }
+
+    public static class Reducer3 extends Reducer<IntWritable, DoubleWritable, IntWritable, DoubleWritable> {
+        private final DoubleWritable idf = new DoubleWritable();
+        private long numDocs;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            numDocs = context.getConfiguration().getLong("idf.numDocs", 0);
+            if (numDocs <= 0) throw new IOException("idf.numDocs not provided");
+        }
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<DoubleWritable> values, Context context) throws IOException, InterruptedException {
+            double sumTf = 0.0;
+            for (DoubleWritable v : values) sumTf += v.get();
+            if (sumTf <= 0.0) return;
+            idf.set(Math.log((double) numDocs / sumTf));
+            context.write(key, idf);
+        }
+    }
+
+    // Step 4: idf is an array indexed by term id; the only stage that builds "docId<TAB>term" keys, straight from
+    // the bytes of the cached id tables
+
+    public static class Mapper4 extends Mapper<LongWritable, DoubleWritable, Text, DoubleWritable> {
+        private IdTable terms;
+        private IdTable docs;
+        private double[] idf;
+        private final Text outKey = new Text();
+        private final DoubleWritable outValue = new DoubleWritable();
+        private long misses = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            terms = IdDictionary.loadTable(context, IdDictionary.TERMS_FILE);
+            docs = IdDictionary.loadTable(context, IdDictionary.DOCS_FILE);
+            idf = new double[terms.size() + 1];
+            Arrays.fill(idf, Double.NaN);
+            String idfDir = conf.get("tfidf.idfDir");
+            if (idfDir == null) throw new IOException("tfidf.idfDir not provided");
+            Path dir = new Path(idfDir);
+            for (FileStatus st : dir.getFileSystem(conf).listStatus(dir)) {
+                if (!st.getPath().getName().startsWith("part-")) continue;
+                try (SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(st.getPath()))) {
+                    IntWritable k = new IntWritable();
+                    DoubleWritable v = new DoubleWritable();
+                    while (r.next(k, v)) idf[k.get()] = v.get();
+                }
+            }
+        }
+
+        @Override
+        protected void map(LongWritable key, DoubleWritable value, Context context) throws IOException, InterruptedException {
+            int term = hi(key.get());
+            double x = idf[term];
+            if (Double.isNaN(x)) {
+                misses++;
+                return;
+            }
+            outKey.clear();
+            docs.appendTo(outKey, lo(key.get()));
+            TextBytes.appendTab(outKey);
+            terms.appendTo(outKey, term - 1);
+            outValue.set(value.get() * x);
+            context.write(outKey, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.IDF_MISSES).increment(misses);
+        }
+    }
+
+    // Step 5: per-document Top-N over step1_ids. Values are (f << 32 | termId); heaps hold term ids, whose order
+    // is term order, so ties are decided exactly as in Job5 and the map side needs no term table
+
+    public static class Mapper5 extends Mapper<LongWritable, VIntWritable, IntWritable, LongWritable> {
+        private int N;
+        private int maxDocs;
+        private final HashMap<Integer, TopNIdHeap> heaps = new HashMap<>();
+        private final IntWritable outKey = new IntWritable();
+        private final LongWritable outValue = new LongWritable();
+        private int lastDoc = -1;
+        private TopNIdHeap last;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            N = conf.getInt("topn.N", 5);
+            maxDocs = conf.getInt(Job5_TopNByFrequency.MAPPER_MAX_DOCS_KEY, 10000);
+        }
+
+        @Override
+        protected void map(LongWritable key, VIntWritable value, Context context) throws IOException, InterruptedException {
+            long k = key.get();
+            int term = lo(k);
+            if (term == 0) return; // document total
+            // step1_ids is grouped by term, so the heaps of a split's documents stay open until maxDocs forces a flush
+            int doc = hi(k);
+            if (doc != lastDoc || last == null) {
+                last = heaps.get(doc);
+                if (last == null) {
+                    if (heaps.size() >= maxDocs) flush(context);
+                    last = new TopNIdHeap(N);
+                    heaps.put(doc, last);
+                }
+                lastDoc = doc;
+            }
+            last.offer(term, value.get());
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<Integer, TopNIdHeap> en : heaps.entrySet()) {
+                outKey.set(en.getKey());
+                en.getValue().drainDescending((rank, term, f) -> {
+                    outValue.set(pack(f, term));
+                    context.write(outKey, outValue);
+                });
+            }
+            heaps.clear();
+            last = null;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+        }
+    }
+
+    public static class Reducer5 extends Reducer<IntWritable, LongWritable, Text, Text> {
+        private TopNIdHeap heap;
+        private IdTable terms;
+        private IdTable docs;
+        private final Text outKey = new Text();
+        private final Text outValue = new Text();
+        private final byte[] scratch = new byte[10];
+        private long candidates = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            heap = new TopNIdHeap(context.getConfiguration().getInt("topn.N", 5));
+            terms = IdDictionary.loadTable(context, IdDictionary.TERMS_FILE);
+            docs = IdDictionary.loadTable(context, IdDictionary.DOCS_FILE);
+        }
+
+        @Override
+        protected void reduce(IntWritable key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            heap.clear();
+            for (LongWritable v : values) {
+                candidates++;
+                heap.offer(lo(v.get()), hi(v.get()));
+            }
+            outKey.clear();
+            docs.appendTo(outKey, key.get());
+            // rank TAB term TAB f, as Job5 writes it
+            heap.drainDescending((rank, term, f) -> {
+                outValue.clear();
+                TextBytes.appendCount(outValue, rank, scratch);
+                TextBytes.appendTab(outValue);
+                terms.appendTo(outValue, term - 1);
+                TextBytes.appendTab(outValue);
+                TextBytes.appendCount(outValue, f, scratch);
+                context.write(outKey, outValue);
+            });
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.TOPN_CANDIDATES).increment(candidates);
+            context.getCounter(PipelineCounters.TOPN_HEAP_INSERTS).increment(heap.getInserts());
+        }
+    }
+
+    // Intermediate steps always use SequenceFiles, whatever --binary-intermediate says
+    private static Job newJob(Configuration conf, String name, Path idsDir) throws IOException {
+        Job job = Job.getInstance(conf, name);
+        job.setJarByClass(EncodedJobs.class);
+        job.getConfiguration().setBoolean(IntermediateFormat.BINARY_KEY, true);
+        job.getConfiguration().set(IdDictionary.DIR_KEY, idsDir.toString());
+        return job;
+    }
+
+    public static Job configureTF(Configuration conf, Path inEncoded, Path idsDir, Path outStep2) throws IOException {
+        Job job = newJob(conf, "A1_BD - Step2 - TF (ids)", idsDir);
+
+        job.setMapperClass(Mapper.class);
+        job.setReducerClass(Reducer2.class);
+        job.setPartitionerClass(DocPartitioner.class);
+        job.setGroupingComparatorClass(DocGroupingComparator.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(VIntWritable.class);
+
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(DoubleWritable.class);
+
+        IntermediateFormat.setInput(job, inEncoded);
+        IntermediateFormat.setOutput(job, outStep2);
+
+        return job;
+    }
+
+    public static Job configureIDF(Configuration conf, Path inStep2TF, Path idsDir, long numDocs, Path outStep3) throws IOException {
+        Job job = newJob(conf, "A1_BD - Step3 - IDF (ids)", idsDir);
+
+        job.getConfiguration().setLong("idf.numDocs", numDocs);
+
+        job.setMapperClass(Mapper3.class);
+        job.setCombinerClass(Combiner3.class);
+        job.setReducerClass(Reducer3.class);
+
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(DoubleWritable.class);
+
+        job.setOutputKeyClass(IntWritable.class);
+        job.setOutputValueClass(DoubleWritable.class);
+
+        IntermediateFormat.setInput(job, inStep2TF);
+        IntermediateFormat.setOutput(job, outStep3);
+
+        return job;
+    }
+
+    public static Job configureTFIDF(Configuration conf, Path inStep2TF, Path idfDir, Path idsDir, Path outStep4) throws IOException {
+        Job job = newJob(conf, "A1_BD - Step4 - TFIDF (ids)", idsDir);
+
+        job.getConfiguration().set("tfidf.idfDir", idfDir.toString());
+
+        IdDictionary.addTablesToCache(job, idsDir);
+
+        job.setMapperClass(Mapper4.class);
+        job.setNumReduceTasks(0);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(DoubleWritable.class);
+
+        IntermediateFormat.setInput(job, inStep2TF);
+        TextOutputFormat.setOutputPath(job, outStep4);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        return job;
+    }
+
+    public static Job configureTopN(Configuration conf, Path inEncoded, Path idsDir, Path outTopN, int N) throws IOException {
+        Job job = newJob(conf, "A1_BD - TopN By Frequency (ids)", idsDir);
+
+        job.getConfiguration().setInt("topn.N", N);
+
+        // No combiner: Mapper5 already pre-selects per document
+        IdDictionary.addTablesToCache(job, idsDir);
+        job.setMapperClass(Mapper5.class);
+        job.setReducerClass(Reducer5.class);
+
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(LongWritable.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        IntermediateFormat.setInput(job, inEncoded);
+        TextOutputFormat.setOutputPath(job, outTopN);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        return job;
+    }
+}
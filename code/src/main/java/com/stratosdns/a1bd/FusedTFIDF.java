@@ -0,0 +1,526 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Fused replacement for Steps 1-3 (used with --fused): with Step4 the pipeline is two jobs.
+ *
+ * Mappers tokenize and aggregate term counts per document and shuffle them as "docId<TAB>term" -> f, plus one
+ * "docId<TAB>" -> token total per document and map task. Partitioning and grouping only look at the docId, and
+ * the empty term sorts first, so each reduce call reads a document's total before its terms, in term order, and
+ * emits f(t,d) (tfraw) and tf(t,d) (tf) without buffering the document. Each reducer also adds tf(t,d) into
+ * per-term partial sums, spilled as a sorted sumtf-r-NNNNN-S run whenever they outgrow fused.sumtf.maxMemoryMB;
+ * the DOCUMENTS counter gives N. Step4's mappers (configureTfidf) merge the runs in term order straight into an
+ * IdfDictionary, so only the merged table is ever held, never a map of the partials.
+ */
+public class FusedTFIDF {
+
+    public enum Counters { DOCUMENTS }
+
+    public static final String SUMTF_MAX_MB_KEY = "fused.sumtf.maxMemoryMB";
+    public static final String SUMTF_PREFIX = "sumtf";
+    // Set on the Step4 job: the fused output directory holding the runs, and N
+    public static final String SUMTF_DIR_KEY = "tfidf.sumTfDir";
+    public static final String NUM_DOCS_KEY = "tfidf.numDocs";
+
+    // Rough heap cost of one HashMap entry (entry + Text + byte[] + counter array headers), excluding term bytes
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    public static class MapperF extends Mapper<Object, Text, Text, IntWritable> {
+        private final Text docId = new Text();
+        private Tokenizer tokenizer;
+        private long maxBytes;
+        private long usedBytes = 0;
+        private final HashMap<Text, int[]> counts = new HashMap<>();
+        private final Text probe = new Text();
+        private final Text outKey = new Text();
+        private final IntWritable count = new IntWritable();
+        private int docTotal = 0;
+        private long tokens = 0;
+        private long bytes = 0;
+
+        private final Tokenizer.TokenSink countSink = (buf, s, l) -> {
+            probe.set(buf, s, l);
+            int[] c = counts.get(probe);
+            if (c == null) {
+                counts.put(new Text(probe), new int[]{1});
+                usedBytes += ENTRY_OVERHEAD_BYTES + l;
+            } else {
+                c[0]++;
+            }
+        };
+
+        @Override
+        protected void setup(Context context) {
+            if (context.getInputSplit() instanceof FileSplit) {
+                docId.set(((FileSplit) context.getInputSplit()).getPath().getName());
+            }
+            tokenizer = Tokenizer.fromConf(context.getConfiguration());
+            maxBytes = context.getConfiguration().getLong(Job1_TermCount.INMAPPER_MAX_MB_KEY, 32) * 1024L * 1024L;
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            // DocumentInputFormat keys every line with its docId; counts are per document
+            if (key instanceof Text && !docId.equals(key)) {
+                finishDocument(context);
+                docId.set((Text) key);
+            }
+            int n = tokenizer.tokenize(value.getBytes(), 0, value.getLength(), countSink);
+            docTotal += n;
+            tokens += n;
+            bytes += value.getLength();
+            if (usedBytes >= maxBytes) flush(context);
+        }
+
+        // "docId<TAB>" prefix of every key of the current document
+        private void setPrefix() {
+            outKey.set(docId.getBytes(), 0, docId.getLength());
+            TextBytes.appendTab(outKey);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<Text, int[]> e : counts.entrySet()) {
+                Text term = e.getKey();
+                setPrefix();
+                outKey.append(term.getBytes(), 0, term.getLength());
+                count.set(e.getValue()[0]);
+                context.write(outKey, count);
+            }
+            counts.clear();
+            usedBytes = 0;
+        }
+
+        private void finishDocument(Context context) throws IOException, InterruptedException {
+            flush(context);
+            if (docTotal > 0) {
+                setPrefix();
+                count.set(docTotal);
+                context.write(outKey, count);
+            }
+            docTotal = 0;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            finishDocument(context);
+            context.getCounter(PipelineCounters.TOKENS).increment(tokens);
+            context.getCounter(PipelineCounters.STOPWORDS_DROPPED).increment(tokenizer.getStopwordsDropped());
+            context.getCounter(PipelineCounters.BYTES_PARSED).increment(bytes);
+        }
+    }
+
+    // Merges the counts of one (docId, term) key, or the totals of one document, from the same map task
+    public static class CombinerF extends Reducer<Text, IntWritable, Text, IntWritable> {
+        private final IntWritable sum = new IntWritable();
+
+        @Override
+        protected void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            int s = 0;
+            for (IntWritable v : values) s += v.get();
+            sum.set(s);
+            context.write(key, sum);
+        }
+    }
+
+    // Length of the docId part of a "docId<TAB>term" key
+    private static int docLength(byte[] b, int from, int len) {
+        int tab = TextBytes.indexOfTab(b, from, from + len);
+        return tab < 0 ? len : tab - from;
+    }
+
+    // All records of a document go to one reducer
+    public static class DocPartitioner extends Partitioner<Text, IntWritable> {
+        @Override
+        public int getPartition(Text key, IntWritable value, int numPartitions) {
+            int h = WritableComparator.hashBytes(key.getBytes(), docLength(key.getBytes(), 0, key.getLength()));
+            return (h & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    // One reduce call per document: compare only the docId part of the key. The framework calls the raw form
+    // on serialized Text (vint length + bytes)
+    public static class DocGroupingComparator extends WritableComparator {
+        public DocGroupingComparator() {
+            super(Text.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+            return compareBytes(b1, s1 + n1, docLength(b1, s1 + n1, l1 - n1), b2, s2 + n2, docLength(b2, s2 + n2, l2 - n2));
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            Text x = (Text) a;
+            Text y = (Text) b;
+            return compareBytes(x.getBytes(), 0, docLength(x.getBytes(), 0, x.getLength()),
+                    y.getBytes(), 0, docLength(y.getBytes(), 0, y.getLength()));
+        }
+    }
+
+    public static class ReducerF extends Reducer<Text, IntWritable, Writable, Writable> {
+        private MultipleOutputs<Writable, Writable> mos;
+        private boolean binary;
+        private long maxBytes;
+        private long usedBytes = 0;
+        private int spills = 0;
+        private final HashMap<Text, double[]> sumTf = new HashMap<>();
+        private final Text docId = new Text();
+        private final Text term = new Text();
+        private final TermDocWritable termDoc = new TermDocWritable();
+        private final Text outKey = new Text();
+        private final VIntWritable vCount = new VIntWritable();
+        private final IntWritable count = new IntWritable();
+        private final DoubleWritable tf = new DoubleWritable();
+
+        @Override
+        protected void setup(Context context) {
+            mos = new MultipleOutputs<>(context);
+            binary = IntermediateFormat.isBinary(context.getConfiguration());
+            maxBytes = context.getConfiguration().getLong(SUMTF_MAX_MB_KEY, 32) * 1024L * 1024L;
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            // key advances with the values: "docId<TAB>" (totals) first, then "docId<TAB>term" in term order,
+            // a term repeated once per map task that flushed it
+            int docLen = docLength(key.getBytes(), 0, key.getLength());
+            docId.set(key.getBytes(), 0, docLen);
+            long total = 0;
+            int f = 0;
+            boolean open = false;
+            long malformed = 0;
+            for (IntWritable v : values) {
+                byte[] b = key.getBytes();
+                int l = key.getLength() - docLen - 1;
+                if (l <= 0) {
+                    total += v.get();
+                    continue;
+                }
+                if (total == 0) {
+                    malformed++; // terms without a document total
+                    continue;
+                }
+                if (open && WritableComparator.compareBytes(term.getBytes(), 0, term.getLength(), b, docLen + 1, l) == 0) {
+                    f += v.get();
+                    continue;
+                }
+                if (open) write(f, total);
+                term.set(b, docLen + 1, l);
+                f = v.get();
+                open = true;
+            }
+            if (open) write(f, total);
+            if (malformed > 0) context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+            if (total > 0) context.getCounter(Counters.DOCUMENTS).increment(1);
+            if (usedBytes >= maxBytes) spill(context);
+        }
+
+        // f(t,d) and tf(t,d) of term in docId; tf also goes into the partial Σ tf(t,d)
+        private void write(int f, long total) throws IOException, InterruptedException {
+            double tfVal = (double) f / (double) total;
+            double[] sum = sumTf.get(term);
+            if (sum == null) {
+                sumTf.put(new Text(term), sum = new double[1]);
+                usedBytes += ENTRY_OVERHEAD_BYTES + term.getLength();
+            }
+            sum[0] += tfVal;
+            tf.set(tfVal);
+            if (binary) {
+                termDoc.set(term, docId);
+                vCount.set(f);
+                mos.write("tfraw", termDoc, vCount);
+                mos.write("tf", termDoc, tf);
+            } else {
+                TextBytes.setJoined(outKey, term.getBytes(), 0, term.getLength(), docId.getBytes(), 0, docId.getLength());
+                count.set(f);
+                mos.write("tfraw", outKey, count);
+                mos.write("tf", outKey, tf);
+            }
+        }
+
+        // Writes the partial sums held so far as one run in term order, committed with the task output; Step4 adds
+        // up the partials of a term across runs and reducers
+        private void spill(Context context) throws IOException, InterruptedException {
+            if (sumTf.isEmpty()) return;
+            Text[] terms = sumTf.keySet().toArray(new Text[0]);
+            Arrays.sort(terms);
+            Path dir = FileOutputFormat.getWorkOutputPath(context);
+            int partition = context.getTaskAttemptID().getTaskID().getId();
+            Path p = new Path(dir, String.format("%s-r-%05d-%d", SUMTF_PREFIX, partition, spills++));
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(p.getFileSystem(context.getConfiguration()).create(p, false), 1 << 16))) {
+                out.writeInt(terms.length);
+                for (Text t : terms) {
+                    t.write(out);
+                    out.writeDouble(sumTf.get(t)[0]);
+                }
+            }
+            sumTf.clear();
+            usedBytes = 0;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            spill(context);
+            mos.close();
+        }
+    }
+
+    public static Job configure(Configuration conf, Path input, Path outFused) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Fused - TF and partial IDF sums");
+        job.setJarByClass(FusedTFIDF.class);
+
+        job.setMapperClass(MapperF.class);
+        job.setCombinerClass(CombinerF.class);
+        job.setReducerClass(ReducerF.class);
+        job.setPartitionerClass(DocPartitioner.class);
+        job.setGroupingComparatorClass(DocGroupingComparator.class);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(IntWritable.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(DoubleWritable.class);
+
+        DocumentInputFormat.setInput(job, input);
+
+        IntermediateFormat.setOutput(job, outFused);
+
+        if (IntermediateFormat.isBinary(conf)) {
+            MultipleOutputs.addNamedOutput(job, "tfraw", SequenceFileOutputFormat.class, TermDocWritable.class, VIntWritable.class);
+            MultipleOutputs.addNamedOutput(job, "tf", SequenceFileOutputFormat.class, TermDocWritable.class, DoubleWritable.class);
+        } else {
+            MultipleOutputs.addNamedOutput(job, "tfraw", TextOutputFormat.class, Text.class, IntWritable.class);
+            MultipleOutputs.addNamedOutput(job, "tf", TextOutputFormat.class, Text.class, DoubleWritable.class);
+        }
+
+        return job;
+    }
+
+    /** Regular map-only Step4 over the fused tf, with idf merged from the sumtf runs under fusedDir. */
+    public static Job configureTfidf(Configuration conf, Path fusedDir, long numDocs, Path outStep4) throws IOException {
+        Job job = Job4_TFIDF.configure(conf, new Path(fusedDir, "tf-*"), fusedDir, outStep4);
+        job.setJobName("A1_BD - Fused - TFIDF join");
+        job.getConfiguration().set(SUMTF_DIR_KEY, fusedDir.toString());
+        job.getConfiguration().setLong(NUM_DOCS_KEY, numDocs);
+        return job;
+    }
+
+    // One spilled run: an int count, then (Text term, double partial sum) in term order
+    private static final class SumRun implements Closeable {
+        final DataInputStream in;
+        final Text term = new Text();
+        double sum;
+        int left;
+
+        SumRun(FileSystem fs, Path p) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(fs.open(p), 1 << 16));
+            left = in.readInt();
+        }
+
+        boolean next() throws IOException {
+            if (left == 0) return false;
+            term.readFields(in);
+            sum = in.readDouble();
+            left--;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * k-way merge of every sumtf run under fusedDir: Σ tf per term in Text order, so idf = log(N / Σ tf) goes
+     * straight into the dictionary. Holds one buffered reader per run and the table being built.
+     */
+    public static IdfDictionary loadIdf(Configuration conf, Path fusedDir, long numDocs) throws IOException {
+        if (numDocs <= 0) throw new IOException(NUM_DOCS_KEY + " not provided");
+        FileSystem fs = fusedDir.getFileSystem(conf);
+        List<SumRun> runs = new ArrayList<>();
+        try {
+            PriorityQueue<SumRun> queue = new PriorityQueue<>((a, b) -> a.term.compareTo(b.term));
+            for (FileStatus st : fs.listStatus(fusedDir, p -> p.getName().startsWith(SUMTF_PREFIX))) {
+                SumRun r = new SumRun(fs, st.getPath());
+                runs.add(r);
+                if (r.next()) queue.add(r);
+            }
+            IdfDictionary.Builder dict = new IdfDictionary.Builder();
+            Text term = new Text();
+            while (!queue.isEmpty()) {
+                term.set(queue.peek().term);
+                double sum = 0.0;
+                while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+                    SumRun r = queue.poll();
+                    sum += r.sum;
+                    if (r.next()) queue.add(r);
+                }
+                if (sum > 0.0) dict.append(term.getBytes(), 0, term.getLength(), Math.log((double) numDocs / sum));
+            }
+            return dict.build();
+        } finally {
+            for (SumRun r : runs) r.close();
+        }
+    }
+
+    public static final String VERIFY_EXPECTED_KEY = "fused.verify.expected";
+    public static final String VERIFY_TOLERANCE_KEY = "fused.verify.tolerance";
+
+    /** A step4_tfidf value and which of the two compared outputs it came from. */
+    public static class TaggedDouble implements Writable {
+        boolean expected;
+        double value;
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeBoolean(expected);
+            out.writeDouble(value);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            expected = in.readBoolean();
+            value = in.readDouble();
+        }
+    }
+
+    // "docId<TAB>term<TAB>tfidf" -> "docId<TAB>term", tagged by the directory the split belongs to
+    public static class CompareMapper extends Mapper<Object, Text, Text, TaggedDouble> {
+        private final Text outKey = new Text();
+        private final TaggedDouble outValue = new TaggedDouble();
+        private long malformed = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Path expected = new Path(context.getConfiguration().get(VERIFY_EXPECTED_KEY));
+            expected = expected.getFileSystem(context.getConfiguration()).makeQualified(expected);
+            outValue.expected = expected.equals(((FileSplit) context.getInputSplit()).getPath().getParent());
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            byte[] b = value.getBytes();
+            int s = TextBytes.trimStart(b, 0, value.getLength());
+            int e = TextBytes.trimEnd(b, s, value.getLength());
+            if (s == e) return;
+            int tab = TextBytes.lastIndexOfTab(b, s, e);
+            if (tab < 0) {
+                malformed++;
+                return;
+            }
+            outKey.set(b, s, tab - s);
+            outValue.value = TextBytes.parseDouble(b, tab + 1, e);
+            context.write(outKey, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    // Counts and writes every key without exactly one value on each side, or whose two values differ
+    public static class CompareReducer extends Reducer<Text, TaggedDouble, Text, Text> {
+        private double tolerance;
+        private final Text out = new Text();
+        private long mismatches = 0;
+
+        @Override
+        protected void setup(Context context) {
+            tolerance = context.getConfiguration().getDouble(VERIFY_TOLERANCE_KEY, 1e-9);
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<TaggedDouble> values, Context context) throws IOException, InterruptedException {
+            int nExpected = 0, nActual = 0;
+            double x = Double.NaN, a = Double.NaN;
+            for (TaggedDouble v : values) {
+                if (v.expected) {
+                    nExpected++;
+                    x = v.value;
+                } else {
+                    nActual++;
+                    a = v.value;
+                }
+            }
+            if (nExpected == 1 && nActual == 1 && Math.abs(x - a) <= tolerance * Math.max(1.0, Math.abs(x))) return;
+            mismatches++;
+            out.set((nExpected == 1 ? Double.toString(x) : nExpected + " rows") + "\t" + (nActual == 1 ? Double.toString(a) : nActual + " rows"));
+            context.write(key, out);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.VERIFY_MISMATCHES).increment(mismatches);
+        }
+    }
+
+    /**
+     * Joins two step4_tfidf directories on "docId<TAB>term"; VERIFY_MISMATCHES counts the rows that are missing on
+     * one side or differ by more than tolerance (relative, absolute below 1), and outCompare lists them as
+     * "docId<TAB>term<TAB>expected<TAB>actual".
+     */
+    public static Job configureCompare(Configuration conf, Path expected, Path actual, double tolerance, Path outCompare) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Fused - verify against Steps 1-4");
+        job.setJarByClass(FusedTFIDF.class);
+
+        job.getConfiguration().set(VERIFY_EXPECTED_KEY, expected.toString());
+        job.getConfiguration().setDouble(VERIFY_TOLERANCE_KEY, tolerance);
+
+        job.setMapperClass(CompareMapper.class);
+        job.setReducerClass(CompareReducer.class);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(TaggedDouble.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        FileInputFormat.addInputPath(job, expected);
+        FileInputFormat.addInputPath(job, actual);
+        job.setInputFormatClass(TextInputFormat.class);
+
+        TextOutputFormat.setOutputPath(job, outCompare);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        return job;
+    }
+}
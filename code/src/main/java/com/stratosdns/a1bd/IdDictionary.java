@@ -0,0 +1,357 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+/**
+ * Dense int ids for terms and documents (--encode-ids), so Steps 2-5 ({@link EncodedJobs}) shuffle and sort
+ * fixed-width numeric keys instead of "term<TAB>docId" text.
+ *
+ * Document ids are positions in the sorted docIds of doctotal (the "docs" {@link IdTable}, written by the Driver).
+ * Term ids come from the dictionary job: the distinct terms of tfraw, numbered in sorted order by a single
+ * reducer from 1, so 0 is free to mark a document total. The reducer writes (term, id) records plus the "terms"
+ * IdTable (term id - 1 is the table index). Tokens are lowercase ASCII, so id order is term order and ties broken
+ * on ids or on terms agree.
+ *
+ * The encode job then rewrites tfraw and doctotal as one SequenceFile of (doc << 32 | termId) -> count with a
+ * reduce-side join on the term: postings and the term's (term, id) record meet in one reduce call, so no task
+ * holds the vocabulary. Only the document table is looked up, from the distributed cache.
+ */
+public class IdDictionary {
+
+    public static final String DIR_KEY = "ids.dir";
+    public static final String DOCS_FILE = "docs";
+    public static final String TERMS_FILE = "terms";
+    public static final String MAPPER_MAX_TERMS_KEY = "ids.mapper.maxTerms";
+
+    public static long pack(int hi, int lo) {
+        return ((long) hi << 32) | (lo & 0xffffffffL);
+    }
+
+    public static int hi(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    public static int lo(long packed) {
+        return (int) packed;
+    }
+
+    // Each map task emits a term once (until its set reaches the bound), so the shuffle is ~ vocabulary x maps
+    public static class DictMapper extends Mapper<Object, Writable, Text, NullWritable> {
+        private final HashSet<Text> seen = new HashSet<>();
+        private final Text probe = new Text();
+        private int maxTerms;
+        private long malformed = 0;
+
+        @Override
+        protected void setup(Context context) {
+            maxTerms = context.getConfiguration().getInt(MAPPER_MAX_TERMS_KEY, 1000000);
+        }
+
+        // Input from Step1 tfraw: "term<TAB>docId<TAB>f" lines, or binary (term, docId) -> f
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (key instanceof TermDocWritable) {
+                probe.set(((TermDocWritable) key).getTerm());
+            } else {
+                Text line = (Text) value;
+                byte[] b = line.getBytes();
+                int tab = TextBytes.indexOfTab(b, 0, line.getLength());
+                if (TextBytes.trimStart(b, 0, line.getLength()) == line.getLength()) return;
+                if (tab <= 0) {
+                    malformed++;
+                    return;
+                }
+                probe.set(b, 0, tab);
+            }
+            if (seen.contains(probe)) return;
+            seen.add(new Text(probe));
+            if (seen.size() >= maxTerms) flush(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Text t : seen) context.write(t, NullWritable.get());
+            seen.clear();
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    public static class DictCombiner extends Reducer<Text, NullWritable, Text, NullWritable> {
+        @Override
+        protected void reduce(Text key, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            context.write(key, NullWritable.get());
+        }
+    }
+
+    // Keys arrive sorted, so numbering them in order gives sorted ids; the terms table is a side file committed
+    // with the task output
+    public static class DictReducer extends Reducer<Text, NullWritable, Text, VIntWritable> {
+        private IdTable.Writer table;
+        private final VIntWritable id = new VIntWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Path p = new Path(FileOutputFormat.getWorkOutputPath(context), TERMS_FILE);
+            table = new IdTable.Writer(p.getFileSystem(context.getConfiguration()).create(p, false));
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            table.append(key);
+            id.set(table.size());
+            context.write(key, id);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            table.close();
+        }
+    }
+
+    // Join keys are "term<TAB>" for the dictionary record, "term<TAB>docId" for a posting and "<TAB>docId" for a
+    // document total (the empty term, id 0). Text order puts the dictionary record first in its term's group.
+
+    public static class DictJoinMapper extends Mapper<Text, VIntWritable, Text, IntWritable> {
+        private final Text outKey = new Text();
+        private final IntWritable outValue = new IntWritable();
+
+        @Override
+        protected void map(Text term, VIntWritable id, Context context) throws IOException, InterruptedException {
+            outKey.set(term);
+            TextBytes.appendTab(outKey);
+            outValue.set(id.get());
+            context.write(outKey, outValue);
+        }
+    }
+
+    public static class EncodeMapper extends Mapper<Object, Writable, Text, IntWritable> {
+        private static final byte[] NO_TERM = new byte[0];
+        private final Text outKey = new Text();
+        private final IntWritable outValue = new IntWritable();
+        private long malformed = 0;
+
+        // Same inputs as Mapper2: tfraw and doctotal records from Step1, text or binary
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (key instanceof TermDocWritable) {
+                TermDocWritable td = (TermDocWritable) key;
+                Text term = td.getTerm();
+                Text docId = td.getDocId();
+                emit(context, term.getBytes(), 0, term.getLength(), docId.getBytes(), 0, docId.getLength(), ((VIntWritable) value).get());
+                return;
+            }
+            if (key instanceof Text) {
+                Text docId = (Text) key;
+                emit(context, NO_TERM, 0, 0, docId.getBytes(), 0, docId.getLength(), ((VIntWritable) value).get());
+                return;
+            }
+            Text line = (Text) value;
+            byte[] b = line.getBytes();
+            int s = TextBytes.trimStart(b, 0, line.getLength());
+            int e = TextBytes.trimEnd(b, s, line.getLength());
+            if (s == e) return;
+            int t1 = TextBytes.indexOfTab(b, s, e);
+            int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, e);
+            if (t1 < 0 || (t2 >= 0 && TextBytes.indexOfTab(b, t2 + 1, e) >= 0)) {
+                malformed++;
+            } else if (t2 >= 0) {
+                emit(context, b, s, t1 - s, b, t1 + 1, t2 - t1 - 1, TextBytes.parseCount(b, t2 + 1, e));
+            } else {
+                emit(context, NO_TERM, 0, 0, b, s, t1 - s, TextBytes.parseCount(b, t1 + 1, e));
+            }
+        }
+
+        // termLen == 0: the document's total
+        private void emit(Context context, byte[] term, int termFrom, int termLen, byte[] doc, int docFrom, int docLen, int count)
+                throws IOException, InterruptedException {
+            if (docLen == 0 || count < 0) {
+                malformed++;
+                return;
+            }
+            TextBytes.setJoined(outKey, term, termFrom, termLen, doc, docFrom, docLen);
+            outValue.set(count);
+            context.write(outKey, outValue);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    // One call per term: the id comes from the first record of the group, then each posting is written with its
+    // document's id from the cached docs table
+    public static class EncodeReducer extends Reducer<Text, IntWritable, LongWritable, VIntWritable> {
+        private IdTable docs;
+        private final LongWritable outKey = new LongWritable();
+        private final VIntWritable outValue = new VIntWritable();
+        private long malformed = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            docs = loadTable(context, DOCS_FILE);
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            int id = -1;
+            for (IntWritable v : values) {
+                // the framework updates key as values advance
+                byte[] b = key.getBytes();
+                int len = key.getLength();
+                int tab = TextBytes.indexOfTab(b, 0, len);
+                if (tab == 0) {
+                    id = 0;
+                } else if (tab == len - 1) {
+                    id = v.get();
+                    continue;
+                }
+                int doc = id < 0 ? -1 : docs.indexOf(b, tab + 1, len - tab - 1);
+                if (doc < 0) {
+                    // a term missing from the dictionary, or a docId missing from doctotal
+                    malformed++;
+                    continue;
+                }
+                outKey.set(pack(doc, id));
+                outValue.set(v.get());
+                context.write(outKey, outValue);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    static Path dirOf(Configuration conf) throws IOException {
+        String dir = conf.get(DIR_KEY);
+        if (dir == null) throw new IOException(DIR_KEY + " not provided");
+        return new Path(dir);
+    }
+
+    /** Registers the ids tables with the distributed cache, linked under their own names. */
+    public static void addTablesToCache(Job job, Path idsDir) throws IOException {
+        for (String name : new String[]{TERMS_FILE, DOCS_FILE}) {
+            URI u = new Path(idsDir, name).toUri();
+            try {
+                job.addCacheFile(new URI(u.getScheme(), u.getAuthority(), u.getPath(), null, name));
+            } catch (URISyntaxException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /** Loads a table from its distributed cache link when the task has one, else from ids.dir. */
+    public static IdTable loadTable(JobContext context, String name) throws IOException {
+        Configuration conf = context.getConfiguration();
+        URI[] cached = context.getCacheFiles();
+        if (cached != null) {
+            for (URI u : cached) {
+                if (!name.equals(u.getFragment())) continue;
+                File local = new File(name);
+                return IdTable.load(conf, local.exists() ? new Path(local.getAbsoluteFile().toURI()) : new Path(u.getScheme(), u.getAuthority(), u.getPath()));
+            }
+        }
+        return IdTable.load(conf, new Path(dirOf(conf), name));
+    }
+
+    /** Writes the docIds of Step1's doctotal files as a table in Text order; returns their number. */
+    public static int writeDocTable(Configuration conf, Path doctotalGlob, Path docsFile) throws IOException {
+        FileSystem fs = doctotalGlob.getFileSystem(conf);
+        TreeSet<Text> names = new TreeSet<>();
+        FileStatus[] parts = fs.globStatus(doctotalGlob);
+        if (parts != null) {
+            for (FileStatus st : parts) IntermediateFormat.readDoublePairs(conf, st.getPath(), (doc, v) -> names.add(new Text(doc)));
+        }
+        FileSystem out = docsFile.getFileSystem(conf);
+        try (IdTable.Writer w = new IdTable.Writer(out.create(docsFile, true))) {
+            for (Text n : names) w.append(n);
+        }
+        return names.size();
+    }
+
+    public static Job configureDictionary(Configuration conf, Path inTfRaw, Path outIds) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Step1 - Term dictionary");
+        job.setJarByClass(IdDictionary.class);
+
+        job.setMapperClass(DictMapper.class);
+        job.setCombinerClass(DictCombiner.class);
+        job.setReducerClass(DictReducer.class);
+        // One sorted stream: ids are global positions
+        job.setNumReduceTasks(1);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(NullWritable.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(VIntWritable.class);
+
+        // Reads Step1 as it was written; the (term, id) records are always binary, for the encode job's join
+        IntermediateFormat.setInput(job, inTfRaw);
+        job.getConfiguration().setBoolean(IntermediateFormat.BINARY_KEY, true);
+        IntermediateFormat.setOutput(job, outIds);
+
+        return job;
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static Job configureEncode(Configuration conf, Path inTfRaw, Path inDocTotals, Path idsDir, Path outEncoded) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Step1 - Encode ids");
+        job.setJarByClass(IdDictionary.class);
+
+        job.getConfiguration().set(DIR_KEY, idsDir.toString());
+
+        addTablesToCache(job, idsDir);
+
+        // Reads Step1 as it was written; the encoded records are always binary
+        Class<? extends InputFormat> step1Format = IntermediateFormat.isBinary(conf) ? SequenceFileInputFormat.class : TextInputFormat.class;
+        MultipleInputs.addInputPath(job, new Path(idsDir, "part-*"), SequenceFileInputFormat.class, DictJoinMapper.class);
+        MultipleInputs.addInputPath(job, inTfRaw, step1Format, EncodeMapper.class);
+        MultipleInputs.addInputPath(job, inDocTotals, step1Format, EncodeMapper.class);
+        job.setReducerClass(EncodeReducer.class);
+        // The term is the part of the key before the tab, as the docId is for the fused job
+        job.setPartitionerClass(FusedTFIDF.DocPartitioner.class);
+        job.setGroupingComparatorClass(FusedTFIDF.DocGroupingComparator.class);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(IntWritable.class);
+
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(VIntWritable.class);
+
+        job.getConfiguration().setBoolean(IntermediateFormat.BINARY_KEY, true);
+        IntermediateFormat.setOutput(job, outEncoded);
+
+        return job;
+    }
+}
@@ -0,0 +1,143 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Sorted, unboxed table of byte strings where a string's index is its id: the term and document tables of
+ * {@link IdDictionary}. Same layout as {@link IdfDictionary} without the values: one byte[] block holding every
+ * string in unsigned byte order (Text order) and an int[] of start offsets, so a table costs (bytes + 4) per
+ * entry, id -> bytes is two array reads and bytes -> id is a binary search.
+ *
+ * File format: "IDTB", version int, string bytes..., int offsets[count + 1], int count, long blockLength.
+ */
+public class IdTable {
+
+    private static final int MAGIC = 0x49445442; // "IDTB"
+    private static final int VERSION = 1;
+
+    private final byte[] block;
+    private final int[] offsets;
+
+    private IdTable(byte[] block, int[] offsets) {
+        this.block = block;
+        this.offsets = offsets;
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public long memoryBytes() {
+        return block.length + 4L * offsets.length;
+    }
+
+    /** Appends the bytes of entry i to t. */
+    public void appendTo(Text t, int i) {
+        t.append(block, offsets[i], offsets[i + 1] - offsets[i]);
+    }
+
+    /** Returns the index of the string, or -1 when it is not in the table. */
+    public int indexOf(byte[] b, int start, int len) {
+        int lo = 0, hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareBytes(block, offsets[mid], offsets[mid + 1] - offsets[mid], b, start, len);
+            if (c < 0) lo = mid + 1;
+            else if (c > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    private static int compareBytes(byte[] a, int as, int al, byte[] b, int bs, int bl) {
+        int n = Math.min(al, bl);
+        for (int j = 0; j < n; j++) {
+            int c = (a[as + j] & 0xff) - (b[bs + j] & 0xff);
+            if (c != 0) return c;
+        }
+        return al - bl;
+    }
+
+    public static IdTable load(Configuration conf, Path p) throws IOException {
+        FileSystem fs = p.getFileSystem(conf);
+        try (FSDataInputStream in = fs.open(p)) {
+            return read(in, fs.getFileStatus(p).getLen());
+        }
+    }
+
+    public static IdTable read(FSDataInputStream in, long fileLength) throws IOException {
+        if (fileLength < 20) throw new IOException("Truncated id table file");
+        if (in.readInt() != MAGIC) throw new IOException("Not an id table file");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported id table version " + version);
+        // Counts live in the footer because the writer streams strings before it knows them
+        in.seek(fileLength - 12);
+        int count = in.readInt();
+        long blockLen = in.readLong();
+        if (blockLen > Integer.MAX_VALUE) throw new IOException("id table block too large");
+        in.seek(8);
+        byte[] block = new byte[(int) blockLen];
+        in.readFully(block);
+        DataInputStream tables = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i <= count; i++) offsets[i] = tables.readInt();
+        return new IdTable(block, offsets);
+    }
+
+    /**
+     * Streams strings, which must arrive in strictly increasing Text order, to a table file. Keeps the last
+     * string and 4 bytes per entry until close.
+     */
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private int[] offsets = new int[1024];
+        private int count = 0;
+        private long blockLen = 0;
+        private final Text last = new Text();
+
+        public Writer(OutputStream raw) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(raw, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public void append(Text s) throws IOException {
+            if (count > 0 && compareBytes(last.getBytes(), 0, last.getLength(), s.getBytes(), 0, s.getLength()) >= 0) {
+                throw new IOException("id table entries out of order at index " + count + ": " + s);
+            }
+            if (count + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            if (blockLen + s.getLength() > Integer.MAX_VALUE) throw new IOException("id table block too large");
+            offsets[count] = (int) blockLen;
+            out.write(s.getBytes(), 0, s.getLength());
+            blockLen += s.getLength();
+            last.set(s);
+            count++;
+        }
+
+        /** Entries appended so far; the next append gets this index. */
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            offsets[count] = (int) blockLen;
+            for (int i = 0; i <= count; i++) out.writeInt(offsets[i]);
+            out.writeInt(count);
+            out.writeLong(blockLen);
+            out.close();
+        }
+    }
+}
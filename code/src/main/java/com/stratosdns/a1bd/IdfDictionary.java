@@ -0,0 +1,227 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact, unboxed term -> idf table for Step4's map-side join.
+ *
+ * Layout in memory: all term bytes in one sorted byte[] block, an int[] of term start offsets and a double[]
+ * of idf values; lookups binary-search the block with unsigned byte comparison (the same order as Text keys).
+ * Memory per term is (term bytes + 12) bytes, e.g. ~20 B for an 8-byte term. The HashMap<String, Double> path
+ * needs ~100 B plus the term bytes (node, table slot, String, byte[] and Double headers) on a 64-bit JVM.
+ *
+ * File format (idfdict-r-NNNNN, one per Step3 reducer, terms already in reducer sort order):
+ * "IDFD", version int, term bytes..., int offsets[count + 1], double values[count], int count, long blockLength.
+ */
+public class IdfDictionary {
+
+    public static final String FILE_PREFIX = "idfdict";
+    private static final int MAGIC = 0x49444644; // "IDFD"
+    private static final int VERSION = 1;
+
+    private final byte[] block;
+    private final int[] offsets;
+    private final double[] values;
+
+    private IdfDictionary(byte[] block, int[] offsets, double[] values) {
+        this.block = block;
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public long memoryBytes() {
+        return block.length + 4L * offsets.length + 8L * values.length;
+    }
+
+    /** Returns the idf of the term, or NaN when the term is unknown. */
+    public double get(byte[] b, int start, int len) {
+        int lo = 0, hi = values.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid, b, start, len);
+            if (c < 0) lo = mid + 1;
+            else if (c > 0) hi = mid - 1;
+            else return values[mid];
+        }
+        return Double.NaN;
+    }
+
+    public double get(Text term) {
+        return get(term.getBytes(), 0, term.getLength());
+    }
+
+    public double get(String term) {
+        byte[] b = term.getBytes(StandardCharsets.UTF_8);
+        return get(b, 0, b.length);
+    }
+
+    private int compare(int i, byte[] b, int start, int len) {
+        return compareBytes(block, offsets[i], offsets[i + 1] - offsets[i], b, start, len);
+    }
+
+    private static int compareBytes(byte[] a, int as, int al, byte[] b, int bs, int bl) {
+        int n = Math.min(al, bl);
+        for (int j = 0; j < n; j++) {
+            int c = (a[as + j] & 0xff) - (b[bs + j] & 0xff);
+            if (c != 0) return c;
+        }
+        return al - bl;
+    }
+
+    // Loads every part and merges them into a single sorted table
+    public static IdfDictionary load(Configuration conf, List<Path> parts) throws IOException {
+        IdfDictionary[] loaded = new IdfDictionary[parts.size()];
+        for (int i = 0; i < loaded.length; i++) {
+            Path p = parts.get(i);
+            FileSystem fs = p.getFileSystem(conf);
+            try (FSDataInputStream in = fs.open(p)) {
+                loaded[i] = read(in, fs.getFileStatus(p).getLen());
+            }
+        }
+        return merge(loaded);
+    }
+
+    public static IdfDictionary read(FSDataInputStream in, long fileLength) throws IOException {
+        if (fileLength < 20) throw new IOException("Truncated idf dictionary file");
+        if (in.readInt() != MAGIC) throw new IOException("Not an idf dictionary file");
+        int version = in.readInt();
+        if (version != VERSION) throw new IOException("Unsupported idf dictionary version " + version);
+        // Counts live in the footer because the writer streams terms before it knows them
+        in.seek(fileLength - 12);
+        int count = in.readInt();
+        long blockLen = in.readLong();
+        if (blockLen > Integer.MAX_VALUE) throw new IOException("idf dictionary block too large");
+        in.seek(8);
+        byte[] block = new byte[(int) blockLen];
+        in.readFully(block);
+        DataInputStream tables = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i <= count; i++) offsets[i] = tables.readInt();
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) values[i] = tables.readDouble();
+        return new IdfDictionary(block, offsets, values);
+    }
+
+    // k-way merge of per-reducer tables; parts hold disjoint terms
+    private static IdfDictionary merge(IdfDictionary[] parts) {
+        if (parts.length == 1) return parts[0];
+        int count = 0;
+        long bytes = 0;
+        for (IdfDictionary d : parts) {
+            count += d.values.length;
+            bytes += d.block.length;
+        }
+        if (bytes > Integer.MAX_VALUE) throw new IllegalStateException("idf dictionary block too large");
+        byte[] block = new byte[(int) bytes];
+        int[] offsets = new int[count + 1];
+        double[] values = new double[count];
+        int[] pos = new int[parts.length];
+        int out = 0, at = 0;
+        while (out < count) {
+            int best = -1;
+            for (int k = 0; k < parts.length; k++) {
+                if (pos[k] >= parts[k].values.length) continue;
+                if (best < 0 || compareTerms(parts[k], pos[k], parts[best], pos[best]) < 0) best = k;
+            }
+            IdfDictionary d = parts[best];
+            int i = pos[best]++;
+            int len = d.offsets[i + 1] - d.offsets[i];
+            System.arraycopy(d.block, d.offsets[i], block, at, len);
+            offsets[out] = at;
+            values[out] = d.values[i];
+            at += len;
+            out++;
+        }
+        offsets[count] = at;
+        return new IdfDictionary(block, offsets, values);
+    }
+
+    private static int compareTerms(IdfDictionary a, int i, IdfDictionary b, int j) {
+        return compareBytes(a.block, a.offsets[i], a.offsets[i + 1] - a.offsets[i],
+                b.block, b.offsets[j], b.offsets[j + 1] - b.offsets[j]);
+    }
+
+    /** Builds a table in memory from (term, idf) pairs appended in sorted order, e.g. a merge of sorted parts. */
+    public static class Builder {
+        private byte[] block = new byte[1 << 16];
+        private int[] offsets = new int[1024];
+        private double[] values = new double[1024];
+        private int count = 0;
+        private int blockLen = 0;
+
+        public void append(byte[] b, int start, int len, double idf) {
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            if ((long) blockLen + len > Integer.MAX_VALUE) throw new IllegalStateException("idf dictionary block too large");
+            if (blockLen + len > block.length) block = Arrays.copyOf(block, (int) Math.min(Integer.MAX_VALUE, Math.max(2L * block.length, (long) blockLen + len)));
+            System.arraycopy(b, start, block, blockLen, len);
+            offsets[count] = blockLen;
+            values[count] = idf;
+            blockLen += len;
+            count++;
+        }
+
+        public IdfDictionary build() {
+            offsets[count] = blockLen;
+            return new IdfDictionary(Arrays.copyOf(block, blockLen), Arrays.copyOf(offsets, count + 1), Arrays.copyOf(values, count));
+        }
+    }
+
+    /** Streams sorted (term, idf) pairs to a dictionary file; keeps only 12 bytes per term until close. */
+    public static class Writer implements AutoCloseable {
+        private final DataOutputStream out;
+        private int[] offsets = new int[1024];
+        private double[] values = new double[1024];
+        private int count = 0;
+        private long blockLen = 0;
+
+        public Writer(OutputStream raw) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(raw, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public void append(Text term, double idf) throws IOException {
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            if (blockLen + term.getLength() > Integer.MAX_VALUE) throw new IOException("idf dictionary block too large");
+            offsets[count] = (int) blockLen;
+            values[count] = idf;
+            out.write(term.getBytes(), 0, term.getLength());
+            blockLen += term.getLength();
+            count++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            offsets[count] = (int) blockLen;
+            for (int i = 0; i <= count; i++) out.writeInt(offsets[i]);
+            for (int i = 0; i < count; i++) out.writeDouble(values[i]);
+            out.writeInt(count);
+            out.writeLong(blockLen);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.compress.SplittableCompressionCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.function.ObjDoubleConsumer;
+
+/**
+ * Chooses how step boundaries (tfraw, doctotal, step2_tf, step3_idf) are stored.
+ *
+ * Text (default): tab-separated lines, re-parsed by the next job.
+ * Binary (pipeline.intermediate.binary=true): block-compressed SequenceFiles of compact Writables
+ * (TermDocWritable keys, VIntWritable counts, DoubleWritable values). Final outputs stay text.
+ *
+ * Compression (see {@link #setCompression}) uses Hadoop's own job settings, so every job the Driver builds from
+ * the same Configuration inherits it: map outputs with the map codec, and every step's output files with the
+ * output codec (text gets the codec's extension, SequenceFiles use it per block). The readers below
+ * decompress by file extension, so side readers such as Reducer3.countDocs and Mapper4.loadIdf are unaffected.
+ */
+public class IntermediateFormat {
+
+    public static final String BINARY_KEY = "pipeline.intermediate.binary";
+
+    public static boolean isBinary(Configuration conf) {
+        return conf.getBoolean(BINARY_KEY, false);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public static Class<? extends FileOutputFormat> outputFormat(Configuration conf) {
+        return isBinary(conf) ? SequenceFileOutputFormat.class : TextOutputFormat.class;
+    }
+
+    public static void setInput(Job job, Path... inputs) throws IOException {
+        for (Path p : inputs) FileInputFormat.addInputPath(job, p);
+        job.setInputFormatClass(isBinary(job.getConfiguration()) ? SequenceFileInputFormat.class : TextInputFormat.class);
+    }
+
+    public static void setOutput(Job job, Path out) {
+        FileOutputFormat.setOutputPath(job, out);
+        job.setOutputFormatClass(outputFormat(job.getConfiguration()));
+        if (isBinary(job.getConfiguration())) {
+            FileOutputFormat.setCompressOutput(job, true);
+            SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+        }
+    }
+
+    /**
+     * Sets map-output and step-output compression on conf; codec names are Hadoop aliases ("snappy", "lz4",
+     * "bzip2", "zstd", "gzip", "deflate") or class names, and "none" or null leaves that side unchanged.
+     * Each codec is probed once so a missing library fails here rather than in the first task.
+     */
+    public static void setCompression(Configuration conf, String mapCodec, String outputCodec) throws IOException {
+        if (mapCodec != null && !"none".equals(mapCodec)) {
+            conf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, true);
+            conf.setClass(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC, codecClass(conf, mapCodec), CompressionCodec.class);
+        }
+        if (outputCodec != null && !"none".equals(outputCodec)) {
+            Class<? extends CompressionCodec> codec = codecClass(conf, outputCodec);
+            conf.setBoolean(FileOutputFormat.COMPRESS, true);
+            conf.setClass(FileOutputFormat.COMPRESS_CODEC, codec, CompressionCodec.class);
+            conf.set(FileOutputFormat.COMPRESS_TYPE, SequenceFile.CompressionType.BLOCK.name());
+            if (!SplittableCompressionCodec.class.isAssignableFrom(codec)) {
+                // SequenceFiles compress per block and stay splittable; text files compressed as a whole do not
+                System.err.println("WARN: " + codec.getSimpleName() + " text files are not splittable; each "
+                        + (isBinary(conf) ? "step4/top-N" : "output") + " file becomes one map task downstream (bzip2 is splittable)");
+            }
+        }
+    }
+
+    private static Class<? extends CompressionCodec> codecClass(Configuration conf, String name) throws IOException {
+        Class<? extends CompressionCodec> c = new CompressionCodecFactory(conf).getCodecClassByName(name);
+        if (c == null) throw new IOException("Unknown compression codec: " + name);
+        CompressionCodec codec = ReflectionUtils.newInstance(c, conf);
+        try (CompressionOutputStream out = codec.createOutputStream(new ByteArrayOutputStream())) {
+            out.write(new byte[]{'o', 'k'});
+        } catch (IOException | RuntimeException | LinkageError e) {
+            throw new IOException("Compression codec " + name + " is not usable here: " + e, e);
+        }
+        return c;
+    }
+
+    public static boolean isSequenceFile(FileSystem fs, Path p) throws IOException {
+        byte[] magic = new byte[3];
+        try (FSDataInputStream in = fs.open(p)) {
+            int n = in.read(magic);
+            return n == 3 && magic[0] == 'S' && magic[1] == 'E' && magic[2] == 'Q';
+        }
+    }
+
+    // Reads "key<TAB>value" lines or (Text, numeric Writable) SequenceFile entries, e.g. step3_idf parts or doctotal
+    public static void readDoublePairs(Configuration conf, Path p, ObjDoubleConsumer<String> visitor) throws IOException {
+        FileSystem fs = p.getFileSystem(conf);
+        if (isSequenceFile(fs, p)) {
+            try (SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(p))) {
+                Text k = new Text();
+                if (r.getValueClass() == DoubleWritable.class) {
+                    DoubleWritable v = new DoubleWritable();
+                    while (r.next(k, v)) visitor.accept(k.toString(), v.get());
+                } else {
+                    Writable v = (Writable) ReflectionUtils.newInstance(r.getValueClass(), conf);
+                    while (r.next(k, v)) visitor.accept(k.toString(), Double.parseDouble(v.toString()));
+                }
+            }
+        } else {
+            forEachLine(conf, p, line -> {
+                String[] parts = line.split("\t");
+                if (parts.length == 2) visitor.accept(parts[0], Double.parseDouble(parts[1]));
+            });
+        }
+    }
+
+    public static void forEachLine(Configuration conf, Path p, Consumer<String> visitor) throws IOException {
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(p);
+        Decompressor decompressor = codec == null ? null : CodecPool.getDecompressor(codec);
+        try (InputStream in = open(conf, p, codec, decompressor);
+             BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) visitor.accept(line);
+        } finally {
+            if (decompressor != null) CodecPool.returnDecompressor(decompressor);
+        }
+    }
+
+    // The file's bytes, decompressed when its extension names a codec
+    private static InputStream open(Configuration conf, Path p, CompressionCodec codec, Decompressor decompressor) throws IOException {
+        FSDataInputStream in = p.getFileSystem(conf).open(p);
+        if (codec == null) return in;
+        try {
+            return codec.createInputStream(in, decompressor);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * {stored bytes, uncompressed bytes} of the data files in a step directory (hidden and _-prefixed files
+     * skipped). Uncompressed means decoded text, or the raw key/value bytes of SequenceFile records.
+     */
+    public static long[] storedAndRawBytes(Configuration conf, Path dir) throws IOException {
+        FileSystem fs = dir.getFileSystem(conf);
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+        long stored = 0, raw = 0;
+        for (FileStatus st : fs.listStatus(dir)) {
+            String name = st.getPath().getName();
+            if (!st.isFile() || name.startsWith("_") || name.startsWith(".")) continue;
+            stored += st.getLen();
+            CompressionCodec codec = codecs.getCodec(st.getPath());
+            if (st.getLen() > 0 && isSequenceFile(fs, st.getPath())) {
+                try (SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(st.getPath()))) {
+                    DataOutputBuffer key = new DataOutputBuffer();
+                    SequenceFile.ValueBytes value = r.createValueBytes();
+                    int n;
+                    while ((n = r.nextRaw(key, value)) >= 0) {
+                        raw += n;
+                        key.reset();
+                    }
+                }
+            } else if (codec != null) {
+                Decompressor decompressor = CodecPool.getDecompressor(codec);
+                try (InputStream in = open(conf, st.getPath(), codec, decompressor)) {
+                    byte[] buf = new byte[1 << 16];
+                    int n;
+                    while ((n = in.read(buf)) > 0) raw += n;
+                } finally {
+                    CodecPool.returnDecompressor(decompressor);
+                }
+            } else {
+                raw += st.getLen();
+            }
+        }
+        return new long[]{stored, raw};
+    }
+
+    // Number of records (lines or SequenceFile entries) in one step output file
+    public static long countRecords(Configuration conf, Path p) throws IOException {
+        FileSystem fs = p.getFileSystem(conf);
+        long count = 0;
+        if (isSequenceFile(fs, p)) {
+            try (SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(p))) {
+                Writable k = (Writable) ReflectionUtils.newInstance(r.getKeyClass(), conf);
+                Writable v = (Writable) ReflectionUtils.newInstance(r.getValueClass(), conf);
+                while (r.next(k, v)) count++;
+            }
+        } else {
+            long[] lines = {0};
+            forEachLine(conf, p, line -> lines[0]++);
+            count = lines[0];
+        }
+        return count;
+    }
+}
@@ -0,0 +1,487 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.Text;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Term-partitioned inverted index over step4_tfidf, built by {@link Job6_InvertedIndex} and queried in-process.
+ *
+ * An index directory holds one shard per Job6 reducer (index-r-NNNNN) and {@code docs}, the document ids in
+ * ordinal order. Postings are kept in document order so lists can be skipped through:
+ * per term, varint df, a skip table of ceil(df / 128) blocks (varint gap of the block's last doc, varint block
+ * byte length), then the blocks, each posting a varint doc gap and a 2-byte impact (the tfidf quantized against
+ * the term's max score, relative error <= 1/65535 of that max).
+ * The term dictionary follows the postings: term bytes, int termOffsets[count + 1], long postingOffsets[count],
+ * float maxScores[count]; footer: long dictStart, int count, int termBytes, int magic. Shards are limited to 2 GB.
+ *
+ * A query memory-maps every shard and ranks documents by the sum of their tfidf over the query terms with
+ * MaxScore: lists are ordered by max score, and the lowest lists whose summed maxima cannot lift a document
+ * above the current k-th score only get probed (with skips) for documents found in the others.
+ */
+public class InvertedIndex implements Closeable {
+
+    public static final String FILE_PREFIX = "index";
+    public static final String DOCS_FILE = "docs";
+    public static final int BLOCK = 128;
+    private static final int MAGIC = 0x54494458; // "TIDX"
+    private static final int VERSION = 1;
+    private static final int FOOTER = 20;
+    private static final float IMPACT_MAX = 65535f;
+
+    public static final class Hit {
+        public final String docId;
+        public final double score;
+
+        Hit(String docId, double score) {
+            this.docId = docId;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return docId + "\t" + score;
+        }
+    }
+
+    private final String[] docs;
+    private final Shard[] shards;
+
+    private InvertedIndex(String[] docs, Shard[] shards) {
+        this.docs = docs;
+        this.shards = shards;
+    }
+
+    /** Opens a local index directory (e.g. copied out of HDFS with {@code hadoop fs -get}). */
+    public static InvertedIndex open(Path dir) throws IOException {
+        List<String> docs = Files.readAllLines(dir.resolve(DOCS_FILE), StandardCharsets.UTF_8);
+        List<Shard> shards = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, FILE_PREFIX + "-r-*")) {
+            for (Path p : files) shards.add(new Shard(p));
+        }
+        if (shards.isEmpty()) throw new IOException("No " + FILE_PREFIX + "-r-* shards in " + dir);
+        return new InvertedIndex(docs.toArray(new String[0]), shards.toArray(new Shard[0]));
+    }
+
+    public int numDocs() {
+        return docs.length;
+    }
+
+    public long numTerms() {
+        long n = 0;
+        for (Shard s : shards) n += s.count;
+        return n;
+    }
+
+    /** Number of documents containing the term (0 when unknown). */
+    public int docFreq(String term) {
+        Cursor c = cursor(term);
+        return c == null ? 0 : c.df;
+    }
+
+    /** Tokenizes the query like the corpus and returns its top-k documents. */
+    public List<Hit> search(String query, int k) {
+        return search(Tokenizer.tokenize(query), k);
+    }
+
+    /** Top-k documents by the sum of tfidf over the (distinct) terms, best first; ties go to the earlier doc. */
+    public List<Hit> search(Collection<String> terms, int k) {
+        List<Cursor> found = new ArrayList<>();
+        for (String t : new LinkedHashSet<>(terms)) {
+            Cursor c = cursor(t);
+            if (c != null) found.add(c);
+        }
+        if (found.isEmpty() || k <= 0) return Collections.emptyList();
+        found.sort(Comparator.comparingDouble(c -> c.max));
+        Cursor[] c = found.toArray(new Cursor[0]);
+        int n = c.length;
+        // ub[i]: the most lists 0..i can add to any document
+        double[] ub = new double[n];
+        for (int i = 0; i < n; i++) {
+            ub[i] = (i == 0 ? 0 : ub[i - 1]) + c[i].max;
+            c[i].next();
+        }
+
+        TopK top = new TopK(k);
+        int essential = 0; // lists [essential, n) can lift a document above the threshold on their own
+        while (true) {
+            int d = Integer.MAX_VALUE;
+            for (int i = essential; i < n; i++) d = Math.min(d, c[i].doc);
+            if (d == Integer.MAX_VALUE) break;
+            double s = 0;
+            for (int i = essential; i < n; i++) {
+                if (c[i].doc == d) {
+                    s += c[i].score();
+                    c[i].next();
+                }
+            }
+            boolean pruned = false;
+            for (int i = essential - 1; i >= 0; i--) {
+                if (top.full() && s + ub[i] <= top.threshold()) {
+                    pruned = true;
+                    break;
+                }
+                c[i].advance(d);
+                if (c[i].doc == d) s += c[i].score();
+            }
+            if (!pruned && top.offer(d, s)) {
+                while (essential < n && top.full() && ub[essential] <= top.threshold()) essential++;
+            }
+        }
+        return top.hits(docs);
+    }
+
+    private Cursor cursor(String term) {
+        byte[] b = term.getBytes(StandardCharsets.UTF_8);
+        for (Shard s : shards) {
+            int i = s.find(b);
+            if (i >= 0) return s.cursor(i);
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        // mapped buffers are released with the index
+    }
+
+    private static final class Shard {
+        final ByteBuffer buf;
+        final int count;
+        final int termsStart;
+        final int termOffsetsStart;
+        final int postingOffsetsStart;
+        final int maxScoresStart;
+
+        Shard(Path p) throws IOException {
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                long size = ch.size();
+                if (size > Integer.MAX_VALUE) throw new IOException("Index shard larger than 2 GB: " + p);
+                if (size < 8 + FOOTER) throw new IOException("Truncated index shard: " + p);
+                MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (m.getInt(0) != MAGIC || m.getInt((int) size - 4) != MAGIC) throw new IOException("Not an index shard: " + p);
+                int version = m.getInt(4);
+                if (version != VERSION) throw new IOException("Unsupported index version " + version + ": " + p);
+                int footer = (int) size - FOOTER;
+                termsStart = (int) m.getLong(footer);
+                count = m.getInt(footer + 8);
+                int termBytes = m.getInt(footer + 12);
+                termOffsetsStart = termsStart + termBytes;
+                postingOffsetsStart = termOffsetsStart + 4 * (count + 1);
+                maxScoresStart = postingOffsetsStart + 8 * count;
+                buf = m;
+            }
+        }
+
+        // Binary search on unsigned term bytes (the reducer's Text order)
+        int find(byte[] b) {
+            int lo = 0, hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = compare(mid, b);
+                if (c < 0) lo = mid + 1;
+                else if (c > 0) hi = mid - 1;
+                else return mid;
+            }
+            return -1;
+        }
+
+        private int compare(int i, byte[] b) {
+            int start = termsStart + buf.getInt(termOffsetsStart + 4 * i);
+            int len = termsStart + buf.getInt(termOffsetsStart + 4 * (i + 1)) - start;
+            int n = Math.min(len, b.length);
+            for (int j = 0; j < n; j++) {
+                int c = (buf.get(start + j) & 0xff) - (b[j] & 0xff);
+                if (c != 0) return c;
+            }
+            return len - b.length;
+        }
+
+        Cursor cursor(int i) {
+            return new Cursor(buf.duplicate(), (int) buf.getLong(postingOffsetsStart + 8 * i), buf.getFloat(maxScoresStart + 4 * i));
+        }
+    }
+
+    // Forward-only iterator over one posting list; doc is Integer.MAX_VALUE once exhausted
+    private static final class Cursor {
+        final ByteBuffer buf;
+        final float max;
+        final int df;
+        final int[] blockLast;
+        final int[] blockStart;
+        int block = -1;
+        int left = 0;
+        int doc = -1;
+        int impact;
+
+        Cursor(ByteBuffer buf, int pos, float max) {
+            this.buf = buf;
+            this.max = max;
+            buf.position(pos);
+            df = readVInt(buf);
+            int blocks = (df + BLOCK - 1) / BLOCK;
+            blockLast = new int[blocks];
+            int[] lengths = new int[blocks];
+            int last = 0;
+            for (int b = 0; b < blocks; b++) {
+                last += readVInt(buf);
+                blockLast[b] = last;
+                lengths[b] = readVInt(buf);
+            }
+            blockStart = new int[blocks];
+            int at = buf.position();
+            for (int b = 0; b < blocks; b++) {
+                blockStart[b] = at;
+                at += lengths[b];
+            }
+        }
+
+        double score() {
+            return impact * (double) max / IMPACT_MAX;
+        }
+
+        void next() {
+            if (left == 0) {
+                enter(block + 1);
+                if (doc == Integer.MAX_VALUE) return;
+            }
+            doc += readVInt(buf);
+            impact = buf.getShort() & 0xffff;
+            left--;
+        }
+
+        // Moves to the first posting with doc >= target, skipping whole blocks by their last doc
+        void advance(int target) {
+            if (doc >= target) return;
+            if (block < 0 || blockLast[block] < target) {
+                int b = block + 1;
+                while (b < blockLast.length && blockLast[b] < target) b++;
+                enter(b);
+                if (doc == Integer.MAX_VALUE) return;
+            }
+            do next(); while (doc < target);
+        }
+
+        private void enter(int b) {
+            block = b;
+            if (b >= blockLast.length) {
+                doc = Integer.MAX_VALUE;
+                left = 0;
+                return;
+            }
+            buf.position(blockStart[b]);
+            doc = b == 0 ? 0 : blockLast[b - 1];
+            left = Math.min(BLOCK, df - b * BLOCK);
+        }
+    }
+
+    // Bounded min-heap of (score, doc); the root is the worst kept entry
+    private static final class TopK {
+        final int k;
+        final double[] scores;
+        final int[] docs;
+        int size = 0;
+
+        TopK(int k) {
+            this.k = k;
+            scores = new double[k];
+            docs = new int[k];
+        }
+
+        boolean full() {
+            return size == k;
+        }
+
+        double threshold() {
+            return scores[0];
+        }
+
+        // Documents arrive in increasing order, so an equal score never displaces an earlier document
+        boolean offer(int doc, double score) {
+            if (size < k) {
+                scores[size] = score;
+                docs[size] = doc;
+                int i = size++;
+                while (i > 0) {
+                    int p = (i - 1) >>> 1;
+                    if (!worse(i, p)) break;
+                    swap(i, p);
+                    i = p;
+                }
+                return true;
+            }
+            if (score <= scores[0]) return false;
+            scores[0] = score;
+            docs[0] = doc;
+            int i = 0;
+            while (true) {
+                int l = 2 * i + 1, r = l + 1, w = i;
+                if (l < size && worse(l, w)) w = l;
+                if (r < size && worse(r, w)) w = r;
+                if (w == i) break;
+                swap(i, w);
+                i = w;
+            }
+            return true;
+        }
+
+        private boolean worse(int a, int b) {
+            return scores[a] != scores[b] ? scores[a] < scores[b] : docs[a] > docs[b];
+        }
+
+        private void swap(int a, int b) {
+            double s = scores[a];
+            scores[a] = scores[b];
+            scores[b] = s;
+            int d = docs[a];
+            docs[a] = docs[b];
+            docs[b] = d;
+        }
+
+        List<Hit> hits(String[] names) {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> worse(a, b) ? 1 : worse(b, a) ? -1 : 0);
+            List<Hit> out = new ArrayList<>(size);
+            for (int i : order) out.add(new Hit(names[docs[i]], scores[i]));
+            return out;
+        }
+    }
+
+    static int readVInt(ByteBuffer buf) {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            v |= (b & 0x7f) << shift;
+            if (b >= 0) return v;
+        }
+    }
+
+    /** Streams a shard: terms must arrive in sorted order, each with its postings in increasing doc order. */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final DataOutputStream terms;
+        private final ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        private int[] termOffsets = new int[1024];
+        private long[] postingOffsets = new long[1024];
+        private float[] maxScores = new float[1024];
+        private int count = 0;
+        private long postings = 0;
+
+        public Writer(OutputStream raw) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(raw, 1 << 16));
+            terms = new DataOutputStream(termBytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        public long getPostings() {
+            return postings;
+        }
+
+        public void append(Text term, int[] docs, float[] scores, int n) throws IOException {
+            if (count + 1 >= termOffsets.length) {
+                termOffsets = Arrays.copyOf(termOffsets, termOffsets.length * 2);
+                postingOffsets = Arrays.copyOf(postingOffsets, postingOffsets.length * 2);
+                maxScores = Arrays.copyOf(maxScores, maxScores.length * 2);
+            }
+            float max = 0f;
+            for (int i = 0; i < n; i++) max = Math.max(max, scores[i]);
+            termOffsets[count] = terms.size();
+            postingOffsets[count] = out.size() & 0xffffffffL;
+            maxScores[count] = max;
+            terms.write(term.getBytes(), 0, term.getLength());
+            count++;
+            postings += n;
+
+            writeVInt(out, n);
+            int blocks = (n + BLOCK - 1) / BLOCK;
+            int[] lengths = new int[blocks];
+            blockBytes.reset();
+            DataOutputStream block = new DataOutputStream(blockBytes);
+            int prev = 0;
+            for (int b = 0; b < blocks; b++) {
+                int before = block.size();
+                for (int i = b * BLOCK; i < Math.min(n, (b + 1) * BLOCK); i++) {
+                    writeVInt(block, docs[i] - prev);
+                    prev = docs[i];
+                    block.writeShort(max > 0f ? Math.round(scores[i] / max * IMPACT_MAX) : 0);
+                }
+                lengths[b] = block.size() - before;
+            }
+            int last = 0;
+            for (int b = 0; b < blocks; b++) {
+                int blockLast = docs[Math.min(n, (b + 1) * BLOCK) - 1];
+                writeVInt(out, blockLast - last);
+                writeVInt(out, lengths[b]);
+                last = blockLast;
+            }
+            blockBytes.writeTo(out);
+            // DataOutputStream.size() saturates at Integer.MAX_VALUE
+            if (out.size() == Integer.MAX_VALUE) throw new IOException("Index shard larger than 2 GB");
+        }
+
+        @Override
+        public void close() throws IOException {
+            long dictStart = out.size() & 0xffffffffL;
+            termOffsets[count] = terms.size();
+            termBytes.writeTo(out);
+            for (int i = 0; i <= count; i++) out.writeInt(termOffsets[i]);
+            for (int i = 0; i < count; i++) out.writeLong(postingOffsets[i]);
+            for (int i = 0; i < count; i++) out.writeFloat(maxScores[i]);
+            out.writeLong(dictStart);
+            out.writeInt(count);
+            out.writeInt(termOffsets[count]);
+            out.writeInt(MAGIC);
+            out.close();
+        }
+
+        private static void writeVInt(DataOutputStream out, int v) throws IOException {
+            while ((v & ~0x7f) != 0) {
+                out.writeByte((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte(v);
+        }
+    }
+
+    /** Usage: InvertedIndex <local index dir> <k> <query words...> */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: InvertedIndex <local_index_dir> <k> <query words...>");
+            System.exit(1);
+        }
+        try (InvertedIndex index = open(Paths.get(args[0]))) {
+            int k = Integer.parseInt(args[1]);
+            String query = String.join(" ", Arrays.asList(args).subList(2, args.length));
+            index.search(query, k); // first query pays for page faults and class loading
+            long t0 = System.nanoTime();
+            List<Hit> hits = index.search(query, k);
+            long t1 = System.nanoTime();
+            for (Hit h : hits) System.out.println(h);
+            System.err.printf("%d hit(s) in %.3f ms (%d docs, %d terms)%n", hits.size(), (t1 - t0) / 1e6, index.numDocs(), index.numTerms());
+        }
+    }
+}
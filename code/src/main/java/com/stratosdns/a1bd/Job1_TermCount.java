@@ -3,62 +3,289 @@ package com.stratosdns.a1bd;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 import java.io.IOException;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Job1_TermCount {
 
-    public static class Mapper1 extends Mapper<LongWritable, Text, Text, IntWritable> {
+    // Records the mapper would have emitted without aggregation vs. records it actually emitted,
+    // and the number of documents written to doctotal (N for Step3)
+    public enum Counters { RECORDS_BEFORE_AGGREGATION, RECORDS_AFTER_AGGREGATION, DOCUMENTS }
+
+    public static final String INMAPPER_KEY = "termcount.inmapper";
+    public static final String INMAPPER_MAX_MB_KEY = "termcount.inmapper.maxMemoryMB";
+
+    // Rough heap cost of one HashMap entry (entry + Text + byte[] + int[] headers), excluding term bytes
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    public static class Mapper1 extends Mapper<Object, Text, Text, IntWritable> {
         private static final IntWritable ONE = new IntWritable(1);
-        private String docId;
+        private final Text docId = new Text();
+        private Tokenizer tokenizer;
+        private Context ctx;
+
+        // Reused output keys: "T#docId\t" prefix + token bytes, and the constant "D#docId"
+        private byte[] termPrefix;
+        private final Text termKey = new Text();
+        private Text docKey;
+        private final IntWritable count = new IntWritable();
+
+        // In-mapper aggregation state (only used when termcount.inmapper=true)
+        private boolean inMapper;
+        private long maxBytes;
+        private long usedBytes = 0;
+        private final HashMap<Text, int[]> counts = new HashMap<>();
+        private final Text probe = new Text();
+        private int docTotal = 0;
+        private long tokens = 0;
+        private long bytes = 0;
+
+        // Multithreaded mode (pipeline.map.threads > 1, implies in-mapper aggregation): pool threads tokenize
+        // batches of lines into their own maps, merged into counts at document ends and memory flushes
+        private Configuration conf;
+        private int threads;
+        private LinePipeline<CountWorker> pipeline;
+        private final AtomicLong workerBytes = new AtomicLong();
+
+        private final Tokenizer.TokenSink emitSink = (buf, s, l) -> {
+            termKey.set(termPrefix, 0, termPrefix.length);
+            termKey.append(buf, s, l);
+            ctx.write(termKey, ONE);  // term occurrence
+            ctx.write(docKey, ONE);   // doc total counter
+        };
+
+        private final Tokenizer.TokenSink countSink = (buf, s, l) -> {
+            probe.set(buf, s, l);
+            int[] c = counts.get(probe);
+            if (c == null) {
+                counts.put(new Text(probe), new int[]{1});
+                usedBytes += ENTRY_OVERHEAD_BYTES + l;
+            } else {
+                c[0]++;
+            }
+        };
 
         @Override
         protected void setup(Context context) throws IOException {
-            FileSplit split = (FileSplit) context.getInputSplit();
-            Path p = split.getPath();
-            docId = p.getName(); // document identifier is the filename
+            // document identifier is the filename; DocumentInputFormat instead passes it as the key of every line
+            if (context.getInputSplit() instanceof FileSplit) {
+                startDocument(((FileSplit) context.getInputSplit()).getPath().getName());
+            }
+            conf = context.getConfiguration();
+            tokenizer = Tokenizer.fromConf(conf);
+            threads = LinePipeline.threads(conf);
+            inMapper = threads > 1 || conf.getBoolean(INMAPPER_KEY, false);
+            maxBytes = conf.getLong(INMAPPER_MAX_MB_KEY, 32) * 1024L * 1024L;
+            if (threads > 1) {
+                pipeline = new LinePipeline<>(threads, LinePipeline.batchLines(conf),
+                        () -> new CountWorker(Tokenizer.fromConf(conf), workerBytes), CountWorker::process, null);
+            }
+        }
+
+        private void startDocument(String id) {
+            docId.set(id);
+            termPrefix = ("T#" + id + "\t").getBytes(StandardCharsets.UTF_8);
+            docKey = new Text("D#" + id);
+        }
+
+        // A combined split holds several documents back to back; in-mapper state is per document
+        private void finishDocument(Context context) throws IOException, InterruptedException {
+            if (!inMapper) return;
+            if (pipeline != null) collect(context);
+            flush(context);
+            if (docTotal > 0) {
+                count.set(docTotal);
+                context.write(docKey, count); // one total per document
+                context.getCounter(Counters.RECORDS_AFTER_AGGREGATION).increment(1);
+            }
+            docTotal = 0;
+        }
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            ctx = context;
+            if (key instanceof Text && !docId.equals(key)) {
+                if (docKey != null) finishDocument(context);
+                startDocument(key.toString());
+            }
+            if (pipeline != null) {
+                pipeline.add(value.getBytes(), 0, value.getLength());
+                bytes += value.getLength();
+                if (workerBytes.get() >= maxBytes) {
+                    collect(context);
+                    flush(context);
+                }
+                return;
+            }
+            int n = tokenizer.tokenize(value.getBytes(), 0, value.getLength(), inMapper ? countSink : emitSink);
+            tokens += n;
+            bytes += value.getLength();
+            context.getCounter(Counters.RECORDS_BEFORE_AGGREGATION).increment(2L * n);
+            if (inMapper) {
+                docTotal += n;
+                if (usedBytes >= maxBytes) flush(context);
+            } else {
+                context.getCounter(Counters.RECORDS_AFTER_AGGREGATION).increment(2L * n);
+            }
+        }
+
+        // Emits the partial term counts held so far and frees the map
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<Text, int[]> e : counts.entrySet()) {
+                Text term = e.getKey();
+                termKey.set(termPrefix, 0, termPrefix.length);
+                termKey.append(term.getBytes(), 0, term.getLength());
+                count.set(e.getValue()[0]);
+                context.write(termKey, count);
+            }
+            context.getCounter(Counters.RECORDS_AFTER_AGGREGATION).increment(counts.size());
+            counts.clear();
+            usedBytes = 0;
+        }
+
+        // Waits for the pool, then moves every worker's partial counts into counts
+        private void collect(Context context) throws IOException, InterruptedException {
+            pipeline.drain();
+            long n = 0;
+            for (CountWorker w : pipeline.workers()) {
+                for (Map.Entry<Text, int[]> e : w.counts.entrySet()) {
+                    int[] c = counts.get(e.getKey());
+                    if (c == null) counts.put(e.getKey(), e.getValue());
+                    else c[0] += e.getValue()[0];
+                }
+                w.counts.clear();
+                n += w.tokens;
+                w.tokens = 0;
+            }
+            workerBytes.set(0);
+            docTotal += n;
+            tokens += n;
+            context.getCounter(Counters.RECORDS_BEFORE_AGGREGATION).increment(2L * n);
+        }
+
+        // Emits everything aggregated for the current document; the pool stays up for further map calls
+        void flushInput(Context context) throws IOException, InterruptedException {
+            if (docKey != null) finishDocument(context);
         }
 
         @Override
-        protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            List<String> tokens = Tokenizer.tokenize(value.toString());
-            for (String tok : tokens) {
-                context.write(new Text("T#" + docId + "\t" + tok), ONE); // term occurrence
-                context.write(new Text("D#" + docId), ONE);              // doc total counter
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flushInput(context);
+            long dropped = tokenizer.getStopwordsDropped();
+            if (pipeline != null) {
+                for (CountWorker w : pipeline.workers()) dropped += w.tokenizer.getStopwordsDropped();
+                pipeline.close();
+                pipeline = null;
             }
+            context.getCounter(PipelineCounters.TOKENS).increment(tokens);
+            context.getCounter(PipelineCounters.STOPWORDS_DROPPED).increment(dropped);
+            context.getCounter(PipelineCounters.BYTES_PARSED).increment(bytes);
+        }
+    }
+
+    // Per-thread state of the multithreaded Mapper1: own tokenizer and partial counts
+    private static final class CountWorker {
+        final Tokenizer tokenizer;
+        final HashMap<Text, int[]> counts = new HashMap<>();
+        final Text probe = new Text();
+        long tokens = 0;
+        private final Tokenizer.TokenSink sink;
+
+        CountWorker(Tokenizer tokenizer, AtomicLong usedBytes) {
+            this.tokenizer = tokenizer;
+            this.sink = (buf, s, l) -> {
+                probe.set(buf, s, l);
+                int[] c = counts.get(probe);
+                if (c == null) {
+                    counts.put(new Text(probe), new int[]{1});
+                    usedBytes.addAndGet(ENTRY_OVERHEAD_BYTES + l);
+                } else {
+                    c[0]++;
+                }
+            };
+        }
+
+        void process(LinePipeline.Batch batch) throws IOException, InterruptedException {
+            for (int i = 0; i < batch.size; i++) {
+                tokens += tokenizer.tokenize(batch.bytes, batch.start[i], batch.len[i], sink);
+            }
+        }
+    }
+
+    // Sums partial counts map-side; keys are the same "T#"/"D#" keys the reducer sees
+    public static class Combiner1 extends Reducer<Text, IntWritable, Text, IntWritable> {
+        private final IntWritable out = new IntWritable();
+
+        @Override
+        protected void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable v : values) sum += v.get();
+            out.set(sum);
+            context.write(key, out);
         }
     }
 
-    public static class Reducer1 extends Reducer<Text, IntWritable, Text, IntWritable> {
-        private MultipleOutputs<Text, IntWritable> mos;
+    public static class Reducer1 extends Reducer<Text, IntWritable, Writable, Writable> {
+        private MultipleOutputs<Writable, Writable> mos;
+        private boolean binary;
+        private final TermDocWritable termDoc = new TermDocWritable();
+        private final VIntWritable count = new VIntWritable();
+        private final IntWritable textCount = new IntWritable();
+        private final Text term = new Text();
+        private final Text docId = new Text();
+        private final Text outKey = new Text();
 
         @Override
         protected void setup(Context context) {
             mos = new MultipleOutputs<>(context);
+            binary = IntermediateFormat.isBinary(context.getConfiguration());
         }
 
         @Override
         protected void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
             int sum = 0;
             for (IntWritable v : values) sum += v.get();
-            String k = key.toString();
-            if (k.startsWith("T#")) {
-                String rest = k.substring(2);
-                String[] parts = rest.split("\t", 2);
-                String docId = parts[0];
-                String term = parts.length > 1 ? parts[1] : "";
-                mos.write("tfraw", new Text(term + "\t" + docId), new IntWritable(sum));
-            } else if (k.startsWith("D#")) {
-                String docId = k.substring(2);
-                mos.write("doctotal", new Text(docId), new IntWritable(sum));
+            // Slice "T#docId<TAB>term" / "D#docId" in place
+            byte[] b = key.getBytes();
+            int len = key.getLength();
+            if (len < 2 || b[1] != '#') return;
+            if (b[0] == 'T') {
+                int tab = TextBytes.indexOfTab(b, 2, len);
+                int docEnd = tab < 0 ? len : tab;
+                int termStart = tab < 0 ? len : tab + 1;
+                if (binary) {
+                    docId.set(b, 2, docEnd - 2);
+                    term.set(b, termStart, len - termStart);
+                    termDoc.set(term, docId);
+                    count.set(sum);
+                    mos.write("tfraw", termDoc, count);
+                } else {
+                    TextBytes.setJoined(outKey, b, termStart, len - termStart, b, 2, docEnd - 2);
+                    textCount.set(sum);
+                    mos.write("tfraw", outKey, textCount);
+                }
+            } else if (b[0] == 'D') {
+                docId.set(b, 2, len - 2);
+                context.getCounter(Counters.DOCUMENTS).increment(1);
+                if (binary) {
+                    count.set(sum);
+                    mos.write("doctotal", docId, count);
+                } else {
+                    textCount.set(sum);
+                    mos.write("doctotal", docId, textCount);
+                }
             }
         }
 
@@ -68,11 +295,27 @@ public class Job1_TermCount {
         }
     }
 
+    // Step1 map keys of a sampled input line, for SkewSampler.useTotalOrder (the docId is the file name, as in Mapper1)
+    public static SkewSampler.KeyExtractor sampleKeys(Configuration conf) {
+        Tokenizer tokenizer = Tokenizer.fromConf(conf);
+        return (fileName, key, value, out) -> {
+            String docId = key instanceof Text ? key.toString() : fileName;
+            byte[] prefix = ("T#" + docId + "\t").getBytes(StandardCharsets.UTF_8);
+            Text line = (Text) value;
+            tokenizer.tokenize(line.getBytes(), 0, line.getLength(), (buf, s, l) -> {
+                Text t = new Text(prefix);
+                t.append(buf, s, l);
+                out.add(t);
+            });
+        };
+    }
+
     public static Job configure(Configuration conf, Path input, Path outStep1) throws IOException {
         Job job = Job.getInstance(conf, "A1_BD - Step1 - TermCount and DocTotals");
         job.setJarByClass(Job1_TermCount.class);
 
         job.setMapperClass(Mapper1.class);
+        job.setCombinerClass(Combiner1.class);
         job.setReducerClass(Reducer1.class);
 
         job.setMapOutputKeyClass(Text.class);
@@ -81,15 +324,23 @@ public class Job1_TermCount {
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(IntWritable.class);
 
-        TextInputFormat.addInputPath(job, input);
-        job.setInputFormatClass(TextInputFormat.class);
-
-        TextOutputFormat.setOutputPath(job, outStep1);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        DocumentInputFormat.setInput(job, input);
+        LinePipeline.requestCores(job);
 
-        MultipleOutputs.addNamedOutput(job, "tfraw", TextOutputFormat.class, Text.class, IntWritable.class);
-        MultipleOutputs.addNamedOutput(job, "doctotal", TextOutputFormat.class, Text.class, IntWritable.class);
+        IntermediateFormat.setOutput(job, outStep1);
+        addNamedOutputs(job);
 
         return job;
     }
-}
\ No newline at end of file
+
+    // tfraw and doctotal, as written by Reducer1 (and by TokenCache.CacheMapper)
+    static void addNamedOutputs(Job job) {
+        if (IntermediateFormat.isBinary(job.getConfiguration())) {
+            MultipleOutputs.addNamedOutput(job, "tfraw", SequenceFileOutputFormat.class, TermDocWritable.class, VIntWritable.class);
+            MultipleOutputs.addNamedOutput(job, "doctotal", SequenceFileOutputFormat.class, Text.class, VIntWritable.class);
+        } else {
+            MultipleOutputs.addNamedOutput(job, "tfraw", TextOutputFormat.class, Text.class, IntWritable.class);
+            MultipleOutputs.addNamedOutput(job, "doctotal", TextOutputFormat.class, Text.class, IntWritable.class);
+        }
+    }
+}
@@ -3,62 +3,178 @@ package com.stratosdns.a1bd;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
 
 public class Job2_TF {
 
-    public static class Mapper2 extends Mapper<LongWritable, Text, Text, Text> {
-        // Accepts both tfraw and doctotal lines from Step1
+    public static class Mapper2 extends Mapper<Object, Writable, DocTagKey, Text> {
+        private final DocTagKey outKey = new DocTagKey();
+        private final Text outValue = new Text();
+        private final Text docText = new Text();
+        private final Text term = new Text();
+        private final byte[] digits = new byte[10];
+        private Map<Text, Integer> hotDocs; // docId -> salts, null unless SkewSampler planned some
+        private long malformed = 0;
+
         @Override
-        protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            String[] parts = line.split("\t");
-            if (parts.length == 3) {
+        protected void setup(Context context) throws IOException {
+            hotDocs = SkewSampler.readHotDocs(context.getConfiguration());
+        }
+
+        // Accepts both tfraw and doctotal records from Step1 (text lines or binary SequenceFile entries)
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (key instanceof TermDocWritable) {
+                // binary tfraw: (term, docId) -> f
+                TermDocWritable td = (TermDocWritable) key;
+                emitTerm(context, td.getDocId(), td.getTerm(), ((VIntWritable) value).get());
+                return;
+            }
+            if (key instanceof Text) {
+                // binary doctotal: docId -> total
+                emitTotal(context, (Text) key, ((VIntWritable) value).get());
+                return;
+            }
+            // Text lines are sliced in place; fields are copied into reused Texts
+            Text line = (Text) value;
+            byte[] b = line.getBytes();
+            int s = TextBytes.trimStart(b, 0, line.getLength());
+            int e = TextBytes.trimEnd(b, s, line.getLength());
+            if (s == e) return;
+            int t1 = TextBytes.indexOfTab(b, s, e);
+            int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, e);
+            int n = t2 < 0 ? TextBytes.parseCount(b, t1 + 1, e) : TextBytes.parseCount(b, t2 + 1, e);
+            if (t1 < 0 || n < 0 || (t2 >= 0 && TextBytes.indexOfTab(b, t2 + 1, e) >= 0)) {
+                malformed++;
+            } else if (t2 >= 0) {
                 // tfraw: term  docId  f
-                String term = parts[0];
-                String docId = parts[1];
-                String f = parts[2];
-                context.write(new Text(docId), new Text("T\t" + term + "\t" + f));
-            } else if (parts.length == 2) {
+                docText.set(b, t1 + 1, t2 - t1 - 1);
+                term.set(b, s, t1 - s);
+                emitTerm(context, docText, term, n);
+            } else {
                 // doctotal: docId  total
-                String docId = parts[0];
-                String total = parts[1];
-                context.write(new Text(docId), new Text("D\t" + total));
+                docText.set(b, s, t1 - s);
+                emitTotal(context, docText, n);
             }
         }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+
+        private int salts(Text docId) {
+            if (hotDocs == null) return 1;
+            Integer n = hotDocs.get(docId);
+            return n == null ? 1 : n;
+        }
+
+        // A hot document's terms are spread over its salts by term hash
+        private void emitTerm(Context context, Text docId, Text term, int f) throws IOException, InterruptedException {
+            int salts = salts(docId);
+            int salt = salts == 1 ? 0 : (term.hashCode() & Integer.MAX_VALUE) % salts;
+            outValue.set(term);
+            TextBytes.appendTab(outValue);
+            TextBytes.appendCount(outValue, f, digits);
+            emit(context, docId, salt, DocTagKey.TERM);
+        }
+
+        // ...and its total is replicated to every salt, so each partial group still sees TOTAL first
+        private void emitTotal(Context context, Text docId, int total) throws IOException, InterruptedException {
+            outValue.clear();
+            TextBytes.appendCount(outValue, total, digits);
+            int salts = salts(docId);
+            for (int salt = 0; salt < salts; salt++) emit(context, docId, salt, DocTagKey.TOTAL);
+        }
+
+        private void emit(Context context, Text docId, int salt, byte tag) throws IOException, InterruptedException {
+            outKey.set(docId, salt, tag);
+            context.write(outKey, outValue);
+        }
     }
 
-    public static class Reducer2 extends Reducer<Text, Text, Text, DoubleWritable> {
+    // Route every record of a document (or of one salt of a hot document) to the same reducer, whatever its tag
+    public static class DocPartitioner extends Partitioner<DocTagKey, Text> {
         @Override
-        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            String docId = key.toString();
+        public int getPartition(DocTagKey key, Text value, int numPartitions) {
+            return ((key.getDocId().hashCode() & Integer.MAX_VALUE) % numPartitions + key.getSalt()) % numPartitions;
+        }
+    }
+
+    // One reduce call per document (per salt for hot documents): group on docId and salt, ignoring the tag.
+    // The framework calls the raw form on serialized keys
+    public static class DocGroupingComparator extends WritableComparator {
+        public DocGroupingComparator() {
+            super(DocTagKey.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return DocTagKey.compareSerialized(b1, s1, b2, s2, false);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            DocTagKey x = (DocTagKey) a;
+            DocTagKey y = (DocTagKey) b;
+            int c = x.getDocId().compareTo(y.getDocId());
+            return c != 0 ? c : Integer.compare(x.getSalt(), y.getSalt());
+        }
+    }
+
+    public static class Reducer2 extends Reducer<DocTagKey, Text, Writable, DoubleWritable> {
+        private boolean binary;
+        private final TermDocWritable termDoc = new TermDocWritable();
+        private final Text term = new Text();
+        private final Text outKey = new Text();
+        private final DoubleWritable outValue = new DoubleWritable();
+
+        @Override
+        protected void setup(Context context) {
+            binary = IntermediateFormat.isBinary(context.getConfiguration());
+        }
+
+        // The TOTAL record(s) sort first, so TF values stream out without buffering the document
+        @Override
+        protected void reduce(DocTagKey key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            Text docId = key.getDocId();
             int totalTerms = 0;
-            List<String[]> termCounts = new ArrayList<>();
             for (Text v : values) {
-                String s = v.toString();
-                if (s.startsWith("D\t")) {
-                    totalTerms += Integer.parseInt(s.substring(2));
-                } else if (s.startsWith("T\t")) {
-                    String[] parts = s.split("\t");
-                    if (parts.length == 3) termCounts.add(new String[]{parts[1], parts[2]});
+                byte[] b = v.getBytes();
+                int len = v.getLength();
+                // the framework updates key as values advance, so getTag() reflects the current record
+                if (key.getTag() == DocTagKey.TOTAL) {
+                    int t = TextBytes.parseCount(b, 0, len);
+                    if (t < 0) context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(1);
+                    else totalTerms += t;
+                    continue;
+                }
+                if (totalTerms == 0) return;
+                int tab = TextBytes.lastIndexOfTab(b, 0, len);
+                int f = tab < 0 ? -1 : TextBytes.parseCount(b, tab + 1, len);
+                if (f < 0) {
+                    context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(1);
+                    continue;
                 }
-            }
-            if (totalTerms == 0) return;
-
-            for (String[] tf : termCounts) {
-                String term = tf[0];
-                int f = Integer.parseInt(tf[1]);
                 double tfVal = (double) f / (double) totalTerms;
-                context.write(new Text(term + "\t" + docId), new DoubleWritable(tfVal));
+                outValue.set(tfVal);
+                if (binary) {
+                    term.set(b, 0, tab);
+                    termDoc.set(term, docId);
+                    context.write(termDoc, outValue);
+                } else {
+                    TextBytes.setJoined(outKey, b, 0, tab, docId.getBytes(), 0, docId.getLength());
+                    context.write(outKey, outValue);
+                }
             }
         }
     }
@@ -69,20 +185,18 @@ public class Job2_TF {
 
         job.setMapperClass(Mapper2.class);
         job.setReducerClass(Reducer2.class);
+        job.setPartitionerClass(DocPartitioner.class);
+        job.setGroupingComparatorClass(DocGroupingComparator.class);
 
-        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputKeyClass(DocTagKey.class);
         job.setMapOutputValueClass(Text.class);
 
-        job.setOutputKeyClass(Text.class);
+        job.setOutputKeyClass(IntermediateFormat.isBinary(conf) ? TermDocWritable.class : Text.class);
         job.setOutputValueClass(DoubleWritable.class);
 
         // Accept both inputs (tfraw + doctotal)
-        TextInputFormat.addInputPath(job, inTfRaw);
-        TextInputFormat.addInputPath(job, inDocTotals);
-        job.setInputFormatClass(TextInputFormat.class);
-
-        TextOutputFormat.setOutputPath(job, outStep2);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        IntermediateFormat.setInput(job, inTfRaw, inDocTotals);
+        IntermediateFormat.setOutput(job, outStep2);
 
         return job;
     }
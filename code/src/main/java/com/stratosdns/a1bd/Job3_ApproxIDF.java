@@ -0,0 +1,169 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Approximate Step3 (used with --approximate-idf).
+ *
+ * Each mapper folds its Step2 records into one DfSketch and emits it once, so the shuffle is one fixed-size
+ * sketch per mapper instead of one record per (term, doc). A single reducer merges the sketches, writes
+ * "term<TAB>idf" (plus idfdict) for the heavy hitters and stores the merged sketch as idfsketch-r-00000 for
+ * Mapper4 to estimate idf of every other term.
+ */
+public class Job3_ApproxIDF {
+
+    public static final String EPSILON_KEY = "idf.approx.epsilon";
+    public static final String DELTA_KEY = "idf.approx.delta";
+    public static final String HEAVY_THRESHOLD_KEY = "idf.approx.heavyThreshold";
+    public static final String HEAVY_TERMS_KEY = "idf.approx.heavyTerms";
+    public static final String MAPPER_MAX_TERMS_KEY = "idf.approx.mapperMaxTerms";
+    public static final String SKETCH_PREFIX = "idfsketch";
+
+    private static DfSketch newSketch(Configuration conf) {
+        return new DfSketch(conf.getDouble(EPSILON_KEY, 1e-4), conf.getDouble(DELTA_KEY, 0.01), conf.getInt(HEAVY_TERMS_KEY, 10000));
+    }
+
+    public static class MapperA extends Mapper<Object, Writable, NullWritable, DfSketch> {
+        private DfSketch sketch;
+        private double heavyThreshold;
+        private int maxTerms;
+        private final HashMap<Text, double[]> partial = new HashMap<>();
+        private final Text probe = new Text();
+        private long malformed = 0;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            sketch = newSketch(conf);
+            heavyThreshold = conf.getDouble(HEAVY_THRESHOLD_KEY, 0.01);
+            maxTerms = conf.getInt(MAPPER_MAX_TERMS_KEY, 1000000);
+        }
+
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            double tf;
+            if (key instanceof TermDocWritable) {
+                probe.set(((TermDocWritable) key).getTerm());
+                tf = ((DoubleWritable) value).get();
+            } else {
+                // "term<TAB>docId<TAB>tf", sliced in place
+                Text line = (Text) value;
+                byte[] b = line.getBytes();
+                int s = TextBytes.trimStart(b, 0, line.getLength());
+                int e = TextBytes.trimEnd(b, s, line.getLength());
+                if (s == e) return;
+                int t1 = TextBytes.indexOfTab(b, s, e);
+                int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, e);
+                if (t2 < 0 || TextBytes.indexOfTab(b, t2 + 1, e) >= 0) {
+                    malformed++;
+                    return;
+                }
+                probe.set(b, s, t1 - s);
+                tf = TextBytes.parseDouble(b, t2 + 1, e);
+            }
+            double[] sum = partial.get(probe);
+            if (sum == null) partial.put(new Text(probe), sum = new double[1]);
+            sum[0] += tf;
+            if (partial.size() >= maxTerms) spill();
+        }
+
+        // Partial sums at or above the threshold are heavy-hitter candidates (the sketch keeps the largest
+        // idf.approx.heavyTerms of them exactly); the rest go into the Count-Min table
+        private void spill() {
+            for (Map.Entry<Text, double[]> e : partial.entrySet()) {
+                double v = e.getValue()[0];
+                Text t = e.getKey();
+                if (v >= heavyThreshold) {
+                    sketch.addHeavy(t.toString(), v);
+                } else {
+                    sketch.add(t.getBytes(), t.getLength(), v);
+                }
+            }
+            partial.clear();
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            spill();
+            sketch.trimHeavy();
+            context.write(NullWritable.get(), sketch);
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    public static class ReducerA extends Reducer<NullWritable, DfSketch, Text, DoubleWritable> {
+        @Override
+        protected void reduce(NullWritable key, Iterable<DfSketch> values, Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            long numDocs = conf.getLong("idf.numDocs", 0);
+            if (numDocs <= 0) throw new IOException("idf.numDocs not provided");
+
+            DfSketch merged = newSketch(conf);
+            for (DfSketch s : values) merged.merge(s);
+            merged.trimHeavy();
+            merged.setNumDocs(numDocs);
+
+            // Heavy hitters: exact partial sums plus whatever other mappers put into the sketch for the same term
+            TreeMap<Text, Double> heavy = new TreeMap<>();
+            for (Map.Entry<String, double[]> e : merged.getHeavy().entrySet()) {
+                heavy.put(new Text(e.getKey()), e.getValue()[0] + merged.estimate(e.getKey()));
+            }
+            merged.getHeavy().clear();
+
+            Path dir = FileOutputFormat.getWorkOutputPath(context);
+            IdfDictionary.Writer dict = null;
+            if (conf.getBoolean(Job3_IDF.DICTIONARY_KEY, true)) {
+                Path p = new Path(dir, IdfDictionary.FILE_PREFIX + "-r-00000");
+                dict = new IdfDictionary.Writer(p.getFileSystem(conf).create(p, false));
+            }
+            DoubleWritable out = new DoubleWritable();
+            for (Map.Entry<Text, Double> e : heavy.entrySet()) {
+                double idf = Math.log((double) numDocs / e.getValue());
+                out.set(idf);
+                context.write(e.getKey(), out); // term \t idf
+                if (dict != null) dict.append(e.getKey(), idf);
+            }
+            if (dict != null) dict.close();
+
+            Path sketchPath = new Path(dir, SKETCH_PREFIX + "-r-00000");
+            try (FSDataOutputStream os = sketchPath.getFileSystem(conf).create(sketchPath, false)) {
+                merged.write(os);
+            }
+        }
+    }
+
+    public static Job configure(Configuration conf, Path inStep2TF, long numDocs, Path outStep3) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Step3 - Approximate IDF");
+        job.setJarByClass(Job3_ApproxIDF.class);
+
+        job.getConfiguration().setLong("idf.numDocs", numDocs);
+
+        job.setMapperClass(MapperA.class);
+        job.setReducerClass(ReducerA.class);
+        job.setNumReduceTasks(1); // all sketches are merged in one place
+
+        job.setMapOutputKeyClass(NullWritable.class);
+        job.setMapOutputValueClass(DfSketch.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(DoubleWritable.class);
+
+        IntermediateFormat.setInput(job, inStep2TF);
+        IntermediateFormat.setOutput(job, outStep3);
+
+        return job;
+    }
+}
@@ -3,39 +3,83 @@ package com.stratosdns.a1bd;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.io.DoubleWritable;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 
 public class Job3_IDF {
 
-    public static class Mapper3 extends Mapper<LongWritable, Text, Text, DoubleWritable> {
-        // Input lines from Step2 TF: "term<TAB>docId<TAB>tf"
+    public static class Mapper3 extends Mapper<Object, Writable, Text, DoubleWritable> {
+        private final Text term = new Text();
+        private final DoubleWritable tf = new DoubleWritable();
+        private long malformed = 0;
+
+        // Input from Step2 TF: "term<TAB>docId<TAB>tf" lines, or binary (term, docId) -> tf
         @Override
-        protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            String[] parts = line.split("\t");
-            if (parts.length == 3) {
-                String term = parts[0];
-                double tf = Double.parseDouble(parts[2]);
-                context.write(new Text(term), new DoubleWritable(tf));
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (key instanceof TermDocWritable) {
+                context.write(((TermDocWritable) key).getTerm(), (DoubleWritable) value);
+                return;
+            }
+            Text line = (Text) value;
+            byte[] b = line.getBytes();
+            int s = TextBytes.trimStart(b, 0, line.getLength());
+            int e = TextBytes.trimEnd(b, s, line.getLength());
+            if (s == e) return;
+            int t1 = TextBytes.indexOfTab(b, s, e);
+            int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, e);
+            if (t2 < 0 || TextBytes.indexOfTab(b, t2 + 1, e) >= 0) {
+                malformed++;
+                return;
             }
+            term.set(b, s, t1 - s);
+            tf.set(TextBytes.parseDouble(b, t2 + 1, e));
+            context.write(term, tf);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    // Pre-sums tf per term on the map side, so a term present in every document reaches its reducer as at most
+    // one value per map task rather than one per document
+    public static class Combiner3 extends Reducer<Text, DoubleWritable, Text, DoubleWritable> {
+        private final DoubleWritable sum = new DoubleWritable();
+
+        @Override
+        protected void reduce(Text key, Iterable<DoubleWritable> values, Context context) throws IOException, InterruptedException {
+            double s = 0.0;
+            for (DoubleWritable v : values) s += v.get();
+            sum.set(s);
+            context.write(key, sum);
         }
     }
 
+    public static final String DICTIONARY_KEY = "idf.dictionary";
+
     public static class Reducer3 extends Reducer<Text, DoubleWritable, Text, DoubleWritable> {
-        private int numDocs = 0;
+        private long numDocs = 0;
+        private IdfDictionary.Writer dict;
+        private final DoubleWritable out = new DoubleWritable();
 
         @Override
-        protected void setup(Context context) throws IOException {
+        protected void setup(Context context) throws IOException, InterruptedException {
             Configuration conf = context.getConfiguration();
+            if (conf.getBoolean(DICTIONARY_KEY, true)) {
+                // Compact idfdict-r-NNNNN side file next to the part file, committed with the task output
+                Path dir = FileOutputFormat.getWorkOutputPath(context);
+                int partition = context.getTaskAttemptID().getTaskID().getId();
+                Path p = new Path(dir, String.format("%s-r-%05d", IdfDictionary.FILE_PREFIX, partition));
+                dict = new IdfDictionary.Writer(p.getFileSystem(conf).create(p, false));
+            }
+            // Driver publishes N from Step1's DOCUMENTS counter; only fall back to scanning doctotal files without it
+            numDocs = conf.getLong("idf.numDocs", 0);
+            if (numDocs > 0) return;
             String docTotalsDir = conf.get("idf.docTotalsDir");
             if (docTotalsDir == null) {
                 throw new IOException("idf.docTotalsDir not provided");
@@ -51,10 +95,7 @@ public class Job3_IDF {
                 LocatedFileStatus st = it.next();
                 String name = st.getPath().getName();
                 if (name.startsWith("doctotal")) {
-                    try (FSDataInputStream in = fs.open(st.getPath());
-                         BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
-                        while (br.readLine() != null) count++;
-                    }
+                    count += (int) IntermediateFormat.countRecords(conf, st.getPath());
                 }
             }
             return count;
@@ -66,10 +107,30 @@ public class Job3_IDF {
             for (DoubleWritable v : values) sumTf += v.get();
             if (sumTf <= 0.0 || numDocs <= 0) return;
             double idf = Math.log((double) numDocs / sumTf);
-            context.write(key, new DoubleWritable(idf)); // term \t idf
+            out.set(idf);
+            context.write(key, out); // term \t idf
+            if (dict != null) dict.append(key, idf);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            if (dict != null) dict.close();
         }
     }
 
+    // Step3 map key (the term) of a sampled Step2 record, for SkewSampler.useTotalOrder
+    public static SkewSampler.KeyExtractor sampleKeys() {
+        return (fileName, key, value, out) -> {
+            if (key instanceof TermDocWritable) {
+                out.add(new Text(((TermDocWritable) key).getTerm()));
+                return;
+            }
+            String line = value.toString();
+            int tab = line.indexOf('\t');
+            if (tab > 0) out.add(new Text(line.substring(0, tab)));
+        };
+    }
+
     public static Job configure(Configuration conf, Path inStep2TF, Path docTotalsDir, Path outStep3) throws IOException {
         Job job = Job.getInstance(conf, "A1_BD - Step3 - IDF");
         job.setJarByClass(Job3_IDF.class);
@@ -77,6 +138,7 @@ public class Job3_IDF {
         job.getConfiguration().set("idf.docTotalsDir", docTotalsDir.toString());
 
         job.setMapperClass(Mapper3.class);
+        job.setCombinerClass(Combiner3.class);
         job.setReducerClass(Reducer3.class);
 
         job.setMapOutputKeyClass(Text.class);
@@ -85,12 +147,15 @@ public class Job3_IDF {
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(DoubleWritable.class);
 
-        TextInputFormat.addInputPath(job, inStep2TF);
-        job.setInputFormatClass(TextInputFormat.class);
+        IntermediateFormat.setInput(job, inStep2TF);
+        IntermediateFormat.setOutput(job, outStep3);
 
-        TextOutputFormat.setOutputPath(job, outStep3);
-        job.setOutputFormatClass(TextOutputFormat.class);
+        return job;
+    }
 
+    public static Job configure(Configuration conf, Path inStep2TF, Path docTotalsDir, long numDocs, Path outStep3) throws IOException {
+        Job job = configure(conf, inStep2TF, docTotalsDir, outStep3);
+        job.getConfiguration().setLong("idf.numDocs", numDocs);
         return job;
     }
 }
\ No newline at end of file
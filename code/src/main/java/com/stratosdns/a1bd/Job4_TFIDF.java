@@ -3,30 +3,125 @@ package com.stratosdns.a1bd;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.io.DoubleWritable;
-import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class Job4_TFIDF {
 
-    public static class Mapper4 extends Mapper<LongWritable, Text, Text, DoubleWritable> {
+    // "dict" (default): compact IdfDictionary from the distributed cache; "map": HashMap loaded from part files
+    public static final String LOOKUP_KEY = "tfidf.idf.lookup";
+
+    public static class Mapper4 extends Mapper<Object, Writable, Text, DoubleWritable> {
         private final HashMap<String, Double> idfMap = new HashMap<>();
+        private IdfDictionary idfDict;
+        private DfSketch idfSketch; // approximate-idf mode: estimates for terms outside the exact table
+        private final LineWorker own = new LineWorker();
+        private final Text outKey = new Text();
+        private final DoubleWritable outValue = new DoubleWritable();
+        private Context ctx;
+
+        // Multithreaded mode (pipeline.map.threads > 1): text records are parsed and joined on pool threads
+        // against the shared, read-only idf tables; the task thread writes their rows in input order
+        private int threads;
+        private int batchLines;
+        private LinePipeline<LineWorker> pipeline;
+
+        private final LinePipeline.RowSink direct = (a, aFrom, aLen, b, bFrom, bLen, v) -> {
+            TextBytes.setJoined(outKey, a, aFrom, aLen, b, bFrom, bLen);
+            outValue.set(v);
+            ctx.write(outKey, outValue);
+        };
 
         @Override
         protected void setup(Context context) throws IOException {
             Configuration conf = context.getConfiguration();
+            loadTables(context);
+            threads = LinePipeline.threads(conf);
+            batchLines = LinePipeline.batchLines(conf);
+            if (threads > 1) {
+                pipeline = new LinePipeline<>(threads, batchLines, LineWorker::new, (w, batch) -> {
+                    for (int i = 0; i < batch.size; i++) parse(w, batch.bytes, batch.start[i], batch.len[i], batch);
+                }, this::emit);
+            }
+        }
+
+        private void loadTables(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            String sumTfDir = conf.get(FusedTFIDF.SUMTF_DIR_KEY);
+            if (sumTfDir != null) {
+                // --fused: no Step3, the fused reducers' sorted partial sums are merged here
+                idfDict = FusedTFIDF.loadIdf(conf, new Path(sumTfDir), conf.getLong(FusedTFIDF.NUM_DOCS_KEY, 0));
+                return;
+            }
             String idfDir = conf.get("tfidf.idfDir");
             if (idfDir == null) throw new IOException("tfidf.idfDir not provided");
+            idfSketch = loadSketch(conf, new Path(idfDir));
+            if ("dict".equals(conf.get(LOOKUP_KEY, "dict"))) {
+                idfDict = loadDictionary(context);
+                if (idfDict != null) return;
+            }
             loadIdf(conf, idfDir);
         }
 
+        private DfSketch loadSketch(Configuration conf, Path idfDir) throws IOException {
+            FileSystem fs = idfDir.getFileSystem(conf);
+            if (!fs.exists(idfDir)) return null;
+            for (FileStatus st : fs.listStatus(idfDir)) {
+                if (st.getPath().getName().startsWith(Job3_ApproxIDF.SKETCH_PREFIX)) {
+                    DfSketch sketch = new DfSketch();
+                    try (FSDataInputStream in = fs.open(st.getPath())) {
+                        sketch.readFields(in);
+                    }
+                    return sketch;
+                }
+            }
+            return null;
+        }
+
+        private double estimateIdf(double sumTf) {
+            return sumTf > 0.0 ? Math.log((double) idfSketch.getNumDocs() / sumTf) : Double.NaN;
+        }
+
+        // Reads the idfdict-* files registered in the distributed cache (local symlinks when localized)
+        private IdfDictionary loadDictionary(Context context) throws IOException {
+            URI[] cached = context.getCacheFiles();
+            if (cached == null) return null;
+            List<Path> parts = new ArrayList<>();
+            for (URI u : cached) {
+                String name = u.getFragment() != null ? u.getFragment() : new Path(u).getName();
+                if (!name.startsWith(IdfDictionary.FILE_PREFIX)) continue;
+                File local = new File(name);
+                parts.add(local.exists() ? new Path(local.getAbsoluteFile().toURI()) : new Path(u.getScheme(), u.getAuthority(), u.getPath()));
+            }
+            return parts.isEmpty() ? null : IdfDictionary.load(context.getConfiguration(), parts);
+        }
+
+        // Only reads the tables, so pool threads may call it concurrently; estimates are counted on w
+        private double lookupIdf(Text term, LineWorker w) {
+            double idf;
+            if (idfDict != null) {
+                idf = idfDict.get(term);
+            } else {
+                Double v = idfMap.get(term.toString());
+                idf = v == null ? Double.NaN : v;
+            }
+            if (Double.isNaN(idf) && idfSketch != null) {
+                idf = estimateIdf(idfSketch.estimate(term));
+                w.estimated++;
+            }
+            return idf;
+        }
+
         private void loadIdf(Configuration conf, String idfDir) throws IOException {
             FileSystem fs = FileSystem.get(conf);
             RemoteIterator<LocatedFileStatus> it = fs.listFiles(new Path(idfDir), false);
@@ -34,16 +129,7 @@ public class Job4_TFIDF {
                 LocatedFileStatus st = it.next();
                 String name = st.getPath().getName();
                 if (name.startsWith("part-") || name.startsWith("part-r-") || name.startsWith("part-m-")) {
-                    try (FSDataInputStream in = fs.open(st.getPath());
-                         BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
-                        String line;
-                        while ((line = br.readLine()) != null) {
-                            String[] p = line.split("\t");
-                            if (p.length == 2) {
-                                idfMap.put(p[0], Double.parseDouble(p[1]));
-                            }
-                        }
-                    }
+                    IntermediateFormat.readDoublePairs(conf, st.getPath(), idfMap::put);
                 } else if (name.startsWith("doctotal") || name.startsWith("tfraw")) {
                     // ignore step1 outputs if the idfDir path was pointed to step1 by mistake
                 }
@@ -51,18 +137,91 @@ public class Job4_TFIDF {
         }
 
         @Override
-        protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            String[] parts = line.split("\t");
-            if (parts.length != 3) return;
-            String term = parts[0];
-            String docId = parts[1];
-            double tf = Double.parseDouble(parts[2]);
-            Double idf = idfMap.get(term);
-            if (idf == null) return;
-            double tfidf = tf * idf;
-            context.write(new Text(docId + "\t" + term), new DoubleWritable(tfidf));
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            ctx = context;
+            if (key instanceof TermDocWritable) {
+                // binary Step2 record: (term, docId) -> tf; deserialization is the reader's, so it stays here
+                TermDocWritable td = (TermDocWritable) key;
+                double idf = lookupIdf(td.getTerm(), own);
+                if (Double.isNaN(idf)) {
+                    own.misses++;
+                    return;
+                }
+                outValue.set(((DoubleWritable) value).get() * idf);
+                Text docId = td.getDocId();
+                Text t = td.getTerm();
+                TextBytes.setJoined(outKey, docId.getBytes(), 0, docId.getLength(), t.getBytes(), 0, t.getLength());
+                context.write(outKey, outValue);
+                return;
+            }
+            Text line = (Text) value;
+            if (pipeline != null) {
+                pipeline.add(line.getBytes(), 0, line.getLength());
+                return;
+            }
+            parse(own, line.getBytes(), 0, line.getLength(), direct);
+        }
+
+        // "term<TAB>docId<TAB>tf", sliced in place; the joined "docId<TAB>term" -> tf * idf row goes to out
+        private void parse(LineWorker w, byte[] b, int from, int len, LinePipeline.RowSink out) throws IOException, InterruptedException {
+            int s = TextBytes.trimStart(b, from, from + len);
+            int e = TextBytes.trimEnd(b, s, from + len);
+            if (s == e) return;
+            int t1 = TextBytes.indexOfTab(b, s, e);
+            int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, e);
+            if (t2 < 0 || TextBytes.indexOfTab(b, t2 + 1, e) >= 0) {
+                w.malformed++;
+                return;
+            }
+            w.term.set(b, s, t1 - s);
+            double idf = lookupIdf(w.term, w);
+            if (Double.isNaN(idf)) {
+                w.misses++;
+                return;
+            }
+            out.row(b, t1 + 1, t2 - t1 - 1, b, s, t1 - s, TextBytes.parseDouble(b, t2 + 1, e) * idf);
+        }
+
+        private void emit(LinePipeline.Batch batch) throws IOException, InterruptedException {
+            for (int i = 0; i < batch.rows; i++) {
+                outKey.set(batch.rowBytes, batch.rowStart[i], batch.rowLen[i]);
+                outValue.set(batch.rowValue[i]);
+                ctx.write(outKey, outValue);
+            }
+        }
+
+        // Writes the rows of every batch handed to the pool so far; the pool stays up for further map calls
+        void flushInput(Context context) throws IOException, InterruptedException {
+            if (pipeline != null) pipeline.drain();
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flushInput(context);
+            LineWorker total = new LineWorker();
+            total.add(own);
+            if (pipeline != null) {
+                for (LineWorker w : pipeline.workers()) total.add(w);
+                pipeline.close();
+                pipeline = null;
+            }
+            context.getCounter(PipelineCounters.IDF_MISSES).increment(total.misses);
+            context.getCounter(PipelineCounters.IDF_ESTIMATED).increment(total.estimated);
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(total.malformed);
+        }
+    }
+
+    // Per-thread parse state and counters of Mapper4 (the task thread has its own)
+    private static final class LineWorker {
+        final Text term = new Text();
+        long misses = 0;
+        long estimated = 0;
+        long malformed = 0;
+
+        void add(LineWorker o) {
+            misses += o.misses;
+            estimated += o.estimated;
+            malformed += o.malformed;
         }
     }
 
@@ -71,6 +230,7 @@ public class Job4_TFIDF {
         job.setJarByClass(Job4_TFIDF.class);
 
         job.getConfiguration().set("tfidf.idfDir", idfDir.toString());
+        if ("dict".equals(conf.get(LOOKUP_KEY, "dict"))) addDictionaryToCache(job, idfDir);
 
         job.setMapperClass(Mapper4.class);
         job.setNumReduceTasks(0);
@@ -81,12 +241,28 @@ public class Job4_TFIDF {
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(DoubleWritable.class);
 
-        TextInputFormat.addInputPath(job, inStep2TF);
-        job.setInputFormatClass(TextInputFormat.class);
+        IntermediateFormat.setInput(job, inStep2TF);
+        LinePipeline.requestCores(job);
 
         TextOutputFormat.setOutputPath(job, outStep4);
         job.setOutputFormatClass(TextOutputFormat.class);
 
         return job;
     }
-}
\ No newline at end of file
+
+    private static void addDictionaryToCache(Job job, Path idfDir) throws IOException {
+        FileSystem fs = idfDir.getFileSystem(job.getConfiguration());
+        if (!fs.exists(idfDir)) return;
+        for (FileStatus st : fs.listStatus(idfDir)) {
+            String name = st.getPath().getName();
+            if (name.startsWith(IdfDictionary.FILE_PREFIX)) {
+                URI u = st.getPath().toUri();
+                try {
+                    job.addCacheFile(new URI(u.getScheme(), u.getAuthority(), u.getPath(), null, name));
+                } catch (URISyntaxException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+}
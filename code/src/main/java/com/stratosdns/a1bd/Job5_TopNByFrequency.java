@@ -3,61 +3,173 @@ package com.stratosdns.a1bd;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.*;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
 import java.io.IOException;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Job5_TopNByFrequency {
 
-    public static class Mapper5 extends Mapper<Object, Text, Text, Text> {
-        // Input from Step1 tfraw: "term<TAB>docId<TAB>f"
+    public static final String MAPPER_MAX_DOCS_KEY = "topn.mapper.maxDocs";
+
+    public static class Mapper5 extends Mapper<Object, Writable, Text, Text> {
+        // Map-side pre-selection: every (term, docId) occurs once in tfraw, so a per-document top-N over this
+        // split's records is a superset of what can survive globally
+        private int N;
+        private int maxDocs;
+        private final HashMap<Text, TopNHeap> heaps = new HashMap<>();
+        private final Text probe = new Text();
+        private final Text outValue = new Text();
+        private byte[] scratch = new byte[64];
+        private long malformed = 0;
+
         @Override
-        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString().trim();
-            if (line.isEmpty()) return;
-            String[] parts = line.split("\t");
-            if (parts.length == 3) {
-                String term = parts[0];
-                String docId = parts[1];
-                String f = parts[2];
-                context.write(new Text(docId), new Text(term + "\t" + f));
+        protected void setup(Context context) {
+            N = context.getConfiguration().getInt("topn.N", 5);
+            maxDocs = context.getConfiguration().getInt(MAPPER_MAX_DOCS_KEY, 10000);
+        }
+
+        // Input from Step1 tfraw: "term<TAB>docId<TAB>f" lines, or binary (term, docId) -> f
+        @Override
+        protected void map(Object key, Writable value, Context context) throws IOException, InterruptedException {
+            if (key instanceof TermDocWritable) {
+                TermDocWritable td = (TermDocWritable) key;
+                int f = ((VIntWritable) value).get();
+                TopNHeap heap = heapFor(td.getDocId(), context);
+                if (heap.accepts(f)) heap.offer(td.getTerm().toString(), f);
+                return;
+            }
+            Text line = (Text) value;
+            byte[] b = line.getBytes();
+            int s = TextBytes.trimStart(b, 0, line.getLength());
+            int e = TextBytes.trimEnd(b, s, line.getLength());
+            int t1 = TextBytes.indexOfTab(b, s, e);
+            int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, e);
+            if (s == e) return;
+            if (t2 < 0 || TextBytes.indexOfTab(b, t2 + 1, e) >= 0) { // need exactly term, docId, f
+                malformed++;
+                return;
             }
+            int f = TextBytes.parseCount(b, t2 + 1, e);
+            if (f < 0) {
+                malformed++;
+                return;
+            }
+            probe.set(b, t1 + 1, t2 - t1 - 1);
+            TopNHeap heap = heapFor(probe, context);
+            if (heap.accepts(f)) heap.offer(Text.decode(b, s, t1 - s), f);
+        }
+
+        private TopNHeap heapFor(Text docId, Context context) throws IOException, InterruptedException {
+            TopNHeap heap = heaps.get(docId);
+            if (heap == null) {
+                if (heaps.size() >= maxDocs) flush(context);
+                heap = new TopNHeap(N);
+                heaps.put(new Text(docId), heap);
+            }
+            return heap;
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<Text, TopNHeap> en : heaps.entrySet()) {
+                Text docId = en.getKey();
+                en.getValue().drainDescending((rank, term, f) -> {
+                    scratch = setRow(outValue, 0, term, f, scratch);
+                    context.write(docId, outValue);
+                });
+            }
+            heaps.clear();
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    // value = [rank TAB] term TAB f (no rank when rank is 0), built in the reused Text; returns the scratch buffer
+    private static byte[] setRow(Text value, int rank, String term, int f, byte[] scratch) {
+        value.clear();
+        if (rank > 0) {
+            TextBytes.appendCount(value, rank, scratch);
+            TextBytes.appendTab(value);
+        }
+        scratch = TextBytes.appendString(value, term, scratch);
+        TextBytes.appendTab(value);
+        TextBytes.appendCount(value, f, scratch);
+        return scratch;
+    }
+
+    // Feeds "term<TAB>f" values into the heap; the term String is only built for accepted candidates.
+    // Returns the number of values seen.
+    private static long select(Iterable<Text> values, TopNHeap heap) throws IOException {
+        long seen = 0;
+        for (Text v : values) {
+            seen++;
+            byte[] b = v.getBytes();
+            int len = v.getLength();
+            int tab = TextBytes.lastIndexOfTab(b, 0, len);
+            if (tab < 0) continue;
+            int f = TextBytes.parseCount(b, tab + 1, len);
+            if (f < 0 || !heap.accepts(f)) continue;
+            heap.offer(Text.decode(b, 0, tab), f);
+        }
+        return seen;
+    }
+
+    // Forwards only the per-document top-N candidates of this map task
+    public static class Combiner5 extends Reducer<Text, Text, Text, Text> {
+        private TopNHeap heap;
+        private final Text outValue = new Text();
+        private byte[] scratch = new byte[64];
+
+        @Override
+        protected void setup(Context context) {
+            heap = new TopNHeap(context.getConfiguration().getInt("topn.N", 5));
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            heap.clear();
+            select(values, heap);
+            heap.drainDescending((rank, term, f) -> {
+                scratch = setRow(outValue, 0, term, f, scratch);
+                context.write(key, outValue);
+            });
         }
     }
 
     public static class Reducer5 extends Reducer<Text, Text, Text, Text> {
-        private int N;
+        private TopNHeap heap;
+        private final Text outValue = new Text();
+        private byte[] scratch = new byte[64];
+        private long candidates = 0;
 
         @Override
         protected void setup(Context context) {
-            N = context.getConfiguration().getInt("topn.N", 5);
+            heap = new TopNHeap(context.getConfiguration().getInt("topn.N", 5));
         }
 
         @Override
         protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            // Min-heap by frequency; keep only N largest
-            PriorityQueue<String[]> pq = new PriorityQueue<>(Comparator.comparingInt(a -> Integer.parseInt(a[1])));
-            for (Text v : values) {
-                String[] parts = v.toString().split("\t");
-                if (parts.length != 2) continue;
-                String term = parts[0];
-                int f = Integer.parseInt(parts[1]);
-                pq.offer(new String[]{term, String.valueOf(f)});
-                if (pq.size() > N) pq.poll();
-            }
-            // Emit in descending order
-            PriorityQueue<String[]> out = new PriorityQueue<>((a, b) -> Integer.parseInt(b[1]) - Integer.parseInt(a[1]));
-            out.addAll(pq);
-            int rank = 1;
-            while (!out.isEmpty()) {
-                String[] e = out.poll();
-                context.write(key, new Text(rank + "\t" + e[0] + "\t" + e[1]));
-                rank++;
-            }
+            // Min-heap by frequency; keep only N largest, emitted in descending order
+            heap.clear();
+            candidates += select(values, heap);
+            heap.drainDescending((rank, term, f) -> {
+                scratch = setRow(outValue, rank, term, f, scratch);
+                context.write(key, outValue);
+            });
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.TOPN_CANDIDATES).increment(candidates);
+            context.getCounter(PipelineCounters.TOPN_HEAP_INSERTS).increment(heap.getInserts());
         }
     }
 
@@ -68,6 +180,7 @@ public class Job5_TopNByFrequency {
         job.getConfiguration().setInt("topn.N", N);
 
         job.setMapperClass(Mapper5.class);
+        job.setCombinerClass(Combiner5.class);
         job.setReducerClass(Reducer5.class);
 
         job.setMapOutputKeyClass(Text.class);
@@ -76,8 +189,7 @@ public class Job5_TopNByFrequency {
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(Text.class);
 
-        TextInputFormat.addInputPath(job, inTfRaw);
-        job.setInputFormatClass(TextInputFormat.class);
+        IntermediateFormat.setInput(job, inTfRaw);
 
         TextOutputFormat.setOutputPath(job, outTopN);
         job.setOutputFormatClass(TextOutputFormat.class);
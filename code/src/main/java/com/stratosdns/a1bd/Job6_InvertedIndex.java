@@ -0,0 +1,152 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+// Builds the term-partitioned InvertedIndex from step4_tfidf: one index-r-NNNNN shard per reducer
+public class Job6_InvertedIndex {
+
+    public static final String DOCS_KEY = "index.docsFile";
+
+    public static class Mapper6 extends Mapper<Object, Text, Text, LongWritable> {
+        private final HashMap<Text, Integer> ordinals = new HashMap<>();
+        private final Text probe = new Text();
+        private final Text term = new Text();
+        private final LongWritable posting = new LongWritable();
+        private long malformed = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            String docs = conf.get(DOCS_KEY);
+            if (docs == null) throw new IOException(DOCS_KEY + " not provided");
+            IntermediateFormat.forEachLine(conf, new Path(docs), d -> ordinals.put(new Text(d), ordinals.size()));
+        }
+
+        // Input from Step4: "docId<TAB>term<TAB>tfidf" -> term, (doc ordinal << 32 | float bits of tfidf)
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            byte[] b = value.getBytes();
+            int end = TextBytes.trimEnd(b, 0, value.getLength());
+            if (TextBytes.trimStart(b, 0, end) == end) return;
+            int t1 = TextBytes.indexOfTab(b, 0, end);
+            int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, end);
+            Integer doc = null;
+            if (t2 >= 0 && TextBytes.indexOfTab(b, t2 + 1, end) < 0) {
+                probe.set(b, 0, t1);
+                doc = ordinals.get(probe);
+            }
+            if (doc == null) {
+                malformed++;
+                return;
+            }
+            term.set(b, t1 + 1, t2 - t1 - 1);
+            float score = (float) TextBytes.parseDouble(b, t2 + 1, end);
+            posting.set(((long) doc << 32) | (Float.floatToIntBits(score) & 0xffffffffL));
+            context.write(term, posting);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    public static class Reducer6 extends Reducer<Text, LongWritable, Text, Text> {
+        private InvertedIndex.Writer index;
+        private long[] packed = new long[1024];
+        private int[] docs = new int[1024];
+        private float[] scores = new float[1024];
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            // Shard written as a side file next to the (empty) part output, committed with the task
+            Path dir = FileOutputFormat.getWorkOutputPath(context);
+            int partition = context.getTaskAttemptID().getTaskID().getId();
+            Path p = new Path(dir, String.format("%s-r-%05d", InvertedIndex.FILE_PREFIX, partition));
+            index = new InvertedIndex.Writer(p.getFileSystem(context.getConfiguration()).create(p, false));
+        }
+
+        // A term's postings arrive unordered; sorting the packed longs orders them by doc ordinal
+        @Override
+        protected void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException {
+            int n = 0;
+            for (LongWritable v : values) {
+                if (n == packed.length) packed = Arrays.copyOf(packed, n * 2);
+                packed[n++] = v.get();
+            }
+            Arrays.sort(packed, 0, n);
+            if (n > docs.length) {
+                docs = new int[packed.length];
+                scores = new float[packed.length];
+            }
+            for (int i = 0; i < n; i++) {
+                docs[i] = (int) (packed[i] >>> 32);
+                scores[i] = Float.intBitsToFloat((int) packed[i]);
+            }
+            index.append(key, docs, scores, n);
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            context.getCounter(PipelineCounters.INDEX_POSTINGS).increment(index.getPostings());
+            index.close();
+        }
+    }
+
+    /** Writes the document table (input file names, sorted; Step1 uses the file name as docId). */
+    public static int writeDocTable(Configuration conf, Path input, Path docsFile) throws IOException {
+        FileSystem fs = input.getFileSystem(conf);
+        List<String> names = new ArrayList<>();
+        for (FileStatus st : LocalEngine.listInputFiles(fs, input)) names.add(st.getPath().getName());
+        Collections.sort(names);
+        FileSystem out = docsFile.getFileSystem(conf);
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(out.create(docsFile, true), StandardCharsets.UTF_8))) {
+            for (String n : names) w.write(n + "\n");
+        }
+        return names.size();
+    }
+
+    public static Job configure(Configuration conf, Path inStep4, Path docsFile, Path outIndex) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Step6 - Inverted index");
+        job.setJarByClass(Job6_InvertedIndex.class);
+
+        job.getConfiguration().set(DOCS_KEY, docsFile.toString());
+
+        job.setMapperClass(Mapper6.class);
+        job.setReducerClass(Reducer6.class);
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(LongWritable.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        FileInputFormat.addInputPath(job, inStep4);
+        // Only the shards are output; no empty part files
+        LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+        FileOutputFormat.setOutputPath(job, outIndex);
+
+        return job;
+    }
+}
@@ -0,0 +1,552 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.*;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.hash.MurmurHash;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Near-duplicate documents from step4_tfidf: pairs whose TF-IDF vectors have a cosine similarity of at least
+ * similar.threshold, without comparing all pairs.
+ *
+ * The signature job gives each document bands x rows random-hyperplane bits (SimHash): bit k is the sign of
+ * Σ weight(t) * (±1 from hash(t, k)), so two documents agree on it with probability 1 - angle / π. Each band's
+ * rows bits are a bucket. The document's vector and band values are written once, to a vectors-r-NNNNN MapFile
+ * keyed by docId; only its docId and priority go out once per band, keyed by (band, bucket). similar.method=minhash
+ * uses bands x rows MinHash values of the document's term set instead (agreeing with probability = Jaccard),
+ * which separates near-duplicates from merely related documents better when every document shares the same
+ * frequent terms.
+ *
+ * The pairs job sees one bucket per reduce call. Buckets that keep fewer than two documents end there; for the
+ * others it looks up the members' vectors by docId and computes the exact cosine of every pair that has not
+ * already been compared in an earlier band. The shuffle is linear in the documents times bands but carries no
+ * vectors; a vector is read once per shared bucket it is in, plus the pairs inside buckets.
+ *
+ * A bucket with more than similar.maxBucket documents keeps the maxBucket with the lowest priority (a hash of
+ * docId and band). The bucket job finds the cutoff priority of every such bucket before the pairs job, so a
+ * reducer can tell whether two documents were both kept in the earlier bucket they share: only then is the pair
+ * skipped, and a pair cut from a full bucket is still compared in a later band.
+ *
+ * With bands=1 and rows=0 every document lands in the same bucket, which is the exact all-pairs computation
+ * (--similar-exact), for measuring recall.
+ */
+public class Job7_SimilarDocs {
+
+    public static final String BANDS_KEY = "similar.bands";
+    public static final String ROWS_KEY = "similar.rows";
+    public static final String SEED_KEY = "similar.seed";
+    public static final String THRESHOLD_KEY = "similar.threshold";
+    // "simhash" (default) or "minhash"
+    public static final String METHOD_KEY = "similar.method";
+    // Documents kept per bucket (0 = no limit); beyond it a bucket is truncated and counted
+    public static final String MAX_BUCKET_KEY = "similar.maxBucket";
+
+    // Cutoffs of the full buckets, written by the bucket job
+    public static final String BUCKETS_DIR_KEY = "similar.bucketsDir";
+    // The signature job's output, holding the vectors-r-NNNNN MapFiles next to the bucket records
+    public static final String VECTORS_DIR_KEY = "similar.vectorsDir";
+    public static final String VECTORS_PREFIX = "vectors";
+
+    private static final MurmurHash HASH = (MurmurHash) MurmurHash.getInstance();
+
+    // Input from Step4: "docId<TAB>term<TAB>tfidf" -> docId, "term<TAB>tfidf"
+    public static class MapperS extends Mapper<Object, Text, Text, Text> {
+        private final Text docId = new Text();
+        private final Text termWeight = new Text();
+        private long malformed = 0;
+
+        @Override
+        protected void map(Object key, Text value, Context context) throws IOException, InterruptedException {
+            byte[] b = value.getBytes();
+            int end = TextBytes.trimEnd(b, 0, value.getLength());
+            if (TextBytes.trimStart(b, 0, end) == end) return;
+            int t1 = TextBytes.indexOfTab(b, 0, end);
+            int t2 = t1 < 0 ? -1 : TextBytes.indexOfTab(b, t1 + 1, end);
+            if (t2 < 0 || TextBytes.indexOfTab(b, t2 + 1, end) >= 0) {
+                malformed++;
+                return;
+            }
+            docId.set(b, 0, t1);
+            termWeight.set(b, t1 + 1, end - t1 - 1);
+            context.write(docId, termWeight);
+        }
+
+        @Override
+        protected void cleanup(Context context) {
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    /** A document in one of its buckets: its docId and its priority in that band. */
+    public static class Member implements Writable {
+        private final Text docId = new Text();
+        private long priority;
+
+        public Text getDocId() {
+            return docId;
+        }
+
+        public long getPriority() {
+            return priority;
+        }
+
+        public void set(Text docId, long priority) {
+            this.docId.set(docId);
+            this.priority = priority;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            docId.write(out);
+            out.writeLong(priority);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            docId.readFields(in);
+            priority = in.readLong();
+        }
+    }
+
+    // One document's terms -> its unit vector and band values in the vectors MapFile, and a Member per band
+    public static class ReducerS extends Reducer<Text, Text, LongWritable, Member> {
+        private int bands;
+        private int rows;
+        private long seed;
+        private boolean minHash;
+        private long[] terms = new long[1024];
+        private double[] weights = new double[1024];
+        private Integer[] order = new Integer[0];
+        private double[] acc;
+        private long[] mins;
+        private final DocSignature sig = new DocSignature();
+        private final LongWritable bucket = new LongWritable();
+        private final Member member = new Member();
+        private MapFile.Writer vectors;
+        private long malformed = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            vectors = openVectors(context);
+            bands = conf.getInt(BANDS_KEY, 16);
+            rows = conf.getInt(ROWS_KEY, 8);
+            seed = conf.getLong(SEED_KEY, 42);
+            minHash = "minhash".equals(conf.get(METHOD_KEY, "simhash"));
+            acc = new double[bands * rows];
+            mins = new long[bands * rows];
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            int n = 0;
+            double norm = 0.0;
+            for (Text v : values) {
+                byte[] b = v.getBytes();
+                int tab = TextBytes.indexOfTab(b, 0, v.getLength());
+                if (tab < 0) {
+                    malformed++;
+                    continue;
+                }
+                double w = TextBytes.parseDouble(b, tab + 1, v.getLength());
+                if (w == 0.0) continue; // a term in every document carries no similarity
+                if (n == terms.length) {
+                    terms = Arrays.copyOf(terms, n * 2);
+                    weights = Arrays.copyOf(weights, n * 2);
+                }
+                terms[n] = termHash(b, tab, seed);
+                weights[n++] = w;
+                norm += w * w;
+            }
+            if (n == 0) return;
+            norm = Math.sqrt(norm);
+
+            // Unit vector sorted by term hash, for the merge in DocSignature.cosine
+            if (order.length < n) order = new Integer[terms.length];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, 0, n, Comparator.comparingLong(i -> terms[i]));
+            long[] sortedTerms = new long[n];
+            double[] sortedWeights = new double[n];
+            for (int i = 0; i < n; i++) {
+                sortedTerms[i] = terms[order[i]];
+                sortedWeights[i] = weights[order[i]] / norm;
+            }
+
+            int[] bandValues = minHash ? minHashBands(sortedTerms, n) : simHashBands(sortedTerms, sortedWeights, n);
+
+            sig.set(key, bandValues, sortedTerms, sortedWeights, n);
+            vectors.append(key, sig); // keys arrive in Text order, as MapFile needs
+            for (int band = 0; band < bands; band++) {
+                bucket.set(((long) band << 32) | (bandValues[band] & 0xffffffffL));
+                member.set(key, priority(key, band));
+                context.write(bucket, member);
+            }
+        }
+
+        // vectors-r-NNNNN next to the part file, committed with the task output. Every key is indexed, so a
+        // lookup is one seek; record compression keeps single vectors readable without their neighbours
+        private static MapFile.Writer openVectors(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            Path dir = FileOutputFormat.getWorkOutputPath(context);
+            int partition = context.getTaskAttemptID().getTaskID().getId();
+            Path p = new Path(dir, String.format("%s-r-%05d", VECTORS_PREFIX, partition));
+            SequenceFile.Writer.Option compression = FileOutputFormat.getCompressOutput(context)
+                    ? SequenceFile.Writer.compression(SequenceFile.CompressionType.RECORD,
+                            ReflectionUtils.newInstance(FileOutputFormat.getOutputCompressorClass(context, DefaultCodec.class), conf))
+                    : SequenceFile.Writer.compression(SequenceFile.CompressionType.NONE);
+            MapFile.Writer w = new MapFile.Writer(conf, p, MapFile.Writer.keyClass(Text.class),
+                    SequenceFile.Writer.valueClass(DocSignature.class), compression);
+            w.setIndexInterval(1);
+            return w;
+        }
+
+        // bit k of the signature: sign of Σ w * (±1), the ±1 taken from a stream of 64 bits per term
+        private int[] simHashBands(long[] terms, double[] weights, int n) {
+            Arrays.fill(acc, 0.0);
+            for (int i = 0; i < n; i++) {
+                double w = weights[i];
+                long x = terms[i];
+                for (int k = 0; k < acc.length; k++) {
+                    if ((k & 63) == 0) x = mix(x + 0x9e3779b97f4a7c15L);
+                    acc[k] += ((x >>> (k & 63)) & 1L) != 0 ? w : -w;
+                }
+            }
+            int[] bandValues = new int[bands];
+            for (int band = 0; band < bands; band++) {
+                int v = 0;
+                for (int r = 0; r < rows; r++) if (acc[band * rows + r] > 0) v |= 1 << r;
+                bandValues[band] = v;
+            }
+            return bandValues;
+        }
+
+        // value k: the smallest hash_k(t) over the terms; a band's value is a hash of its rows values
+        private int[] minHashBands(long[] terms, int n) {
+            Arrays.fill(mins, Long.MAX_VALUE);
+            for (int i = 0; i < n; i++) {
+                for (int k = 0; k < mins.length; k++) {
+                    long h = mix(terms[i] ^ (0x9e3779b97f4a7c15L * (k + 1)));
+                    if (h < mins[k]) mins[k] = h;
+                }
+            }
+            int[] bandValues = new int[bands];
+            for (int band = 0; band < bands; band++) {
+                long h = band;
+                for (int r = 0; r < rows; r++) h = mix(h ^ mins[band * rows + r]);
+                bandValues[band] = (int) (h ^ (h >>> 32));
+            }
+            return bandValues;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            vectors.close();
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    // Bucket job: (band, bucket) -> priority of each document, reduced to the cutoff of every full bucket
+
+    public static class MapperB extends Mapper<LongWritable, Member, LongWritable, LongWritable> {
+        private final LongWritable out = new LongWritable();
+
+        @Override
+        protected void map(LongWritable key, Member value, Context context) throws IOException, InterruptedException {
+            out.set(value.getPriority());
+            context.write(key, out);
+        }
+    }
+
+    // Keeps the maxBucket + 1 lowest priorities of a bucket: enough for its cutoff and to tell that it is full
+    public static class CombinerB extends Reducer<LongWritable, LongWritable, LongWritable, LongWritable> {
+        private int keep;
+        private final LongWritable out = new LongWritable();
+
+        @Override
+        protected void setup(Context context) {
+            keep = context.getConfiguration().getInt(MAX_BUCKET_KEY, 1000) + 1;
+        }
+
+        @Override
+        protected void reduce(LongWritable key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            for (long p : lowest(values, keep)) {
+                out.set(p);
+                context.write(key, out);
+            }
+        }
+    }
+
+    public static class ReducerB extends Reducer<LongWritable, LongWritable, LongWritable, LongWritable> {
+        private int maxBucket;
+        private final LongWritable out = new LongWritable();
+
+        @Override
+        protected void setup(Context context) {
+            maxBucket = context.getConfiguration().getInt(MAX_BUCKET_KEY, 1000);
+        }
+
+        @Override
+        protected void reduce(LongWritable key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long[] low = lowest(values, maxBucket + 1);
+            if (low.length <= maxBucket) return;
+            out.set(low[maxBucket - 1]);
+            context.write(key, out);
+        }
+    }
+
+    // The k lowest values, ascending, through a bounded max-heap
+    static long[] lowest(Iterable<LongWritable> values, int k) {
+        long[] heap = new long[k];
+        int n = 0;
+        for (LongWritable w : values) {
+            long v = w.get();
+            if (n < k) {
+                int i = n++;
+                heap[i] = v;
+                while (i > 0 && heap[(i - 1) >>> 1] < heap[i]) {
+                    int parent = (i - 1) >>> 1;
+                    long t = heap[parent];
+                    heap[parent] = heap[i];
+                    heap[i] = t;
+                    i = parent;
+                }
+            } else if (v < heap[0]) {
+                heap[0] = v;
+                int i = 0;
+                while (true) {
+                    int l = 2 * i + 1, r = l + 1, max = i;
+                    if (l < n && heap[l] > heap[max]) max = l;
+                    if (r < n && heap[r] > heap[max]) max = r;
+                    if (max == i) break;
+                    long t = heap[max];
+                    heap[max] = heap[i];
+                    heap[i] = t;
+                    i = max;
+                }
+            }
+        }
+        long[] low = Arrays.copyOf(heap, n);
+        Arrays.sort(low);
+        return low;
+    }
+
+    // Order of a document inside its buckets of one band; a full bucket keeps the lowest
+    static long priority(Text docId, int band) {
+        return mix(termHash(docId.getBytes(), docId.getLength(), 0) + band);
+    }
+
+    // One bucket -> exact cosine of the pairs compared here first; "docA<TAB>docB" -> cosine, docA < docB
+    public static class ReducerP extends Reducer<LongWritable, Member, Text, DoubleWritable> {
+        private double threshold;
+        private final HashMap<Long, Long> cutoffs = new HashMap<>();
+        private MapFile.Reader[] vectors;
+        private final List<Text> kept = new ArrayList<>();
+        private final List<DocSignature> docs = new ArrayList<>();
+        private final DocSignature found = new DocSignature();
+        private final Text pair = new Text();
+        private final DoubleWritable cosine = new DoubleWritable();
+        private long candidates = 0;
+        private long similar = 0;
+        private long truncated = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            threshold = conf.getDouble(THRESHOLD_KEY, 0.8);
+            vectors = openVectors(conf, new Path(conf.get(VECTORS_DIR_KEY)));
+            String dir = conf.get(BUCKETS_DIR_KEY);
+            if (dir == null) return;
+            Path bucketsDir = new Path(dir);
+            FileSystem fs = bucketsDir.getFileSystem(conf);
+            for (FileStatus st : fs.listStatus(bucketsDir)) {
+                if (!st.getPath().getName().startsWith("part-")) continue;
+                try (SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(st.getPath()))) {
+                    LongWritable k = new LongWritable();
+                    LongWritable v = new LongWritable();
+                    while (r.next(k, v)) cutoffs.put(k.get(), v.get());
+                }
+            }
+        }
+
+        // The signature job's MapFiles in partition order, so a docId is in the one its HashPartitioner picked
+        private static MapFile.Reader[] openVectors(Configuration conf, Path dir) throws IOException {
+            FileSystem fs = dir.getFileSystem(conf);
+            FileStatus[] parts = fs.listStatus(dir, p -> p.getName().startsWith(VECTORS_PREFIX + "-"));
+            if (parts.length == 0) throw new IOException("No " + VECTORS_PREFIX + "-r-* files in " + dir);
+            Arrays.sort(parts);
+            MapFile.Reader[] readers = new MapFile.Reader[parts.length];
+            for (int i = 0; i < parts.length; i++) readers[i] = new MapFile.Reader(parts[i].getPath(), conf);
+            return readers;
+        }
+
+        private DocSignature lookup(Text docId) throws IOException {
+            MapFile.Reader r = vectors[(docId.hashCode() & Integer.MAX_VALUE) % vectors.length];
+            if (r.get(docId, found) == null) throw new IOException("No vector for document " + docId);
+            return found.copy();
+        }
+
+        @Override
+        protected void reduce(LongWritable key, Iterable<Member> values, Context context) throws IOException, InterruptedException {
+            int band = (int) (key.get() >>> 32);
+            Long cutoff = cutoffs.get(key.get());
+            kept.clear();
+            for (Member m : values) {
+                if (cutoff != null && m.getPriority() > cutoff) {
+                    truncated++;
+                    continue;
+                }
+                kept.add(new Text(m.getDocId()));
+            }
+            if (kept.size() < 2) return; // most buckets: no vector is read
+            docs.clear();
+            for (Text docId : kept) docs.add(lookup(docId));
+            docs.sort(Comparator.comparing(DocSignature::getDocId));
+            for (int i = 0; i < docs.size(); i++) {
+                DocSignature a = docs.get(i);
+                for (int j = i + 1; j < docs.size(); j++) {
+                    DocSignature b = docs.get(j);
+                    if (comparedBefore(a, b, band)) continue;
+                    candidates++;
+                    double c = a.cosine(b);
+                    if (c < threshold) continue;
+                    Text x = a.getDocId(), y = b.getDocId();
+                    TextBytes.setJoined(pair, x.getBytes(), 0, x.getLength(), y.getBytes(), 0, y.getLength());
+                    cosine.set(c);
+                    context.write(pair, cosine);
+                    similar++;
+                }
+            }
+        }
+
+        // True when a and b share a bucket of an earlier band that kept both, so that reducer compared them
+        private boolean comparedBefore(DocSignature a, DocSignature b, int band) {
+            if (cutoffs.isEmpty()) return a.sharesBandBefore(b, band);
+            for (int i = 0; i < band; i++) {
+                if (a.getBand(i) != b.getBand(i)) continue;
+                Long cutoff = cutoffs.get(((long) i << 32) | (a.getBand(i) & 0xffffffffL));
+                if (cutoff == null || (priority(a.getDocId(), i) <= cutoff && priority(b.getDocId(), i) <= cutoff)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException {
+            for (MapFile.Reader r : vectors) r.close();
+            context.getCounter(PipelineCounters.SIMILAR_CANDIDATES).increment(candidates);
+            context.getCounter(PipelineCounters.SIMILAR_PAIRS).increment(similar);
+            context.getCounter(PipelineCounters.SIMILAR_BUCKET_TRUNCATED).increment(truncated);
+        }
+    }
+
+    // 64-bit hash of the term bytes b[0, len)
+    static long termHash(byte[] b, int len, long seed) {
+        int s = (int) seed;
+        return ((long) HASH.hash(b, len, s) << 32) | (HASH.hash(b, len, s ^ 0x5bd1e995) & 0xffffffffL);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public static Job configureSignatures(Configuration conf, Path inStep4, Path outSignatures) throws IOException {
+        int rows = conf.getInt(ROWS_KEY, 8);
+        if (rows < 0 || rows > 32 || conf.getInt(BANDS_KEY, 16) < 1) {
+            throw new IllegalArgumentException("similar.rows must be 0..32 and similar.bands at least 1");
+        }
+        Job job = Job.getInstance(conf, "A1_BD - Step7 - Document signatures (LSH)");
+        job.setJarByClass(Job7_SimilarDocs.class);
+
+        job.setMapperClass(MapperS.class);
+        job.setReducerClass(ReducerS.class);
+        job.setPartitionerClass(HashPartitioner.class); // ReducerP finds a docId's vectors file the same way
+
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Text.class);
+
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(Member.class);
+
+        FileInputFormat.addInputPath(job, inStep4);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+        FileOutputFormat.setOutputPath(job, outSignatures);
+
+        return job;
+    }
+
+    public static Job configureBuckets(Configuration conf, Path inSignatures, Path outBuckets) throws IOException {
+        if (conf.getInt(MAX_BUCKET_KEY, 1000) < 1) throw new IllegalArgumentException("the bucket job needs similar.maxBucket of at least 1");
+        Job job = Job.getInstance(conf, "A1_BD - Step7 - Full LSH buckets");
+        job.setJarByClass(Job7_SimilarDocs.class);
+
+        job.setMapperClass(MapperB.class);
+        job.setCombinerClass(CombinerB.class);
+        job.setReducerClass(ReducerB.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(LongWritable.class);
+
+        job.setOutputKeyClass(LongWritable.class);
+        job.setOutputValueClass(LongWritable.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, new Path(inSignatures, "part-*"));
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setOutputPath(job, outBuckets);
+
+        return job;
+    }
+
+    /** inBuckets: the bucket job's output, or null when buckets are not limited (similar.maxBucket=0). */
+    public static Job configurePairs(Configuration conf, Path inSignatures, Path inBuckets, Path outSimilar) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Step7 - Similar document pairs");
+        job.setJarByClass(Job7_SimilarDocs.class);
+
+        job.getConfiguration().set(VECTORS_DIR_KEY, inSignatures.toString());
+        if (inBuckets != null) job.getConfiguration().set(BUCKETS_DIR_KEY, inBuckets.toString());
+
+        job.setMapperClass(Mapper.class); // identity: (band, bucket) -> member
+        job.setReducerClass(ReducerP.class);
+
+        job.setMapOutputKeyClass(LongWritable.class);
+        job.setMapOutputValueClass(Member.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(DoubleWritable.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, new Path(inSignatures, "part-*"));
+        TextOutputFormat.setOutputPath(job, outSimilar);
+        job.setOutputFormatClass(TextOutputFormat.class);
+
+        return job;
+    }
+}
@@ -0,0 +1,209 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Spreads the per-line work of one map task over a fixed pool of threads (pipeline.map.threads), for the
+ * CPU-bound mappers: Step1's tokenizer and Step4's parse-and-lookup.
+ *
+ * The task thread copies lines into batches and hands each full batch to the pool. Finished batches come back
+ * to the task thread in submission order, so it writes the rows the workers left in them (context.write is not
+ * thread-safe) in input order, then reuses them; with 2 x threads batches in circulation the task thread waits
+ * when the workers fall behind, so memory stays bounded. Each pool thread keeps its own worker state (tokenizer,
+ * partial counts, counters), created on first use and listed by {@link #workers()} for merging after
+ * {@link #drain()}.
+ *
+ * Hadoop's MultithreadedMapper would run setup once per thread (one idf table per thread in Step4) and lock
+ * around every record read and write; here the tables are shared read-only and locking is per batch.
+ */
+final class LinePipeline<W> implements Closeable {
+
+    public static final String THREADS_KEY = "pipeline.map.threads";
+    public static final String BATCH_LINES_KEY = "pipeline.map.batchLines";
+
+    private static final int BATCH_BYTES = 1 << 20;
+
+    interface BatchWork<W> {
+        void process(W worker, Batch batch) throws Exception;
+    }
+
+    interface Emitter {
+        void emit(Batch batch) throws IOException, InterruptedException;
+    }
+
+    /** Receives "a<TAB>b" -> value rows; Batch collects them for the task thread. */
+    interface RowSink {
+        void row(byte[] a, int aFrom, int aLen, byte[] b, int bFrom, int bLen, double value) throws IOException, InterruptedException;
+    }
+
+    /** Lines handed to a worker, and the rows it produced from them. */
+    static final class Batch implements RowSink {
+        byte[] bytes = new byte[64 * 1024];
+        int used;
+        int[] start = new int[1024];
+        int[] len = new int[1024];
+        int size;
+
+        byte[] rowBytes = new byte[64 * 1024];
+        int rowUsed;
+        int[] rowStart = new int[1024];
+        int[] rowLen = new int[1024];
+        double[] rowValue = new double[1024];
+        int rows;
+
+        Future<?> result;
+
+        void clear() {
+            used = size = rowUsed = rows = 0;
+            result = null;
+        }
+
+        void add(byte[] b, int s, int l) {
+            if (used + l > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + l));
+            if (size == start.length) {
+                start = Arrays.copyOf(start, size * 2);
+                len = Arrays.copyOf(len, size * 2);
+            }
+            System.arraycopy(b, s, bytes, used, l);
+            start[size] = used;
+            len[size++] = l;
+            used += l;
+        }
+
+        @Override
+        public void row(byte[] a, int aFrom, int aLen, byte[] b, int bFrom, int bLen, double value) {
+            int l = aLen + 1 + bLen;
+            if (rowUsed + l > rowBytes.length) rowBytes = Arrays.copyOf(rowBytes, Math.max(rowBytes.length * 2, rowUsed + l));
+            if (rows == rowStart.length) {
+                rowStart = Arrays.copyOf(rowStart, rows * 2);
+                rowLen = Arrays.copyOf(rowLen, rows * 2);
+                rowValue = Arrays.copyOf(rowValue, rows * 2);
+            }
+            System.arraycopy(a, aFrom, rowBytes, rowUsed, aLen);
+            rowBytes[rowUsed + aLen] = '\t';
+            System.arraycopy(b, bFrom, rowBytes, rowUsed + aLen + 1, bLen);
+            rowStart[rows] = rowUsed;
+            rowLen[rows] = l;
+            rowValue[rows++] = value;
+            rowUsed += l;
+        }
+    }
+
+    private final ExecutorService pool;
+    private final ThreadLocal<W> local;
+    private final List<W> workers = new ArrayList<>();
+    private final BatchWork<W> work;
+    private final Emitter emitter;
+    private final int batchLines;
+    private final ArrayDeque<Batch> free = new ArrayDeque<>();
+    private final ArrayDeque<Batch> submitted = new ArrayDeque<>();
+    private Batch current;
+
+    /** emitter may be null when workers only accumulate state. */
+    LinePipeline(int threads, int batchLines, Supplier<W> newWorker, BatchWork<W> work, Emitter emitter) {
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "map-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.local = ThreadLocal.withInitial(() -> {
+            W w = newWorker.get();
+            synchronized (workers) {
+                workers.add(w);
+            }
+            return w;
+        });
+        this.work = work;
+        this.emitter = emitter;
+        this.batchLines = batchLines;
+        for (int i = 0; i < 2 * threads; i++) free.add(new Batch());
+    }
+
+    static int threads(Configuration conf) {
+        return Math.max(1, conf.getInt(THREADS_KEY, 1));
+    }
+
+    static int batchLines(Configuration conf) {
+        return Math.max(1, conf.getInt(BATCH_LINES_KEY, 1024));
+    }
+
+    /** Asks the scheduler for one core per map thread (YARN containers default to one vcore). */
+    static void requestCores(Job job) {
+        int threads = threads(job.getConfiguration());
+        if (threads > 1) job.getConfiguration().setInt(MRJobConfig.MAP_CPU_VCORES, threads);
+    }
+
+    /** Copies one line into the current batch; may block until a worker returns a batch. */
+    void add(byte[] b, int s, int l) throws IOException, InterruptedException {
+        if (current == null) current = nextFree();
+        current.add(b, s, l);
+        if (current.size >= batchLines || current.used >= BATCH_BYTES) submit();
+    }
+
+    /** Waits until every line added so far is processed and its rows emitted. */
+    void drain() throws IOException, InterruptedException {
+        if (current != null) {
+            if (current.size > 0) submit();
+            else free.add(current);
+            current = null;
+        }
+        while (!submitted.isEmpty()) finish(submitted.poll());
+    }
+
+    /** Every worker state created so far; only safe to read or reset right after {@link #drain()}. */
+    List<W> workers() {
+        synchronized (workers) {
+            return new ArrayList<>(workers);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private Batch nextFree() throws IOException, InterruptedException {
+        while (free.isEmpty()) finish(submitted.poll());
+        Batch b = free.poll();
+        b.clear();
+        return b;
+    }
+
+    private void submit() {
+        Batch b = current;
+        current = null;
+        b.result = pool.submit(() -> {
+            work.process(local.get(), b);
+            return null;
+        });
+        submitted.add(b);
+    }
+
+    // Waits for the oldest outstanding batch, emits its rows and returns it to the free list
+    private void finish(Batch b) throws IOException, InterruptedException {
+        try {
+            b.result.get();
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) throw (IOException) t;
+            if (t instanceof InterruptedException) throw (InterruptedException) t;
+            throw new IOException("map worker failed", t);
+        }
+        if (emitter != null) emitter.emit(b);
+        free.add(b);
+    }
+}
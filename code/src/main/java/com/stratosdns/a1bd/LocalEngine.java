@@ -0,0 +1,319 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Single-JVM implementation of the pipeline (--engine=local) for corpora that do not need a cluster.
+ *
+ * Same tokenizer, formulas and text output layout as Driver (step1 tfraw/doctotal, step2_tf, step3_idf,
+ * step4_tfidf, topN_freq, each with a _SUCCESS marker). Documents are tokenized in parallel on a ForkJoinPool
+ * sized by local.threads (default: available cores), at most a few per thread ahead of the writer, which appends
+ * each document's step1, step2_tf and Top-N rows in docId order as soon as it is counted. Only Σ tf per term
+ * stays in memory, added up in document order so the idf values are deterministic; Step4 then streams step2_tf
+ * back and joins it with an IdfDictionary.
+ */
+public class LocalEngine {
+
+    public static final String THREADS_KEY = "local.threads";
+    private static final String[] OUTPUT_DIRS = {"/step1", "/step2_tf", "/step3_idf", "/step4_tfidf"};
+
+    // Per-document term counts, terms sorted so outputs come out in Hadoop's key order
+    static final class DocCounts {
+        final String docId;
+        final String[] terms;
+        final int[] counts;
+        final long total;
+
+        DocCounts(String docId, String[] terms, int[] counts, long total) {
+            this.docId = docId;
+            this.terms = terms;
+            this.counts = counts;
+            this.total = total;
+        }
+    }
+
+    private final Configuration conf;
+    private final ForkJoinPool pool;
+    private final ThreadLocal<Tokenizer> tokenizers;
+    private final LongAdder bytesParsed = new LongAdder();
+    private final LongAdder stopwordsDropped = new LongAdder();
+
+    public LocalEngine(Configuration conf) {
+        this.conf = conf;
+        int threads = conf.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors());
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        this.tokenizers = ThreadLocal.withInitial(() -> Tokenizer.fromConf(conf));
+    }
+
+    public void run(Path input, String outBase, int topN, PipelineMetrics metrics) throws Exception {
+        try {
+            for (String dir : OUTPUT_DIRS) delete(new Path(outBase + dir));
+            delete(new Path(outBase + "/top" + topN + "_freq"));
+
+            FileSystem fs = input.getFileSystem(conf);
+            List<FileStatus> files = listInputFiles(fs, input);
+            files.sort(Comparator.comparing(st -> new Text(st.getPath().getName()))); // the reducers' key order
+
+            long t0 = System.nanoTime();
+            TermSums sums = countAndWriteTf(fs, files, outBase, topN);
+            long t1 = System.nanoTime();
+            IdfDictionary idf = writeIdf(sums, outBase);
+            long t2 = System.nanoTime();
+            writeTfidf(idf, outBase);
+            long t3 = System.nanoTime();
+            for (String dir : OUTPUT_DIRS) touch(new Path(outBase + dir, "_SUCCESS"));
+            touch(new Path(outBase + "/top" + topN + "_freq", "_SUCCESS"));
+            System.err.printf("Local engine: %d docs, %d terms (%d threads)%n", sums.numDocs, idf.size(), pool.getParallelism());
+
+            Map<String, Long> counted = new LinkedHashMap<>();
+            counted.put(PipelineCounters.TOKENS.name(), sums.tokens);
+            counted.put(PipelineCounters.STOPWORDS_DROPPED.name(), stopwordsDropped.sum());
+            counted.put(PipelineCounters.BYTES_PARSED.name(), bytesParsed.sum());
+            metrics.add("Local - tokenize, count and write tf", (t1 - t0) / 1000000, counted);
+            metrics.add("Local - idf", (t2 - t1) / 1000000, Collections.<String, Long>emptyMap());
+            metrics.add("Local - tfidf", (t3 - t2) / 1000000, Collections.<String, Long>emptyMap());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** The documents under an input path: same expansion and hidden-file rule as FileInputFormat (non-recursive). */
+    static List<FileStatus> listInputFiles(FileSystem fs, Path input) throws IOException {
+        FileStatus[] matched = fs.globStatus(input);
+        if (matched == null || matched.length == 0) throw new IOException("Input path does not exist: " + input);
+        List<FileStatus> files = new ArrayList<>();
+        for (FileStatus m : matched) {
+            for (FileStatus st : m.isDirectory() ? fs.listStatus(m.getPath()) : new FileStatus[]{m}) {
+                String name = st.getPath().getName();
+                if (st.isFile() && !name.startsWith("_") && !name.startsWith(".")) files.add(st);
+            }
+        }
+        return files;
+    }
+
+    /** Term counts of each file, in the order given, tokenized on the pool (also used by StreamingEngine). */
+    List<DocCounts> countFiles(FileSystem fs, List<FileStatus> files) throws Exception {
+        return pool.submit(() -> files.parallelStream()
+                .map(st -> {
+                    try {
+                        return countDocument(fs, st.getPath());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .collect(Collectors.toList())).get();
+    }
+
+    long getBytesParsed() {
+        return bytesParsed.sum();
+    }
+
+    long getStopwordsDropped() {
+        return stopwordsDropped.sum();
+    }
+
+    int getThreads() {
+        return pool.getParallelism();
+    }
+
+    void shutdown() {
+        pool.shutdown();
+    }
+
+    private DocCounts countDocument(FileSystem fs, Path p) throws IOException {
+        HashMap<Text, int[]> counts = new HashMap<>();
+        Text probe = new Text();
+        long[] total = {0};
+        Tokenizer tokenizer = tokenizers.get();
+        long droppedBefore = tokenizer.getStopwordsDropped();
+        long bytes = 0;
+        Text line = new Text();
+        try (FSDataInputStream in = fs.open(p)) {
+            LineReader reader = new LineReader(in, conf);
+            while (reader.readLine(line) > 0) {
+                bytes += line.getLength();
+                try {
+                    total[0] += tokenizer.tokenize(line.getBytes(), 0, line.getLength(), (buf, s, l) -> {
+                        probe.set(buf, s, l);
+                        int[] c = counts.get(probe);
+                        if (c == null) counts.put(new Text(probe), new int[]{1});
+                        else c[0]++;
+                    });
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+        bytesParsed.add(bytes);
+        stopwordsDropped.add(tokenizer.getStopwordsDropped() - droppedBefore);
+        String[] terms = new String[counts.size()];
+        int i = 0;
+        for (Text t : counts.keySet()) terms[i++] = t.toString();
+        Arrays.sort(terms); // tokens are [a-z0-9], so String order equals Text byte order
+        int[] c = new int[terms.length];
+        for (i = 0; i < terms.length; i++) c[i] = counts.get(new Text(terms[i]))[0];
+        return new DocCounts(p.getName(), terms, c, total[0]);
+    }
+
+    // What the writer keeps while streaming: Σ tf per term, N and the token count
+    private static final class TermSums {
+        final HashMap<String, double[]> sumTf = new HashMap<>();
+        long numDocs = 0;
+        long tokens = 0;
+    }
+
+    // One counted document with its tfraw, step2_tf and Top-N rows, rendered on the pool
+    private static final class Rendered {
+        final DocCounts counts;
+        final byte[] tfraw;
+        final byte[] tf;
+        final byte[] top;
+
+        Rendered(DocCounts counts, byte[] tfraw, byte[] tf, byte[] top) {
+            this.counts = counts;
+            this.tfraw = tfraw;
+            this.tf = tf;
+            this.top = top;
+        }
+    }
+
+    private Rendered render(FileSystem fs, Path p, int topN) throws IOException, InterruptedException {
+        DocCounts d = countDocument(fs, p);
+        if (d.total == 0) return new Rendered(d, null, null, null); // documents without tokens have no doctotal row
+        StringBuilder tfraw = new StringBuilder();
+        StringBuilder tf = new StringBuilder();
+        TopNHeap heap = new TopNHeap(topN);
+        for (int i = 0; i < d.terms.length; i++) {
+            tfraw.append(d.terms[i]).append('\t').append(d.docId).append('\t').append(d.counts[i]).append('\n');
+            tf.append(d.terms[i]).append('\t').append(d.docId).append('\t').append((double) d.counts[i] / (double) d.total).append('\n');
+            if (heap.accepts(d.counts[i])) heap.offer(d.terms[i], d.counts[i]);
+        }
+        StringBuilder top = new StringBuilder();
+        heap.drainDescending((rank, term, f) -> top.append(d.docId).append('\t').append(rank).append('\t').append(term).append('\t').append(f).append('\n'));
+        return new Rendered(d, bytes(tfraw), bytes(tf), bytes(top));
+    }
+
+    private static byte[] bytes(CharSequence s) {
+        return s.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Steps 1 and 2 and Top-N in one pass: files are counted on the pool, a bounded window ahead, and written here
+    // in order; only their Σ tf outlives each document
+    private TermSums countAndWriteTf(FileSystem fs, List<FileStatus> files, String outBase, int topN) throws Exception {
+        TermSums sums = new TermSums();
+        int window = pool.getParallelism() * 4;
+        ArrayDeque<ForkJoinTask<Rendered>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        try (OutputStream tfraw = create(outBase + "/step1", "tfraw-r-00000");
+             OutputStream doctotal = create(outBase + "/step1", "doctotal-r-00000");
+             OutputStream tf = create(outBase + "/step2_tf", "part-r-00000");
+             OutputStream top = create(outBase + "/top" + topN + "_freq", "part-r-00000")) {
+            create(outBase + "/step1", "part-r-00000").close();
+            while (next < files.size() || !inFlight.isEmpty()) {
+                while (next < files.size() && inFlight.size() < window) {
+                    Path p = files.get(next++).getPath();
+                    inFlight.add(pool.submit(() -> render(fs, p, topN)));
+                }
+                Rendered r = inFlight.poll().get();
+                DocCounts d = r.counts;
+                if (d.total == 0) continue;
+                tfraw.write(r.tfraw);
+                doctotal.write(bytes(d.docId + "\t" + d.total + "\n"));
+                tf.write(r.tf);
+                top.write(r.top);
+                for (int i = 0; i < d.terms.length; i++) {
+                    double[] sum = sums.sumTf.get(d.terms[i]);
+                    if (sum == null) sums.sumTf.put(d.terms[i], sum = new double[1]);
+                    sum[0] += (double) d.counts[i] / (double) d.total;
+                }
+                sums.numDocs++;
+                sums.tokens += d.total;
+            }
+        } finally {
+            for (ForkJoinTask<Rendered> t : inFlight) t.cancel(true);
+        }
+        return sums;
+    }
+
+    // step3_idf part and idfdict files, as Step3 writes them; returns the same table for Step4
+    private IdfDictionary writeIdf(TermSums sums, String outBase) throws IOException {
+        String[] terms = sums.sumTf.keySet().toArray(new String[0]);
+        Arrays.sort(terms); // tokens are [a-z0-9], so String order equals Text byte order
+        IdfDictionary.Builder table = new IdfDictionary.Builder();
+        Path dictPath = new Path(outBase + "/step3_idf", IdfDictionary.FILE_PREFIX + "-r-00000");
+        try (OutputStream part = create(outBase + "/step3_idf", "part-r-00000");
+             IdfDictionary.Writer dict = new IdfDictionary.Writer(dictPath.getFileSystem(conf).create(dictPath, true))) {
+            Text t = new Text();
+            for (String term : terms) {
+                double sum = sums.sumTf.get(term)[0];
+                if (sum <= 0.0) continue;
+                double v = Math.log((double) sums.numDocs / sum);
+                part.write(bytes(term + "\t" + v + "\n"));
+                t.set(term);
+                dict.append(t, v);
+                table.append(t.getBytes(), 0, t.getLength(), v);
+            }
+        }
+        return table.build();
+    }
+
+    // Map-only Step4 over step2_tf as written above ("term<TAB>docId<TAB>tf"), so rows keep its docId order
+    private void writeTfidf(IdfDictionary idf, String outBase) throws IOException {
+        Path in = new Path(outBase + "/step2_tf", "part-r-00000");
+        Text line = new Text();
+        try (FSDataInputStream raw = in.getFileSystem(conf).open(in);
+             OutputStream out = create(outBase + "/step4_tfidf", "part-m-00000")) {
+            LineReader reader = new LineReader(raw, conf);
+            while (reader.readLine(line) > 0) {
+                byte[] b = line.getBytes();
+                int t1 = TextBytes.indexOfTab(b, 0, line.getLength());
+                int t2 = TextBytes.indexOfTab(b, t1 + 1, line.getLength());
+                double v = idf.get(b, 0, t1);
+                if (Double.isNaN(v)) continue;
+                out.write(b, t1 + 1, t2 - t1);
+                out.write(b, 0, t1 + 1);
+                out.write(bytes(Double.toString(TextBytes.parseDouble(b, t2 + 1, line.getLength()) * v)));
+                out.write('\n');
+            }
+        }
+    }
+
+    private OutputStream create(String dir, String file) throws IOException {
+        Path p = new Path(dir, file);
+        return new BufferedOutputStream(p.getFileSystem(conf).create(p, true), 1 << 16);
+    }
+
+    private void touch(Path p) throws IOException {
+        p.getFileSystem(conf).create(p, true).close();
+    }
+
+    private void delete(Path p) throws IOException {
+        FileSystem fs = p.getFileSystem(conf);
+        if (fs.exists(p)) fs.delete(p, true);
+    }
+}
@@ -0,0 +1,32 @@
+package com.stratosdns.a1bd;
+
+/**
+ * Counters shared by the pipeline's mappers and reducers; Driver copies them into the _metrics report.
+ *
+ * Mappers accumulate in fields and increment once in cleanup, so the per-record path does no counter lookups.
+ */
+public enum PipelineCounters {
+    // Tokenizer: tokens kept, tokens filtered as stopwords, input bytes scanned
+    TOKENS,
+    STOPWORDS_DROPPED,
+    BYTES_PARSED,
+    // Intermediate records that do not have the expected shape and were skipped
+    MALFORMED_RECORDS,
+    // Step4: terms without an idf (row dropped) and idf values estimated from the sketch
+    IDF_MISSES,
+    IDF_ESTIMATED,
+    // Top-N: candidate entries seen and entries that made it into the heap
+    TOPN_CANDIDATES,
+    TOPN_HEAP_INSERTS,
+    // Step6: postings written to the inverted index
+    INDEX_POSTINGS,
+    // Step1 with --token-cache: documents whose counts came from the cache, and documents tokenized
+    TOKEN_CACHE_HITS,
+    TOKEN_CACHE_MISSES,
+    // Step7: pairs whose cosine was computed, pairs at or above the threshold, documents dropped from full buckets
+    SIMILAR_CANDIDATES,
+    SIMILAR_PAIRS,
+    SIMILAR_BUCKET_TRUNCATED,
+    // --verify-fused: step4_tfidf rows missing from one output or differing between the fused and 4-job runs
+    VERIFY_MISMATCHES
+}
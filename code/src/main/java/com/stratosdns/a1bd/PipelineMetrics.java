@@ -0,0 +1,267 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormatCounter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Per-stage wall-clock and counters of one pipeline run, written as JSON to {@code <outBase>/_metrics/summary.json}.
+ *
+ * Each stage records its wall-clock time, the framework's shuffle/spill/record counters, and every counter
+ * group the job reported (including {@link PipelineCounters}). When outputs are compressed, the stored vs.
+ * uncompressed size of every step directory is added under "storage". Runs scheduled by {@link StageScheduler}
+ * also list resumed (skipped) stages and the critical path. The file is overwritten by every run, like the step
+ * outputs it describes.
+ */
+public class PipelineMetrics {
+
+    public static final String DIR = "_metrics";
+    public static final String FILE = "summary.json";
+
+    private static final class Stage {
+        final String name;
+        final String jobName;
+        final String jobId;
+        final boolean succeeded;
+        final boolean skipped;
+        final long wallClockMs;
+        final Map<String, Map<String, Long>> counters;
+
+        Stage(String name, String jobName, String jobId, boolean succeeded, boolean skipped, long wallClockMs,
+              Map<String, Map<String, Long>> counters) {
+            this.name = name;
+            this.jobName = jobName;
+            this.jobId = jobId;
+            this.succeeded = succeeded;
+            this.skipped = skipped;
+            this.wallClockMs = wallClockMs;
+            this.counters = counters;
+        }
+
+        long counter(Enum<?> c) {
+            Map<String, Long> g = counters.get(c.getDeclaringClass().getName());
+            Long v = g == null ? null : g.get(c.name());
+            return v == null ? 0 : v;
+        }
+    }
+
+    private final Configuration conf;
+    private final String outBase;
+    private final String engine;
+    private final long startMs = System.currentTimeMillis();
+    private final List<Stage> stages = new ArrayList<>();
+    private final Map<String, long[]> storage = new LinkedHashMap<>();
+    private List<String> criticalPath;
+    private long criticalPathMs, scheduledMs;
+
+    public PipelineMetrics(Configuration conf, String outBase, String engine) {
+        this.conf = conf;
+        this.outBase = outBase;
+        this.engine = engine;
+    }
+
+    /**
+     * Runs the job and records it under the stage name (the one {@link #addSkipped} gets when the stage is resumed
+     * instead); returns waitForCompletion's result. Safe to call for concurrent jobs.
+     */
+    public boolean run(String name, Job job) throws IOException, InterruptedException, ClassNotFoundException {
+        long t0 = System.currentTimeMillis();
+        boolean ok = job.waitForCompletion(true);
+        long wall = System.currentTimeMillis() - t0;
+        Map<String, Map<String, Long>> counters = new LinkedHashMap<>();
+        Counters jc = job.getCounters(); // null if the job never got to report
+        if (jc != null) {
+            for (CounterGroup g : jc) {
+                Map<String, Long> values = new LinkedHashMap<>();
+                for (Counter c : g) values.put(c.getName(), c.getValue());
+                counters.put(g.getName(), values);
+            }
+        }
+        synchronized (stages) {
+            stages.add(new Stage(name, job.getJobName(), String.valueOf(job.getJobID()), ok, false, wall, counters));
+        }
+        return ok;
+    }
+
+    /** Records a stage that did not run as a MapReduce job (e.g. the local engine). */
+    public void add(String name, long wallClockMs, Map<String, Long> pipelineCounters) {
+        Map<String, Map<String, Long>> counters = new LinkedHashMap<>();
+        counters.put(PipelineCounters.class.getName(), new LinkedHashMap<>(pipelineCounters));
+        synchronized (stages) {
+            stages.add(new Stage(name, null, null, true, false, wallClockMs, counters));
+        }
+    }
+
+    /** Records a stage whose output was reused from an earlier run. */
+    public void addSkipped(String name) {
+        synchronized (stages) {
+            stages.add(new Stage(name, null, null, true, true, 0, new LinkedHashMap<>()));
+        }
+    }
+
+    /** Stage names along the critical path, their summed wall-clock, and the whole scheduled run's wall-clock. */
+    public void setCriticalPath(List<String> path, long pathMs, long elapsedMs) {
+        criticalPath = path;
+        criticalPathMs = pathMs;
+        scheduledMs = elapsedMs;
+    }
+
+    /** Records the {stored, uncompressed} bytes of one output directory. */
+    public void addStorage(String dir, long[] storedAndRaw) {
+        storage.put(dir, storedAndRaw);
+    }
+
+    /** One line per stage on stderr, slowest stage marked. */
+    public void print() {
+        long slowest = 0;
+        for (Stage s : stages) slowest = Math.max(slowest, s.wallClockMs);
+        System.err.println("Stage metrics:");
+        for (Stage s : stages) {
+            if (s.skipped) {
+                System.err.printf("  %-45s   resumed (output reused)%n", s.name);
+                continue;
+            }
+            System.err.printf("  %-45s %8.1fs  shuffle %,14d B  spilled %,12d  gc %6.1fs%s%n", s.name, s.wallClockMs / 1000.0,
+                    s.counter(TaskCounter.REDUCE_SHUFFLE_BYTES), s.counter(TaskCounter.SPILLED_RECORDS),
+                    s.counter(TaskCounter.GC_TIME_MILLIS) / 1000.0,
+                    s.wallClockMs == slowest && stages.size() > 1 ? "  <- slowest" : "");
+        }
+        if (criticalPath != null) {
+            System.err.printf("Critical path: %s  %.1fs of %.1fs scheduled%n", String.join(" -> ", criticalPath),
+                    criticalPathMs / 1000.0, scheduledMs / 1000.0);
+        }
+        if (storage.isEmpty()) return;
+        long mapOut = 0, materialized = 0;
+        for (Stage s : stages) {
+            mapOut += s.counter(TaskCounter.MAP_OUTPUT_BYTES);
+            materialized += s.counter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES);
+        }
+        System.err.println("Compression (stored / uncompressed):");
+        System.err.printf("  %-45s %,14d / %,14d B  %5.2fx%n", "map outputs (all stages)", materialized, mapOut, ratio(materialized, mapOut));
+        for (Map.Entry<String, long[]> e : storage.entrySet()) {
+            long[] v = e.getValue();
+            System.err.printf("  %-45s %,14d / %,14d B  %5.2fx%n", e.getKey(), v[0], v[1], ratio(v[0], v[1]));
+        }
+    }
+
+    // Uncompressed size over stored size
+    private static double ratio(long stored, long raw) {
+        return stored > 0 ? (double) raw / stored : 0.0;
+    }
+
+    public Path write() throws IOException {
+        Path p = new Path(new Path(outBase, DIR), FILE);
+        FileSystem fs = p.getFileSystem(conf);
+        try (FSDataOutputStream out = fs.create(p, true)) {
+            out.write(toJson().getBytes(StandardCharsets.UTF_8));
+        }
+        return p;
+    }
+
+    public String toJson() {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        boolean ok = true;
+        for (Stage s : stages) ok &= s.succeeded;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"outBase\": ").append(quote(outBase)).append(",\n");
+        sb.append("  \"engine\": ").append(quote(engine)).append(",\n");
+        sb.append("  \"startTime\": ").append(quote(iso.format(new Date(startMs)))).append(",\n");
+        sb.append("  \"wallClockMs\": ").append(System.currentTimeMillis() - startMs).append(",\n");
+        sb.append("  \"succeeded\": ").append(ok).append(",\n");
+        sb.append("  \"stages\": [");
+        for (int i = 0; i < stages.size(); i++) {
+            Stage s = stages.get(i);
+            long bytesRead = s.counter(FileInputFormatCounter.BYTES_READ);
+            if (bytesRead == 0) bytesRead = s.counter(PipelineCounters.BYTES_PARSED);
+            sb.append(i == 0 ? "\n" : ",\n").append("    {\n");
+            sb.append("      \"name\": ").append(quote(s.name)).append(",\n");
+            sb.append("      \"jobName\": ").append(s.jobName == null ? "null" : quote(s.jobName)).append(",\n");
+            sb.append("      \"jobId\": ").append(s.jobId == null ? "null" : quote(s.jobId)).append(",\n");
+            sb.append("      \"succeeded\": ").append(s.succeeded).append(",\n");
+            sb.append("      \"skipped\": ").append(s.skipped).append(",\n");
+            sb.append("      \"wallClockMs\": ").append(s.wallClockMs).append(",\n");
+            sb.append("      \"inputBytes\": ").append(bytesRead).append(",\n");
+            sb.append("      \"inputBytesPerSec\": ").append(s.wallClockMs > 0 ? bytesRead * 1000 / s.wallClockMs : 0).append(",\n");
+            sb.append("      \"mapInputRecords\": ").append(s.counter(TaskCounter.MAP_INPUT_RECORDS)).append(",\n");
+            sb.append("      \"mapOutputRecords\": ").append(s.counter(TaskCounter.MAP_OUTPUT_RECORDS)).append(",\n");
+            sb.append("      \"mapOutputBytes\": ").append(s.counter(TaskCounter.MAP_OUTPUT_BYTES)).append(",\n");
+            sb.append("      \"mapOutputMaterializedBytes\": ").append(s.counter(TaskCounter.MAP_OUTPUT_MATERIALIZED_BYTES)).append(",\n");
+            sb.append("      \"shuffleBytes\": ").append(s.counter(TaskCounter.REDUCE_SHUFFLE_BYTES)).append(",\n");
+            sb.append("      \"spilledRecords\": ").append(s.counter(TaskCounter.SPILLED_RECORDS)).append(",\n");
+            sb.append("      \"reduceOutputRecords\": ").append(s.counter(TaskCounter.REDUCE_OUTPUT_RECORDS)).append(",\n");
+            // Summed over the stage's tasks
+            sb.append("      \"gcTimeMs\": ").append(s.counter(TaskCounter.GC_TIME_MILLIS)).append(",\n");
+            sb.append("      \"cpuMs\": ").append(s.counter(TaskCounter.CPU_MILLISECONDS)).append(",\n");
+            sb.append("      \"counters\": {");
+            int g = 0;
+            for (Map.Entry<String, Map<String, Long>> group : s.counters.entrySet()) {
+                sb.append(g++ == 0 ? "\n" : ",\n").append("        ").append(quote(group.getKey())).append(": {");
+                int c = 0;
+                for (Map.Entry<String, Long> e : group.getValue().entrySet()) {
+                    sb.append(c++ == 0 ? "" : ", ").append(quote(e.getKey())).append(": ").append(e.getValue());
+                }
+                sb.append("}");
+            }
+            sb.append(g == 0 ? "}\n" : "\n      }\n");
+            sb.append("    }");
+        }
+        sb.append(stages.isEmpty() ? "]" : "\n  ]");
+        if (criticalPath != null) {
+            sb.append(",\n  \"criticalPath\": {\"stages\": [");
+            for (int i = 0; i < criticalPath.size(); i++) sb.append(i == 0 ? "" : ", ").append(quote(criticalPath.get(i)));
+            sb.append("], \"wallClockMs\": ").append(criticalPathMs).append(", \"scheduledMs\": ").append(scheduledMs).append("}");
+        }
+        if (!storage.isEmpty()) {
+            sb.append(",\n  \"storage\": [");
+            int i = 0;
+            for (Map.Entry<String, long[]> e : storage.entrySet()) {
+                long[] v = e.getValue();
+                sb.append(i++ == 0 ? "\n" : ",\n").append("    {\"dir\": ").append(quote(e.getKey()))
+                        .append(", \"storedBytes\": ").append(v[0]).append(", \"uncompressedBytes\": ").append(v[1])
+                        .append(", \"ratio\": ").append(String.format(Locale.ROOT, "%.3f", ratio(v[0], v[1]))).append("}");
+            }
+            sb.append("\n  ]");
+        }
+        sb.append("\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (ch < 0x20) sb.append(String.format("\\u%04x", (int) ch));
+                    else sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
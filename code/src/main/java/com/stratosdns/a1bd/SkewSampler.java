@@ -0,0 +1,170 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Skew mitigation for runs with more than one reducer.
+ *
+ * Hot documents (Step2, keyed by docId): Step1's doctotal already gives every document's exact size, so the
+ * "sample" is exact and tiny. A document holding more than hotFactor x (corpus tokens / reducers) gets
+ * ceil(size / share) salts: Mapper2 replicates its TOTAL record to every salt and spreads its TERM records by
+ * term hash. Each salt is its own reduce group that still sees TOTAL first, so tf streams out unchanged and the
+ * partial outputs need no merge.
+ *
+ * Total order (term-keyed Steps 1 and 3, --total-order): keys are sampled from a few evenly spaced input
+ * splits and reducers-1 split points are written for TotalOrderPartitioner, so each reducer gets an equal share
+ * of the key space and part files come out globally sorted.
+ */
+public class SkewSampler {
+
+    public static final String DIR = "_skew";
+    public static final String SALT_HOT_DOCS_KEY = "skew.saltHotDocs";
+    public static final String TOTAL_ORDER_KEY = "skew.totalOrder";
+    public static final String HOT_DOCS_KEY = "skew.hotDocsFile";
+    public static final String HOT_FACTOR_KEY = "skew.hotFactor";
+    public static final String SAMPLE_SPLITS_KEY = "skew.sample.splits";
+    public static final String SAMPLE_RECORDS_KEY = "skew.sample.recordsPerSplit";
+
+    /** Adds the partitioning keys one input record would produce; must copy reused objects. */
+    public interface KeyExtractor {
+        void keys(String fileName, Object key, Object value, List<Text> out) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Plans salts for hot documents from the doctotal files and points the Step2 job at the plan.
+     * Returns the number of hot documents (0 leaves the job unchanged).
+     */
+    public static int saltHotDocs(Job job, Path doctotalGlob, Path planFile) throws IOException {
+        Configuration conf = job.getConfiguration();
+        int reducers = job.getNumReduceTasks();
+        if (reducers <= 1) return 0;
+
+        Map<String, Long> totals = new LinkedHashMap<>();
+        FileSystem fs = doctotalGlob.getFileSystem(conf);
+        FileStatus[] parts = fs.globStatus(doctotalGlob);
+        if (parts == null) return 0;
+        for (FileStatus st : parts) {
+            IntermediateFormat.readDoublePairs(conf, st.getPath(), (doc, v) -> totals.merge(doc, (long) v, Long::sum));
+        }
+        long grand = 0;
+        for (long t : totals.values()) grand += t;
+        double share = (double) grand / reducers;
+        double hot = conf.getDouble(HOT_FACTOR_KEY, 1.0) * share;
+
+        int count = 0;
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(fs.create(planFile, true), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Long> e : totals.entrySet()) {
+                if (e.getValue() <= hot) continue;
+                int salts = (int) Math.min(reducers, Math.ceil(e.getValue() / share));
+                if (salts < 2) continue;
+                w.write(e.getKey() + "\t" + salts + "\n");
+                count++;
+            }
+        }
+        if (count > 0) conf.set(HOT_DOCS_KEY, planFile.toString());
+        return count;
+    }
+
+    /** docId -> number of salts, from the plan written by saltHotDocs; null when there is no plan. */
+    public static Map<Text, Integer> readHotDocs(Configuration conf) throws IOException {
+        String plan = conf.get(HOT_DOCS_KEY);
+        if (plan == null) return null;
+        Map<Text, Integer> hot = new HashMap<>();
+        IntermediateFormat.forEachLine(conf, new Path(plan), line -> {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) hot.put(new Text(line.substring(0, tab)), Integer.parseInt(line.substring(tab + 1)));
+        });
+        return hot;
+    }
+
+    /**
+     * Samples the job's input and switches it to TotalOrderPartitioner. Returns false (hash partitioning
+     * kept) with one reducer or when the sample has too few distinct keys to split.
+     */
+    public static boolean useTotalOrder(Job job, Path partitionFile, KeyExtractor extractor) throws IOException {
+        int reducers = job.getNumReduceTasks();
+        if (reducers <= 1) return false;
+        Configuration conf = job.getConfiguration();
+        // Both term-keyed jobs combine map-side, so reducer load follows distinct keys, not occurrences
+        List<Text> sample = new ArrayList<>(new TreeSet<>(sample(job, extractor)));
+
+        // reducers-1 split points at equal quantiles of the distinct sampled keys
+        List<Text> splits = new ArrayList<>();
+        double step = sample.size() / (double) reducers;
+        for (int i = 1; i < reducers; i++) {
+            int k = (int) Math.round(step * i);
+            if (k <= 0 || k >= sample.size()) continue;
+            if (splits.isEmpty() || !splits.get(splits.size() - 1).equals(sample.get(k))) splits.add(sample.get(k));
+        }
+        if (splits.size() < reducers - 1) {
+            System.err.println("WARN: only " + splits.size() + " distinct split points sampled for " + reducers
+                    + " reducers; keeping hash partitioning for " + job.getJobName());
+            return false;
+        }
+
+        FileSystem fs = partitionFile.getFileSystem(conf);
+        fs.delete(partitionFile, false);
+        try (SequenceFile.Writer w = SequenceFile.createWriter(conf, SequenceFile.Writer.file(partitionFile),
+                SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(NullWritable.class))) {
+            for (Text t : splits) w.append(t, NullWritable.get());
+        }
+        TotalOrderPartitioner.setPartitionFile(conf, partitionFile);
+        job.setPartitionerClass(TotalOrderPartitioner.class);
+        return true;
+    }
+
+    // Reads up to recordsPerSplit records from each of up to `splits` evenly spaced input splits
+    private static List<Text> sample(Job job, KeyExtractor extractor) throws IOException {
+        Configuration conf = job.getConfiguration();
+        int maxSplits = conf.getInt(SAMPLE_SPLITS_KEY, 10);
+        int perSplit = conf.getInt(SAMPLE_RECORDS_KEY, 10000);
+        List<Text> out = new ArrayList<>();
+        try {
+            InputFormat<?, ?> format = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+            List<InputSplit> all = format.getSplits(job);
+            int n = Math.min(maxSplits, all.size());
+            for (int i = 0; i < n; i++) {
+                InputSplit split = all.get((int) ((long) i * all.size() / n));
+                String fileName = split instanceof FileSplit ? ((FileSplit) split).getPath().getName() : "";
+                TaskAttemptContext ctx = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+                try (RecordReader<?, ?> reader = format.createRecordReader(split, ctx)) {
+                    reader.initialize(split, ctx);
+                    for (int r = 0; r < perSplit && reader.nextKeyValue(); r++) {
+                        extractor.keys(fileName, reader.getCurrentKey(), reader.getCurrentValue(), out);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,308 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the pipeline's jobs as a dependency graph: a stage is submitted as soon as every stage it depends on has
+ * finished, so independent branches (Top-N next to Steps 2-4, the --verify-fused pipeline next to the fused one)
+ * run concurrently.
+ *
+ * Jobs are built when their stage starts rather than up front (as JobControl would need), because several
+ * depend on upstream results: Step3 and the fused idf job take the document count from a counter, Step2 plans its
+ * salts from Step1's doctotal, total-order partitioning samples the previous step's output.
+ *
+ * Every finished stage writes a {@code _STAGE} marker next to {@code _SUCCESS} holding its fingerprint and the
+ * values it published (e.g. numDocs). A stage's fingerprint covers the input files, its own settings and the
+ * fingerprints of the stages it depends on, so changing an option only invalidates the stages it shapes and
+ * those downstream. With resume on, a stage is skipped when its output carries both files with the current
+ * fingerprint and every stage it depends on was skipped too; its published values are read back from the marker.
+ */
+public class StageScheduler {
+
+    public static final String MARKER = "_STAGE";
+
+    /** Builds a stage's job once its dependencies are done. */
+    public interface JobFactory {
+        Job create() throws Exception;
+    }
+
+    /** Runs after a stage's job succeeded, before its marker is written. */
+    public interface Hook {
+        void run(Job job) throws Exception;
+    }
+
+    public static final class Stage {
+        final String name;
+        final Path output;
+        final int exitCode;
+        final List<Stage> deps;
+        final JobFactory factory;
+        final Map<String, Enum<?>> publish = new LinkedHashMap<>();
+        final Map<String, Long> results = new LinkedHashMap<>();
+        String settings = "";
+        String fingerprint;
+        Hook after;
+        volatile Job job;
+        boolean skipped;
+        long startMs, endMs;
+
+        Stage(String name, Path output, int exitCode, JobFactory factory, Stage... deps) {
+            this.name = name;
+            this.output = output;
+            this.exitCode = exitCode;
+            this.factory = factory;
+            this.deps = Arrays.asList(deps);
+        }
+
+        /** Publishes a counter of the job under key, for later stages and resumed runs. */
+        public Stage publish(String key, Enum<?> counter) {
+            publish.put(key, counter);
+            return this;
+        }
+
+        public Stage after(Hook hook) {
+            this.after = hook;
+            return this;
+        }
+
+        /**
+         * Options that shape this stage's output; part of its fingerprint, so changing them reruns it (and the
+         * stages depending on it) on resume.
+         */
+        public Stage settings(String settings) {
+            this.settings = settings;
+            return this;
+        }
+
+        /** A value published by this stage; only valid once it has finished. */
+        public long result(String key) {
+            Long v = results.get(key);
+            if (v == null) throw new IllegalStateException(name + " did not publish " + key);
+            return v;
+        }
+    }
+
+    private final Configuration conf;
+    private final PipelineMetrics metrics;
+    private final String fingerprint;
+    private final boolean resume;
+    private final List<Stage> stages = new ArrayList<>();
+    private Stage failed;
+
+    /** fingerprint covers what every stage depends on (see {@link #fingerprint}); stages add their own settings. */
+    public StageScheduler(Configuration conf, PipelineMetrics metrics, String fingerprint, boolean resume) {
+        this.conf = conf;
+        this.metrics = metrics;
+        this.fingerprint = fingerprint;
+        this.resume = resume;
+    }
+
+    /** Adds a stage writing output; exitCode is the Driver's exit status if its job fails. */
+    public Stage add(String name, Path output, int exitCode, JobFactory factory, Stage... deps) {
+        Stage s = new Stage(name, output, exitCode, factory, deps);
+        stages.add(s);
+        return s;
+    }
+
+    /**
+     * Runs every stage; returns false after the first failed job (the others still running are killed), with
+     * {@link #getFailed()} set. Exceptions while building a job are rethrown.
+     */
+    public boolean run() throws Exception {
+        ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "stage-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<Stage> done = new ExecutorCompletionService<>(pool);
+        long t0 = System.currentTimeMillis();
+        List<Stage> pending = new ArrayList<>(stages);
+        List<Stage> finished = new ArrayList<>();
+        List<Stage> running = new ArrayList<>();
+        try {
+            while (!pending.isEmpty() || !running.isEmpty()) {
+                boolean progress = true;
+                while (progress) {
+                    progress = false;
+                    for (Stage s : new ArrayList<>(pending)) {
+                        if (!finished.containsAll(s.deps)) continue;
+                        pending.remove(s);
+                        progress = true;
+                        if (canSkip(s)) {
+                            s.skipped = true;
+                            s.startMs = s.endMs = System.currentTimeMillis() - t0;
+                            metrics.addSkipped(s.name);
+                            System.err.println("Stage " + s.name + ": output valid, skipped (resume)");
+                            finished.add(s);
+                        } else {
+                            running.add(s);
+                            done.submit(() -> execute(s, t0));
+                        }
+                    }
+                }
+                if (running.isEmpty()) {
+                    if (!pending.isEmpty()) throw new IllegalStateException("Unresolvable stage dependencies: " + pending.get(0).name);
+                    break;
+                }
+                Stage s;
+                try {
+                    s = done.take().get();
+                } catch (ExecutionException e) {
+                    killAll(running);
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+                }
+                running.remove(s);
+                if (s.job == null || !s.job.isSuccessful()) {
+                    failed = s;
+                    killAll(running);
+                    return false;
+                }
+                finished.add(s);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        reportCriticalPath(finished, System.currentTimeMillis() - t0);
+        return true;
+    }
+
+    public Stage getFailed() {
+        return failed;
+    }
+
+    // Runs on a pool thread: clean the output, build and run the job, publish its results
+    private Stage execute(Stage s, long t0) throws Exception {
+        s.startMs = System.currentTimeMillis() - t0;
+        FileSystem fs = s.output.getFileSystem(conf);
+        if (fs.exists(s.output)) fs.delete(s.output, true);
+        Job job = s.factory.create();
+        s.job = job;
+        boolean ok = metrics.run(s.name, job);
+        s.endMs = System.currentTimeMillis() - t0;
+        if (!ok) return s;
+        for (Map.Entry<String, Enum<?>> e : s.publish.entrySet()) {
+            s.results.put(e.getKey(), job.getCounters().findCounter(e.getValue()).getValue());
+        }
+        if (s.after != null) s.after.run(job);
+        writeMarker(fs, s);
+        return s;
+    }
+
+    private static void killAll(List<Stage> running) {
+        for (Stage s : running) {
+            Job job = s.job;
+            if (job == null) continue;
+            try {
+                job.killJob();
+            } catch (Exception ignored) {
+                // not submitted yet, or already finished
+            }
+        }
+    }
+
+    private boolean canSkip(Stage s) throws IOException {
+        if (!resume) return false;
+        for (Stage d : s.deps) if (!d.skipped) return false;
+        FileSystem fs = s.output.getFileSystem(conf);
+        Path marker = new Path(s.output, MARKER);
+        if (!fs.exists(new Path(s.output, FileOutputCommitter.SUCCEEDED_FILE_NAME)) || !fs.exists(marker)) return false;
+        Properties p = new Properties();
+        try (FSDataInputStream in = fs.open(marker)) {
+            p.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        if (!stageFingerprint(s).equals(p.getProperty("fingerprint"))) return false;
+        for (String key : s.publish.keySet()) {
+            String v = p.getProperty("result." + key);
+            if (v == null) return false;
+            s.results.put(key, Long.parseLong(v));
+        }
+        return true;
+    }
+
+    private void writeMarker(FileSystem fs, Stage s) throws IOException {
+        Properties p = new Properties();
+        p.setProperty("fingerprint", stageFingerprint(s));
+        for (Map.Entry<String, Long> e : s.results.entrySet()) p.setProperty("result." + e.getKey(), String.valueOf(e.getValue()));
+        try (FSDataOutputStream out = fs.create(new Path(s.output, MARKER), true)) {
+            p.store(new OutputStreamWriter(out, StandardCharsets.UTF_8), s.name);
+        }
+    }
+
+    // The run's fingerprint, the stage's name and settings, and its dependencies' fingerprints
+    private String stageFingerprint(Stage s) throws IOException {
+        if (s.fingerprint == null) {
+            StringBuilder sb = new StringBuilder(fingerprint).append('\n').append(s.name).append('\n').append(s.settings);
+            for (Stage d : s.deps) sb.append('\n').append(stageFingerprint(d));
+            s.fingerprint = digest(sb.toString());
+        }
+        return s.fingerprint;
+    }
+
+    // Walks back from the last stage to finish through the dependency that finished last (the one it waited on)
+    private void reportCriticalPath(List<Stage> finished, long elapsedMs) {
+        Stage last = null;
+        for (Stage s : finished) if (last == null || s.endMs > last.endMs) last = s;
+        List<String> path = new ArrayList<>();
+        long pathMs = 0;
+        for (Stage s = last; s != null; ) {
+            path.add(s.name);
+            pathMs += s.endMs - s.startMs;
+            Stage gate = null;
+            for (Stage d : s.deps) if (gate == null || d.endMs > gate.endMs) gate = d;
+            s = gate;
+        }
+        Collections.reverse(path);
+        metrics.setCriticalPath(path, pathMs, elapsedMs);
+    }
+
+    /**
+     * Fingerprint of a run: the input files (name, length, modification time) and the settings that shape the
+     * output of every stage alike. Each stage's fingerprint builds on it.
+     */
+    public static String fingerprint(Configuration conf, Path input, String settings) throws IOException {
+        FileSystem fs = input.getFileSystem(conf);
+        StringBuilder sb = new StringBuilder(settings).append('\n');
+        for (FileStatus st : LocalEngine.listInputFiles(fs, input)) {
+            sb.append(st.getPath()).append('\t').append(st.getLen()).append('\t').append(st.getModificationTime()).append('\n');
+        }
+        return digest(sb.toString());
+    }
+
+    private static String digest(String s) throws IOException {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) hex.append(String.format("%02x", d[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,883 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running ingestion mode (--engine=stream): watches the input directory and keeps idf and per-document Top-N
+ * up to date in micro-batches instead of rerunning the whole pipeline.
+ *
+ * Every stream.intervalMs the input is listed (same files as a batch run would read); new files, and files whose
+ * length or modification time changed, are tokenized on LocalEngine's pool with the same Tokenizer, at most
+ * stream.batchDocs files / stream.batchMB per micro-batch, oldest first. Changed and deleted files are retracted
+ * before their new counts are added, so the statistics always describe the files currently in the input.
+ *
+ * The engine keeps, per term, its document frequency and Σ tf (Step3's idf is log(N / Σ tf)), and per document
+ * only its total and Top-N rows. Terms are hash-partitioned into stream.partitions parts, the same split as a
+ * Step3 run with that many reducers. With stream.maxTerms set, the least recently used parts are spilled to the
+ * checkpoint directory (stream.checkpoint, default {@code <outBase>/_stream}) until at most that many terms stay in
+ * memory. Full per-document term counts are spilled there too, in the token cache's vector format, one segment
+ * file per micro-batch, and read back only to retract a document; a segment is deleted once none of its documents
+ * is current.
+ *
+ * Each micro-batch appends a delta to the checkpoint: the sources it added or removed and the new statistics of
+ * the terms it touched. Every stream.compactEvery deltas, or once the deltas outgrow the last full state, the
+ * changed term parts and a full state of the sources are written and the deltas deleted. A snapshot is then
+ * published as {@code <outBase>/snapshots/<seq>/step3_idf} and {@code top<N>_freq}, one part file per partition
+ * in the formats of a batch run; parts the batch did not change are linked (copied off the local file system) from
+ * the previous snapshot. {@code snapshots/LATEST} then names the newest complete one. A restarted engine replays
+ * the deltas over the last full state and resumes without re-reading files it already ingested. Ingest throughput
+ * and end-to-end latency (file modification time to snapshot published) go to
+ * {@code <outBase>/_metrics/stream.json} and stderr.
+ */
+public class StreamingEngine {
+
+    public static final String INTERVAL_MS_KEY = "stream.intervalMs";
+    public static final String BATCH_DOCS_KEY = "stream.batchDocs";
+    public static final String BATCH_MB_KEY = "stream.batchMB";
+    public static final String CHECKPOINT_KEY = "stream.checkpoint";
+    public static final String KEEP_SNAPSHOTS_KEY = "stream.keepSnapshots";
+    public static final String RUN_SECONDS_KEY = "stream.runSeconds";
+    public static final String PARTITIONS_KEY = "stream.partitions";
+    public static final String MAX_TERMS_KEY = "stream.maxTerms";
+    public static final String COMPACT_EVERY_KEY = "stream.compactEvery";
+    public static final String SNAPSHOTS_DIR = "snapshots";
+    public static final String LATEST_FILE = "LATEST";
+    public static final String METRICS_FILE = "stream.json";
+
+    private static final int MAGIC = 0x53545232; // "STR2"
+    private static final int DELTA_MAGIC = 0x53545244; // "STRD"
+    private static final int TERMS_MAGIC = 0x53545254; // "STRT"
+    private static final String STATE_PREFIX = "state-";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String DOCS_DIR = "docs";
+    private static final String TERMS_DIR = "terms";
+    private static final int LATENCY_WINDOW = 1024;
+
+    // What the engine remembers about one input file
+    private static final class Source {
+        final String docId;
+        final long length;
+        final long mtime;
+        final long total;
+        final long segment; // its term counts are in <checkpoint>/docs/<segment>; -1 when the file had no tokens
+        final long offset;
+        final String[] topTerms;
+        final int[] topCounts;
+
+        Source(String docId, long length, long mtime, long total, long segment, long offset, String[] topTerms, int[] topCounts) {
+            this.docId = docId;
+            this.length = length;
+            this.mtime = mtime;
+            this.total = total;
+            this.segment = segment;
+            this.offset = offset;
+            this.topTerms = topTerms;
+            this.topCounts = topCounts;
+        }
+    }
+
+    // Running statistics of one term over the documents currently ingested
+    private static final class TermStats {
+        int df;
+        double sumTf;
+    }
+
+    // The terms of one partition: the rows of step3_idf/part-r-<p>
+    private static final class TermPart {
+        Map<String, TermStats> map = new HashMap<>(); // null while spilled to <checkpoint>/terms/<p>
+        int size;
+        boolean unsaved; // changed since terms/<p> was written
+        boolean changed; // changed since the last snapshot
+        long lastUse;
+    }
+
+    private interface TermVisitor {
+        void visit(String term, int df, double sumTf) throws IOException;
+    }
+
+    private final Configuration conf;
+    private final Map<String, Source> sources = new HashMap<>();
+    private final Map<Long, Integer> segmentDocs = new HashMap<>(); // current documents per segment
+    private TermPart[] parts;
+    private boolean[] topChanged; // top<N>_freq parts changed since the last snapshot
+    private long numDocs;
+    private long termCount;
+    private long seq;
+    private Path checkpoint;
+    private FileSystem cfs;
+
+    // Changes not yet in a delta
+    private final Set<String> changedSources = new HashSet<>();
+    private final Set<String> changedTerms = new HashSet<>();
+
+    // Deltas since the last full state
+    private long deltas, deltaBytes, fullBytes;
+
+    // The snapshot this process published last; -1 before the first, whose parts are then all written
+    private long publishedSeq = -1;
+    private long publishedDocs;
+
+    private volatile boolean stopping;
+    private final Object wakeup = new Object();
+
+    // Metrics since this process started
+    private final long startMs = System.currentTimeMillis();
+    private long batches, filesIngested, filesRetracted, bytesIngested, tokensIngested, busyMs, compactions;
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long latencySamples;
+    private String lastBatch = "null";
+
+    public StreamingEngine(Configuration conf) {
+        this.conf = conf;
+    }
+
+    /** Ingests until stopped (SIGTERM / Ctrl-C finish the running micro-batch first) or stream.runSeconds pass. */
+    public void run(Path input, String outBase, int topN) throws Exception {
+        long interval = Math.max(1, conf.getLong(INTERVAL_MS_KEY, 2000));
+        long runSeconds = conf.getLong(RUN_SECONDS_KEY, 0);
+        long deadline = runSeconds > 0 ? startMs + runSeconds * 1000 : Long.MAX_VALUE;
+        checkpoint = new Path(conf.get(CHECKPOINT_KEY, outBase + "/_stream"));
+        cfs = checkpoint.getFileSystem(conf);
+        FileSystem fs = input.getFileSystem(conf);
+        LocalEngine local = new LocalEngine(conf);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Thread hook = new Thread(() -> {
+            stopping = true;
+            synchronized (wakeup) {
+                wakeup.notifyAll();
+            }
+            try {
+                stopped.await(60, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+                // exiting anyway
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+        try {
+            if (restore() && !Long.toString(seq).equals(readLatest(outBase))) {
+                publish(outBase, topN); // the previous run stopped between checkpoint and snapshot
+            }
+            spill();
+            System.err.printf("Streaming engine: watching %s every %d ms (%d threads); %d docs, %d terms in %d partitions at snapshot %d%n",
+                    input, interval, local.getThreads(), numDocs, termCount, parts.length, seq);
+            while (!stopping && System.currentTimeMillis() < deadline) {
+                boolean more = microBatch(fs, input, local, outBase, topN);
+                if (more) continue;
+                long wait = Math.min(interval, deadline - System.currentTimeMillis());
+                if (wait > 0 && !stopping) {
+                    synchronized (wakeup) {
+                        wakeup.wait(wait);
+                    }
+                }
+            }
+            System.err.printf("Streaming engine: stopped at snapshot %d (%d docs, %d terms)%n", seq, numDocs, termCount);
+        } finally {
+            local.shutdown();
+            stopped.countDown();
+            if (!stopping) Runtime.getRuntime().removeShutdownHook(hook);
+        }
+    }
+
+    // One poll of the input; returns true when files were left over for the next micro-batch
+    private boolean microBatch(FileSystem fs, Path input, LocalEngine local, String outBase, int topN) throws Exception {
+        Set<String> present = new HashSet<>();
+        List<FileStatus> fresh = new ArrayList<>();
+        for (FileStatus st : LocalEngine.listInputFiles(fs, input)) {
+            String key = st.getPath().toString();
+            present.add(key);
+            Source s = sources.get(key);
+            if (s == null || s.length != st.getLen() || s.mtime != st.getModificationTime()) fresh.add(st);
+        }
+        List<String> gone = new ArrayList<>();
+        for (String key : sources.keySet()) if (!present.contains(key)) gone.add(key);
+        if (fresh.isEmpty() && gone.isEmpty()) return false;
+
+        long t0 = System.currentTimeMillis();
+        fresh.sort(Comparator.comparingLong(FileStatus::getModificationTime).thenComparing(FileStatus::getPath));
+        long maxDocs = Math.max(1, conf.getInt(BATCH_DOCS_KEY, 1000));
+        long maxBytes = Math.max(1, conf.getLong(BATCH_MB_KEY, 64)) << 20;
+        List<FileStatus> batch = new ArrayList<>();
+        long bytes = 0;
+        for (FileStatus st : fresh) {
+            if (!batch.isEmpty() && (batch.size() >= maxDocs || bytes + st.getLen() > maxBytes)) break;
+            batch.add(st);
+            bytes += st.getLen();
+        }
+        List<LocalEngine.DocCounts> counted = local.countFiles(fs, batch);
+        long t1 = System.currentTimeMillis();
+
+        seq++;
+        Path docs = new Path(checkpoint, DOCS_DIR);
+        TokenCache.Vector vec = new TokenCache.Vector();
+        List<Long> emptied = new ArrayList<>();
+        for (String key : gone) {
+            retire(docs, sources.remove(key), vec, emptied);
+            changedSources.add(key);
+        }
+        TopNHeap heap = new TopNHeap(topN);
+        long tokens = 0;
+        Path segment = new Path(docs, Long.toString(seq));
+        try (FSDataOutputStream out = cfs.create(segment, true)) {
+            for (int i = 0; i < batch.size(); i++) {
+                FileStatus st = batch.get(i);
+                LocalEngine.DocCounts d = counted.get(i);
+                String key = st.getPath().toString();
+                Source old = sources.get(key);
+                if (old != null) retire(docs, old, vec, emptied);
+                sources.put(key, add(out, st, d, vec, heap));
+                changedSources.add(key);
+                tokens += d.total;
+            }
+        }
+        if (!segmentDocs.containsKey(seq)) emptied.add(seq);
+        long written = writeDelta();
+        boolean compacted = deltas >= Math.max(1, conf.getInt(COMPACT_EVERY_KEY, 100)) || deltaBytes > fullBytes;
+        if (compacted) written += compact();
+        // Only now can no checkpoint refer to the emptied segments
+        for (long e : emptied) cfs.delete(new Path(docs, Long.toString(e)), false);
+        long t2 = System.currentTimeMillis();
+
+        int republished = publish(outBase, topN);
+        long t3 = System.currentTimeMillis();
+        spill();
+
+        batches++;
+        filesIngested += batch.size();
+        filesRetracted += gone.size();
+        bytesIngested += bytes;
+        tokensIngested += tokens;
+        busyMs += t3 - t0;
+        long maxLatency = 0;
+        for (FileStatus st : batch) {
+            long l = Math.max(0, t3 - st.getModificationTime());
+            latencies[(int) (latencySamples++ % LATENCY_WINDOW)] = l;
+            maxLatency = Math.max(maxLatency, l);
+        }
+        lastBatch = String.format("{\"snapshot\": %d, \"files\": %d, \"retracted\": %d, \"bytes\": %d, \"tokens\": %d, "
+                        + "\"tokenizeMs\": %d, \"checkpointMs\": %d, \"checkpointBytes\": %d, \"compacted\": %b, "
+                        + "\"publishMs\": %d, \"partsWritten\": %d, \"maxLatencyMs\": %d}",
+                seq, batch.size(), gone.size(), bytes, tokens, t1 - t0, t2 - t1, written, compacted, t3 - t2, republished, maxLatency);
+        long[] p = latencyPercentiles();
+        System.err.printf("Stream batch %d: +%d docs, -%d removed, %.1f MB, %,d tokens in %d ms (%.1f MB/s); "
+                        + "checkpoint %d ms (%,d B%s), publish %d ms (%d of %d parts); %d docs, %d terms%s%n",
+                seq, batch.size(), gone.size(), bytes / 1048576.0, tokens, t1 - t0,
+                t1 > t0 ? bytes / 1048.576 / (t1 - t0) : 0.0, t2 - t1, written, compacted ? ", compacted" : "",
+                t3 - t2, republished, 2 * parts.length, numDocs, termCount,
+                latencySamples == 0 ? "" : String.format("; latency p50 %.1fs max %.1fs", p[0] / 1000.0, p[2] / 1000.0));
+        writeMetrics(outBase, input);
+        return batch.size() < fresh.size();
+    }
+
+    // Adds one document's counts to the term statistics; spills them to this batch's segment for a later retraction
+    private Source add(FSDataOutputStream segment, FileStatus st, LocalEngine.DocCounts d, TokenCache.Vector vec,
+                       TopNHeap heap) throws IOException, InterruptedException {
+        if (d.total == 0) {
+            // no doctotal row in a batch run either; remembered only so the file is not read again
+            return new Source(d.docId, st.getLen(), st.getModificationTime(), 0, -1, 0, new String[0], new int[0]);
+        }
+        vec.clear();
+        heap.clear();
+        for (int t = 0; t < d.terms.length; t++) {
+            byte[] b = d.terms[t].getBytes(StandardCharsets.UTF_8);
+            int p = partition(b, b.length);
+            TermPart part = parts[p];
+            TermStats s = resident(p).get(d.terms[t]);
+            if (s == null) {
+                s = new TermStats();
+                part.map.put(d.terms[t], s);
+                part.size++;
+                termCount++;
+            }
+            s.df++;
+            s.sumTf += (double) d.counts[t] / (double) d.total;
+            part.unsaved = part.changed = true;
+            changedTerms.add(d.terms[t]);
+            vec.add(b, 0, b.length, d.counts[t]);
+            if (heap.accepts(d.counts[t])) heap.offer(d.terms[t], d.counts[t]);
+        }
+        numDocs++;
+        topChanged[partition(d.docId)] = true;
+        long offset = segment.getPos();
+        TokenCache.writeVector(segment, vec);
+        segmentDocs.merge(seq, 1, Integer::sum);
+        List<String> top = new ArrayList<>();
+        List<Integer> topCounts = new ArrayList<>();
+        heap.drainDescending((rank, term, f) -> {
+            top.add(term);
+            topCounts.add(f);
+        });
+        int[] c = new int[topCounts.size()];
+        for (int t = 0; t < c.length; t++) c[t] = topCounts.get(t);
+        return new Source(d.docId, st.getLen(), st.getModificationTime(), d.total, seq, offset, top.toArray(new String[0]), c);
+    }
+
+    // Subtracts a document's counts again, read back from its segment
+    private void retire(Path docs, Source s, TokenCache.Vector vec, List<Long> emptied) throws IOException {
+        if (s.segment < 0) return;
+        try (FSDataInputStream in = cfs.open(new Path(docs, Long.toString(s.segment)))) {
+            in.seek(s.offset);
+            TokenCache.readVector(in, vec);
+        }
+        for (int t = 0; t < vec.size; t++) {
+            String term = new String(vec.bytes, vec.start[t], vec.len[t], StandardCharsets.UTF_8);
+            int p = partition(vec.bytes, vec.start[t], vec.len[t]);
+            TermPart part = parts[p];
+            TermStats stats = resident(p).get(term);
+            if (stats == null) throw new IOException("checkpoint out of step: " + term + " of " + s.docId + " has no statistics");
+            stats.sumTf -= (double) vec.count[t] / (double) s.total;
+            // Dropping the term with its last document also drops the rounding residue of the subtractions
+            if (--stats.df == 0) {
+                part.map.remove(term);
+                part.size--;
+                termCount--;
+            }
+            part.unsaved = part.changed = true;
+            changedTerms.add(term);
+        }
+        numDocs--;
+        topChanged[partition(s.docId)] = true;
+        if (segmentDocs.merge(s.segment, -1, Integer::sum) == 0) {
+            segmentDocs.remove(s.segment);
+            emptied.add(s.segment);
+        }
+    }
+
+    // HashPartitioner's choice for the term or docId as a Text key
+    private int partition(byte[] b, int start, int len) {
+        return (WritableComparator.hashBytes(b, start, len) & Integer.MAX_VALUE) % parts.length;
+    }
+
+    private int partition(byte[] b, int len) {
+        return partition(b, 0, len);
+    }
+
+    private int partition(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return partition(b, b.length);
+    }
+
+    // The terms of part p, read back first if they were spilled
+    private Map<String, TermStats> resident(int p) throws IOException {
+        TermPart part = parts[p];
+        if (part.map == null) {
+            Map<String, TermStats> map = new HashMap<>();
+            readTerms(p, (term, df, sumTf) -> {
+                TermStats s = new TermStats();
+                s.df = df;
+                s.sumTf = sumTf;
+                map.put(term, s);
+            });
+            part.map = map;
+        }
+        part.lastUse = seq;
+        return part.map;
+    }
+
+    // Writes the snapshot directories, then points LATEST at them and drops the oldest snapshots; returns the parts written
+    private int publish(String outBase, int topN) throws IOException {
+        Path snapshots = new Path(outBase, SNAPSHOTS_DIR);
+        Path snap = new Path(snapshots, Long.toString(seq));
+        FileSystem fs = snap.getFileSystem(conf);
+        if (fs.exists(snap)) fs.delete(snap, true);
+        Path prev = publishedSeq < 0 ? null : new Path(snapshots, Long.toString(publishedSeq));
+        if (prev != null && !fs.exists(prev)) prev = null;
+        int written = 0;
+
+        // Every idf depends on N, so all idf parts change whenever the document count does
+        boolean allIdf = prev == null || numDocs != publishedDocs;
+        Path idfDir = new Path(snap, "step3_idf");
+        fs.mkdirs(idfDir);
+        for (int p = 0; p < parts.length; p++) {
+            String suffix = String.format("-r-%05d", p);
+            Path text = new Path(idfDir, "part" + suffix);
+            Path dictFile = new Path(idfDir, IdfDictionary.FILE_PREFIX + suffix);
+            if (!allIdf && !parts[p].changed) {
+                reuse(fs, new Path(prev, "step3_idf/part" + suffix), text);
+                reuse(fs, new Path(prev, "step3_idf/" + IdfDictionary.FILE_PREFIX + suffix), dictFile);
+                continue;
+            }
+            try (Writer w = open(fs, text);
+                 IdfDictionary.Writer dict = new IdfDictionary.Writer(fs.create(dictFile, true))) {
+                Text t = new Text();
+                TermVisitor row = (term, df, sumTf) -> {
+                    if (sumTf <= 0.0) return;
+                    double v = Math.log((double) numDocs / sumTf);
+                    w.append(term).append('\t').append(Double.toString(v)).append('\n');
+                    t.set(term);
+                    dict.append(t, v);
+                };
+                Map<String, TermStats> map = parts[p].map;
+                if (map == null) {
+                    readTerms(p, row); // spilled parts are written in term order
+                } else {
+                    String[] vocabulary = map.keySet().toArray(new String[0]);
+                    Arrays.sort(vocabulary); // tokens are [a-z0-9], so String order equals Text byte order
+                    for (String term : vocabulary) row.visit(term, map.get(term).df, map.get(term).sumTf);
+                }
+            }
+            parts[p].changed = false;
+            written++;
+        }
+        fs.create(new Path(idfDir, "_SUCCESS"), true).close();
+
+        List<List<Source>> docs = new ArrayList<>();
+        for (int p = 0; p < parts.length; p++) docs.add(prev == null || topChanged[p] ? new ArrayList<>() : null);
+        for (Source s : sources.values()) {
+            List<Source> l = docs.get(partition(s.docId));
+            if (l != null && s.total > 0) l.add(s);
+        }
+        Path topDir = new Path(snap, "top" + topN + "_freq");
+        fs.mkdirs(topDir);
+        for (int p = 0; p < parts.length; p++) {
+            String name = String.format("part-r-%05d", p);
+            List<Source> l = docs.get(p);
+            if (l == null) {
+                reuse(fs, new Path(prev, topDir.getName() + "/" + name), new Path(topDir, name));
+                continue;
+            }
+            l.sort(Comparator.comparing((Source s) -> new Text(s.docId)));
+            try (Writer w = open(fs, new Path(topDir, name))) {
+                for (Source s : l) {
+                    for (int r = 0; r < s.topTerms.length; r++) {
+                        w.append(s.docId).append('\t').append(Integer.toString(r + 1)).append('\t')
+                                .append(s.topTerms[r]).append('\t').append(Integer.toString(s.topCounts[r])).append('\n');
+                    }
+                }
+            }
+            topChanged[p] = false;
+            written++;
+        }
+        fs.create(new Path(topDir, "_SUCCESS"), true).close();
+
+        replace(new Path(snapshots, LATEST_FILE), (seq + "\n").getBytes(StandardCharsets.UTF_8));
+        publishedSeq = seq;
+        publishedDocs = numDocs;
+
+        int keep = Math.max(1, conf.getInt(KEEP_SNAPSHOTS_KEY, 3));
+        List<Long> published = new ArrayList<>();
+        for (FileStatus st : fs.listStatus(snapshots)) {
+            String name = st.getPath().getName();
+            if (st.isDirectory() && name.matches("\\d+")) published.add(Long.parseLong(name));
+        }
+        published.sort(null);
+        for (int i = 0; i < published.size() - keep; i++) fs.delete(new Path(snapshots, Long.toString(published.get(i))), true);
+        return written;
+    }
+
+    // An unchanged part of the previous snapshot: a hard link on the local file system, where the .crc goes along
+    private void reuse(FileSystem fs, Path from, Path to) throws IOException {
+        if (fs instanceof LocalFileSystem) {
+            LocalFileSystem lfs = (LocalFileSystem) fs;
+            Files.createLink(lfs.pathToFile(to).toPath(), lfs.pathToFile(from).toPath());
+            Path crc = lfs.getChecksumFile(from);
+            if (lfs.exists(crc)) Files.createLink(lfs.pathToFile(lfs.getChecksumFile(to)).toPath(), lfs.pathToFile(crc).toPath());
+        } else {
+            FileUtil.copy(fs, from, fs, to, false, true, conf);
+        }
+    }
+
+    private String readLatest(String outBase) throws IOException {
+        Path p = new Path(new Path(outBase, SNAPSHOTS_DIR), LATEST_FILE);
+        FileSystem fs = p.getFileSystem(conf);
+        if (!fs.exists(p)) return null;
+        try (DataInputStream in = fs.open(p)) {
+            byte[] b = new byte[(int) fs.getFileStatus(p).getLen()];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8).trim();
+        }
+    }
+
+    // Delta file: header, then the sources added (or removed) and the terms touched since the last delta, with
+    // their statistics after this batch (df 0: term gone). Returns its size.
+    private long writeDelta() throws IOException {
+        Path tmp = new Path(checkpoint, "." + DELTA_PREFIX + seq);
+        long size;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(cfs.create(tmp, true), 1 << 16))) {
+            writeHeader(out, DELTA_MAGIC);
+            out.writeInt(changedSources.size());
+            for (String key : changedSources) {
+                Source s = sources.get(key);
+                out.writeUTF(key);
+                out.writeBoolean(s != null);
+                if (s != null) writeSource(out, s);
+            }
+            out.writeInt(changedTerms.size());
+            for (String term : changedTerms) {
+                TermStats s = parts[partition(term)].map.get(term);
+                out.writeUTF(term);
+                out.writeInt(s == null ? 0 : s.df);
+                out.writeDouble(s == null ? 0.0 : s.sumTf);
+            }
+            out.flush();
+            size = out.size();
+        }
+        Path delta = new Path(checkpoint, DELTA_PREFIX + seq);
+        if (!cfs.rename(tmp, delta)) throw new IOException("cannot commit checkpoint " + seq);
+        changedSources.clear();
+        changedTerms.clear();
+        deltas++;
+        deltaBytes += size;
+        return size;
+    }
+
+    // Writes the changed term parts and the full state of the sources, then drops the deltas it replaces
+    private long compact() throws IOException {
+        long written = 0;
+        for (int p = 0; p < parts.length; p++) {
+            if (parts[p].map != null && parts[p].unsaved) written += writeTerms(p);
+        }
+        Path tmp = new Path(checkpoint, "." + STATE_PREFIX + seq);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(cfs.create(tmp, true), 1 << 16))) {
+            writeHeader(out, MAGIC);
+            out.writeInt(sources.size());
+            for (Map.Entry<String, Source> e : sources.entrySet()) {
+                out.writeUTF(e.getKey());
+                writeSource(out, e.getValue());
+            }
+        }
+        Path state = new Path(checkpoint, STATE_PREFIX + seq);
+        if (!cfs.rename(tmp, state)) throw new IOException("cannot commit checkpoint " + seq);
+        for (FileStatus st : cfs.listStatus(checkpoint)) {
+            long n = fileSeq(st.getPath().getName());
+            if (n >= 0 && (n < seq || st.getPath().getName().startsWith(DELTA_PREFIX))) cfs.delete(st.getPath(), false);
+        }
+        fullBytes = checkpointBytes(state);
+        deltas = 0;
+        deltaBytes = 0;
+        compactions++;
+        return written + cfs.getFileStatus(state).getLen();
+    }
+
+    // Size of a full checkpoint: the state file and every term part
+    private long checkpointBytes(Path state) throws IOException {
+        long bytes = cfs.getFileStatus(state).getLen();
+        Path termsDir = new Path(checkpoint, TERMS_DIR);
+        if (cfs.exists(termsDir)) for (FileStatus st : cfs.listStatus(termsDir)) bytes += st.getLen();
+        return bytes;
+    }
+
+    // Spills the least recently used term parts until at most stream.maxTerms terms stay in memory
+    private void spill() throws IOException {
+        long max = conf.getLong(MAX_TERMS_KEY, 0);
+        if (max <= 0) return;
+        long inMemory = 0;
+        for (TermPart part : parts) if (part.map != null) inMemory += part.size;
+        while (inMemory > max) {
+            int lru = -1;
+            for (int p = 0; p < parts.length; p++) {
+                if (parts[p].map != null && (lru < 0 || parts[p].lastUse < parts[lru].lastUse)) lru = p;
+            }
+            // Safe once the batch's delta is committed: replaying deltas over a newer part rewrites the same values
+            if (parts[lru].unsaved) writeTerms(lru);
+            parts[lru].map = null;
+            inMemory -= parts[lru].size;
+        }
+    }
+
+    // Term part file: magic, count, then (term, df, Σ tf as exact bits) in term order; returns its size
+    private long writeTerms(int p) throws IOException {
+        TermPart part = parts[p];
+        String[] vocabulary = part.map.keySet().toArray(new String[0]);
+        Arrays.sort(vocabulary);
+        Path file = new Path(new Path(checkpoint, TERMS_DIR), Integer.toString(p));
+        Path tmp = new Path(file.getParent(), "." + p);
+        long size;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(cfs.create(tmp, true), 1 << 16))) {
+            out.writeInt(TERMS_MAGIC);
+            out.writeInt(vocabulary.length);
+            for (String term : vocabulary) {
+                TermStats s = part.map.get(term);
+                out.writeUTF(term);
+                out.writeInt(s.df);
+                out.writeDouble(s.sumTf);
+            }
+            out.flush();
+            size = out.size();
+        }
+        rename(tmp, file);
+        part.unsaved = false;
+        return size;
+    }
+
+    private void readTerms(int p, TermVisitor visitor) throws IOException {
+        Path file = new Path(new Path(checkpoint, TERMS_DIR), Integer.toString(p));
+        if (!cfs.exists(file)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(cfs.open(file), 1 << 16))) {
+            if (in.readInt() != TERMS_MAGIC) throw new IOException(file + " is not a streaming term file");
+            for (int n = in.readInt(); n > 0; n--) visitor.visit(in.readUTF(), in.readInt(), in.readDouble());
+        }
+    }
+
+    private int countTerms(int p) throws IOException {
+        Path file = new Path(new Path(checkpoint, TERMS_DIR), Integer.toString(p));
+        if (!cfs.exists(file)) return 0;
+        try (DataInputStream in = cfs.open(file)) {
+            if (in.readInt() != TERMS_MAGIC) throw new IOException(file + " is not a streaming term file");
+            return in.readInt();
+        }
+    }
+
+    private void writeHeader(DataOutputStream out, int magic) throws IOException {
+        out.writeInt(magic);
+        out.writeUTF(Tokenizer.fingerprint(conf));
+        out.writeInt(parts.length);
+        out.writeLong(seq);
+        out.writeLong(numDocs);
+    }
+
+    // Checks magic and tokenizer settings, and sets the partitions (the checkpoint's own count wins), seq and N
+    private void readHeader(DataInputStream in, int magic, Path file) throws IOException {
+        if (in.readInt() != magic) {
+            throw new IOException(file + " is not a streaming checkpoint of this version; remove " + checkpoint + " to start over");
+        }
+        if (!in.readUTF().equals(Tokenizer.fingerprint(conf))) {
+            throw new IOException(checkpoint + " was written with other tokenizer settings; remove it to start over");
+        }
+        int n = in.readInt();
+        if (parts == null || parts.length != n) initParts(n);
+        seq = in.readLong();
+        numDocs = in.readLong();
+    }
+
+    private static void writeSource(DataOutputStream out, Source s) throws IOException {
+        out.writeUTF(s.docId);
+        out.writeLong(s.length);
+        out.writeLong(s.mtime);
+        out.writeLong(s.total);
+        out.writeLong(s.segment);
+        out.writeLong(s.offset);
+        out.writeInt(s.topTerms.length);
+        for (int r = 0; r < s.topTerms.length; r++) {
+            out.writeUTF(s.topTerms[r]);
+            out.writeInt(s.topCounts[r]);
+        }
+    }
+
+    private static Source readSource(DataInputStream in) throws IOException {
+        String docId = in.readUTF();
+        long length = in.readLong();
+        long mtime = in.readLong();
+        long total = in.readLong();
+        long segment = in.readLong();
+        long offset = in.readLong();
+        String[] top = new String[in.readInt()];
+        int[] counts = new int[top.length];
+        for (int r = 0; r < top.length; r++) {
+            top[r] = in.readUTF();
+            counts[r] = in.readInt();
+        }
+        return new Source(docId, length, mtime, total, segment, offset, top, counts);
+    }
+
+    private void initParts(int n) {
+        parts = new TermPart[n];
+        for (int p = 0; p < n; p++) parts[p] = new TermPart();
+        topChanged = new boolean[n];
+    }
+
+    // seq of a state-<seq> or delta-<seq> file name, else -1
+    private static long fileSeq(String name) {
+        String digits = name.startsWith(STATE_PREFIX) ? name.substring(STATE_PREFIX.length())
+                : name.startsWith(DELTA_PREFIX) ? name.substring(DELTA_PREFIX.length()) : "";
+        return digits.matches("\\d+") ? Long.parseLong(digits) : -1;
+    }
+
+    /**
+     * Loads the newest full state and replays the deltas after it, if any, then deletes segments and term parts
+     * nothing refers to (left by an interrupted batch or an older checkpoint).
+     */
+    private boolean restore() throws IOException {
+        initParts(Math.max(1, conf.getInt(PARTITIONS_KEY, 1)));
+        if (!cfs.exists(checkpoint)) return false;
+        Path state = null;
+        long base = -1;
+        List<Long> replay = new ArrayList<>();
+        for (FileStatus st : cfs.listStatus(checkpoint)) {
+            String name = st.getPath().getName();
+            long n = fileSeq(name);
+            if (name.startsWith(STATE_PREFIX) && n > base) {
+                base = n;
+                state = st.getPath();
+            } else if (name.startsWith(DELTA_PREFIX) && n >= 0) {
+                replay.add(n);
+            }
+        }
+        if (state != null) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(cfs.open(state), 1 << 16))) {
+                readHeader(in, MAGIC, state);
+                for (int n = in.readInt(); n > 0; n--) {
+                    String key = in.readUTF();
+                    sources.put(key, readSource(in));
+                }
+            }
+            fullBytes = checkpointBytes(state);
+        }
+        final long after = base;
+        replay.removeIf(n -> n <= after);
+        replay.sort(null);
+        if (state == null && !replay.isEmpty()) {
+            // Only deltas (stopped before the first compaction): their header has the partition count
+            Path first = new Path(checkpoint, DELTA_PREFIX + replay.get(0));
+            try (DataInputStream in = cfs.open(first)) {
+                readHeader(in, DELTA_MAGIC, first);
+            }
+        }
+        Path termsDir = new Path(checkpoint, TERMS_DIR);
+        if (state == null && replay.isEmpty()) {
+            cfs.delete(termsDir, true);
+        } else {
+            for (int p = 0; p < parts.length; p++) {
+                parts[p].size = countTerms(p);
+                parts[p].map = null;
+                termCount += parts[p].size;
+            }
+        }
+        for (long n : replay) {
+            Path delta = new Path(checkpoint, DELTA_PREFIX + n);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(cfs.open(delta), 1 << 16))) {
+                readHeader(in, DELTA_MAGIC, delta);
+                for (int i = in.readInt(); i > 0; i--) {
+                    String key = in.readUTF();
+                    if (in.readBoolean()) sources.put(key, readSource(in));
+                    else sources.remove(key);
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    String term = in.readUTF();
+                    int df = in.readInt();
+                    double sumTf = in.readDouble();
+                    int p = partition(term);
+                    TermPart part = parts[p];
+                    Map<String, TermStats> map = resident(p);
+                    TermStats s = map.get(term);
+                    if (s == null && df > 0) {
+                        s = new TermStats();
+                        map.put(term, s);
+                        part.size++;
+                        termCount++;
+                    } else if (s != null && df == 0) {
+                        map.remove(term);
+                        part.size--;
+                        termCount--;
+                    }
+                    if (df > 0) {
+                        s.df = df;
+                        s.sumTf = sumTf;
+                    }
+                    part.unsaved = true;
+                }
+            }
+            deltas++;
+            deltaBytes += cfs.getFileStatus(delta).getLen();
+        }
+        for (Source s : sources.values()) if (s.segment >= 0) segmentDocs.merge(s.segment, 1, Integer::sum);
+        Path docs = new Path(checkpoint, DOCS_DIR);
+        if (cfs.exists(docs)) {
+            for (FileStatus f : cfs.listStatus(docs)) {
+                String name = f.getPath().getName();
+                if (!name.matches("\\d+") || !segmentDocs.containsKey(Long.parseLong(name))) cfs.delete(f.getPath(), false);
+            }
+        }
+        return state != null || !replay.isEmpty();
+    }
+
+    // p50, p95 and max over the last LATENCY_WINDOW documents
+    private long[] latencyPercentiles() {
+        int n = (int) Math.min(latencySamples, LATENCY_WINDOW);
+        if (n == 0) return new long[3];
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        return new long[]{sorted[(n - 1) / 2], sorted[(int) Math.ceil(0.95 * n) - 1], sorted[n - 1]};
+    }
+
+    private void writeMetrics(String outBase, Path input) throws IOException {
+        SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long[] p = latencyPercentiles();
+        long busy = Math.max(1, busyMs);
+        long inMemory = 0;
+        for (TermPart part : parts) if (part.map != null) inMemory += part.size;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"outBase\": ").append(PipelineMetrics.quote(outBase)).append(",\n");
+        sb.append("  \"input\": ").append(PipelineMetrics.quote(input.toString())).append(",\n");
+        sb.append("  \"engine\": \"stream\",\n");
+        sb.append("  \"startTime\": ").append(PipelineMetrics.quote(iso.format(new Date(startMs)))).append(",\n");
+        sb.append("  \"uptimeMs\": ").append(System.currentTimeMillis() - startMs).append(",\n");
+        sb.append("  \"snapshot\": ").append(seq).append(",\n");
+        sb.append("  \"documents\": ").append(numDocs).append(",\n");
+        sb.append("  \"terms\": ").append(termCount).append(",\n");
+        sb.append("  \"termsInMemory\": ").append(inMemory).append(",\n");
+        sb.append("  \"batches\": ").append(batches).append(",\n");
+        sb.append("  \"compactions\": ").append(compactions).append(",\n");
+        sb.append("  \"filesIngested\": ").append(filesIngested).append(",\n");
+        sb.append("  \"filesRetracted\": ").append(filesRetracted).append(",\n");
+        sb.append("  \"bytesIngested\": ").append(bytesIngested).append(",\n");
+        sb.append("  \"tokensIngested\": ").append(tokensIngested).append(",\n");
+        sb.append("  \"busyMs\": ").append(busyMs).append(",\n");
+        // Rates over the time spent in micro-batches (tokenize + checkpoint + publish), i.e. sustainable throughput
+        sb.append("  \"docsPerSec\": ").append(filesIngested * 1000 / busy).append(",\n");
+        sb.append("  \"bytesPerSec\": ").append(bytesIngested * 1000 / busy).append(",\n");
+        sb.append("  \"tokensPerSec\": ").append(tokensIngested * 1000 / busy).append(",\n");
+        sb.append("  \"latencyMs\": {\"samples\": ").append(Math.min(latencySamples, LATENCY_WINDOW))
+                .append(", \"p50\": ").append(p[0]).append(", \"p95\": ").append(p[1]).append(", \"max\": ").append(p[2]).append("},\n");
+        sb.append("  \"lastBatch\": ").append(lastBatch).append("\n");
+        sb.append("}\n");
+        replace(new Path(new Path(outBase, PipelineMetrics.DIR), METRICS_FILE), sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Readers polling the file see either the old or the new content
+    private void replace(Path p, byte[] content) throws IOException {
+        Path tmp = new Path(p.getParent(), "." + p.getName() + ".tmp");
+        FileSystem fs = p.getFileSystem(conf);
+        try (FSDataOutputStream out = fs.create(tmp, true)) {
+            out.write(content);
+        }
+        rename(tmp, p);
+    }
+
+    // Replaces p; the local file system's own rename does that without FileContext's per-call setup
+    private void rename(Path tmp, Path p) throws IOException {
+        FileSystem fs = p.getFileSystem(conf);
+        if (fs instanceof LocalFileSystem && fs.rename(tmp, p)) return;
+        FileContext.getFileContext(p.toUri(), conf).rename(tmp, p, Options.Rename.OVERWRITE);
+    }
+
+    private static Writer open(FileSystem fs, Path p) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(fs.create(p, true), StandardCharsets.UTF_8), 1 << 16);
+    }
+}
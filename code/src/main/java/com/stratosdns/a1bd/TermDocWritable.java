@@ -0,0 +1,103 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+// (term, docId) pair used as the key of binary intermediate outputs (tfraw, step2_tf)
+public class TermDocWritable implements WritableComparable<TermDocWritable> {
+    private final Text term = new Text();
+    private final Text docId = new Text();
+
+    static {
+        WritableComparator.define(TermDocWritable.class, new Comparator());
+    }
+
+    /** Sorts serialized keys (term bytes, then docId bytes) without deserializing them. */
+    public static class Comparator extends WritableComparator {
+        public Comparator() {
+            super(TermDocWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                // each Text is a vint length followed by its bytes; compare the bytes, as Text's comparator does
+                int v1 = WritableUtils.decodeVIntSize(b1[s1]), len1 = readVInt(b1, s1);
+                int v2 = WritableUtils.decodeVIntSize(b2[s2]), len2 = readVInt(b2, s2);
+                int c = compareBytes(b1, s1 + v1, len1, b2, s2 + v2, len2);
+                if (c != 0) return c;
+                int p1 = s1 + v1 + len1, p2 = s2 + v2 + len2;
+                return compareBytes(b1, p1 + WritableUtils.decodeVIntSize(b1[p1]), readVInt(b1, p1),
+                        b2, p2 + WritableUtils.decodeVIntSize(b2[p2]), readVInt(b2, p2));
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+
+    public TermDocWritable() {
+    }
+
+    public TermDocWritable(String term, String docId) {
+        set(term, docId);
+    }
+
+    public void set(String term, String docId) {
+        this.term.set(term);
+        this.docId.set(docId);
+    }
+
+    public void set(Text term, Text docId) {
+        this.term.set(term);
+        this.docId.set(docId);
+    }
+
+    public Text getTerm() {
+        return term;
+    }
+
+    public Text getDocId() {
+        return docId;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        term.write(out);
+        docId.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        term.readFields(in);
+        docId.readFields(in);
+    }
+
+    @Override
+    public int compareTo(TermDocWritable o) {
+        int c = term.compareTo(o.term);
+        return c != 0 ? c : docId.compareTo(o.docId);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof TermDocWritable)) return false;
+        TermDocWritable t = (TermDocWritable) o;
+        return term.equals(t.term) && docId.equals(t.docId);
+    }
+
+    @Override
+    public int hashCode() {
+        return term.hashCode() * 163 + docId.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return term + "\t" + docId;
+    }
+}
@@ -0,0 +1,98 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte-level helpers for the tab-separated records of the text steps, so mappers and reducers can slice fields
+ * out of a {@link Text} and build output keys in reused Text objects instead of going through String.
+ * Ranges are [from, to) over UTF-8 bytes; tabs and digits are ASCII, so they never occur inside a multi-byte
+ * character.
+ */
+public final class TextBytes {
+
+    private static final byte[] TAB = {'\t'};
+
+    private TextBytes() {
+    }
+
+    public static int indexOfTab(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) if (b[i] == '\t') return i;
+        return -1;
+    }
+
+    public static int lastIndexOfTab(byte[] b, int from, int to) {
+        for (int i = to - 1; i >= from; i--) if (b[i] == '\t') return i;
+        return -1;
+    }
+
+    /** First index in [from, to) after leading whitespace (the bytes String.trim() drops). */
+    public static int trimStart(byte[] b, int from, int to) {
+        while (from < to && (b[from] & 0xff) <= ' ') from++;
+        return from;
+    }
+
+    /** End of [from, to) before trailing whitespace. */
+    public static int trimEnd(byte[] b, int from, int to) {
+        while (to > from && (b[to - 1] & 0xff) <= ' ') to--;
+        return to;
+    }
+
+    /** Non-negative decimal in b[from, to), or -1 if malformed. */
+    public static int parseCount(byte[] b, int from, int to) {
+        if (from >= to || to - from > 10) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v > Integer.MAX_VALUE ? -1 : (int) v;
+    }
+
+    public static double parseDouble(byte[] b, int from, int to) {
+        return Double.parseDouble(new String(b, from, to - from, StandardCharsets.ISO_8859_1));
+    }
+
+    public static void appendTab(Text t) {
+        t.append(TAB, 0, 1);
+    }
+
+    /** Appends the decimal digits of a non-negative int, as String.valueOf would write them. */
+    public static void appendCount(Text t, int v, byte[] scratch) {
+        int i = scratch.length;
+        do {
+            scratch[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        t.append(scratch, i, scratch.length - i);
+    }
+
+    /**
+     * Appends s as UTF-8. ASCII strings (every token) are copied through scratch without a charset encoder;
+     * returns scratch, grown when s did not fit.
+     */
+    public static byte[] appendString(Text t, String s, byte[] scratch) {
+        int n = s.length();
+        if (scratch.length < n) scratch = new byte[Math.max(n, scratch.length * 2)];
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                t.append(utf8, 0, utf8.length);
+                return scratch;
+            }
+            scratch[i] = (byte) c;
+        }
+        t.append(scratch, 0, n);
+        return scratch;
+    }
+
+    /** t = a + TAB + b. */
+    public static void setJoined(Text t, byte[] a, int aFrom, int aLen, byte[] b, int bFrom, int bLen) {
+        t.set(a, aFrom, aLen);
+        t.append(TAB, 0, 1);
+        t.append(b, bFrom, bLen);
+    }
+}
@@ -0,0 +1,558 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.LineReader;
+
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of per-document term counts (--token-cache=<dir>), so reruns with another topN, reducer
+ * count or output format do not tokenize unchanged documents again.
+ *
+ * An entry holds one document's term counts sorted by term and front-coded (shared prefix length, suffix, count as
+ * vints) under vectors/<tokenizer fingerprint>/<xx>/<content hash>, where the hash is the SHA-256 of the file's
+ * bytes: renamed or copied files hit, and a different stopword set never reads another set's counts. The
+ * "sources" file remembers each input path's hash by length and modification time, so an unchanged file is not
+ * read at all; any other file is hashed first and tokenized only if no entry has its content.
+ *
+ * With the cache on, Step1 runs over a manifest of the input files. Each map decodes a cached vector or tokenizes
+ * the file (and stores its vector), then writes the same tfraw/doctotal records as Reducer1, so Steps 2-5 run
+ * unchanged. Hits touch the entry's modification time; after the job the Driver evicts the least recently used
+ * entries until the cache fits tokencache.maxMB.
+ *
+ * A splittable file larger than tokencache.splitMB (default: its block size) is listed as one manifest line per
+ * range, cut where TextInputFormat would split it. A range is cached like a file, keyed by the hash of the lines
+ * it reads, and its counts go through Combiner1/Reducer1 as Mapper1's keys would, so one large document is
+ * tokenized by several maps. Whole files still skip the shuffle.
+ */
+public class TokenCache {
+
+    public static final String DIR_KEY = "tokencache.dir";
+    public static final String MAX_MB_KEY = "tokencache.maxMB";
+    public static final String DOCS_PER_MAP_KEY = "tokencache.docsPerMap";
+    public static final String SPLIT_MB_KEY = "tokencache.splitMB";
+    public static final String SOURCES_FILE = "sources";
+    public static final String MANIFEST_FILE = "manifest";
+    public static final String VECTORS_DIR = "vectors";
+
+    private static final int MAGIC = 0x54435631; // "TCV1"
+    private static final String UNKNOWN = "-";
+
+    /** One document's term counts, terms in ascending byte order, packed into one buffer. */
+    static final class Vector {
+        byte[] bytes = new byte[4096];
+        int used;
+        int[] start = new int[256];
+        int[] len = new int[256];
+        int[] count = new int[256];
+        int size;
+        long total;
+
+        void clear() {
+            used = 0;
+            size = 0;
+            total = 0;
+        }
+
+        void add(byte[] b, int s, int l, int c) {
+            ensure(l);
+            System.arraycopy(b, s, bytes, used, l);
+            append(l, c);
+        }
+
+        // Room for another term of l bytes
+        void ensure(int l) {
+            if (used + l > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + l));
+            if (size == start.length) {
+                start = Arrays.copyOf(start, size * 2);
+                len = Arrays.copyOf(len, size * 2);
+                count = Arrays.copyOf(count, size * 2);
+            }
+        }
+
+        // Records the l bytes already copied to bytes[used..]
+        void append(int l, int c) {
+            start[size] = used;
+            len[size] = l;
+            count[size++] = c;
+            used += l;
+            total += c;
+        }
+    }
+
+    // Input: manifest lines "path<TAB>length<TAB>mtime<TAB>hash or -", plus "<TAB>start<TAB>end" for a range of a
+    // large file; output: Step1's tfraw/doctotal (ranges: Mapper1's keys) and the sources lines the Driver merges
+    // into the cache
+    public static class CacheMapper extends Mapper<LongWritable, Text, Writable, Writable> {
+        private Configuration conf;
+        private Path vectors;
+        private Tokenizer tokenizer;
+        private CompressionCodecFactory codecs;
+        private MultipleOutputs<Writable, Writable> mos;
+        private boolean binary;
+        private final Vector vec = new Vector();
+        private final HashMap<Text, int[]> counts = new HashMap<>();
+        private final Text probe = new Text();
+        private final Text line = new Text();
+        private final byte[] readBuf = new byte[64 * 1024];
+
+        private final Text docId = new Text();
+        private final Text term = new Text();
+        private final Text outKey = new Text();
+        private final TermDocWritable termDoc = new TermDocWritable();
+        private final VIntWritable vCount = new VIntWritable();
+        private final IntWritable count = new IntWritable();
+        private final Text source = new Text();
+        private final MessageDigest rangeDigest = sha256();
+
+        private long hits = 0, misses = 0, documents = 0, tokens = 0, bytes = 0, malformed = 0;
+
+        private final Tokenizer.TokenSink countSink = (buf, s, l) -> {
+            probe.set(buf, s, l);
+            int[] c = counts.get(probe);
+            if (c == null) counts.put(new Text(probe), new int[]{1});
+            else c[0]++;
+        };
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            conf = context.getConfiguration();
+            vectors = vectorsDir(conf);
+            tokenizer = Tokenizer.fromConf(conf);
+            codecs = new CompressionCodecFactory(conf);
+            mos = new MultipleOutputs<>(context);
+            binary = IntermediateFormat.isBinary(conf);
+        }
+
+        @Override
+        protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String[] f = value.toString().split("\t");
+            if (f.length != 4 && f.length != 6) {
+                malformed++;
+                return;
+            }
+            Path p = new Path(f[0]);
+            String hash = f[3];
+            boolean range = f.length == 6;
+            long start = range ? Long.parseLong(f[4]) : 0;
+            long end = range ? Long.parseLong(f[5]) : 0;
+            FileSystem fs = p.getFileSystem(conf);
+            // New or touched file: hashing is a plain read, far cheaper than tokenizing a copy seen before
+            if (UNKNOWN.equals(hash)) hash = range ? hashRange(fs, p, start, end) : hashFile(fs, p);
+            Path entry = entryPath(vectors, hash);
+            boolean hit = false;
+            try {
+                if (fs.exists(entry)) {
+                    readVector(fs, entry, vec);
+                    fs.setTimes(entry, System.currentTimeMillis(), -1);
+                    hit = true;
+                }
+            } catch (IOException e) {
+                // Unreadable entry (e.g. evicted meanwhile or truncated): tokenize again and rewrite it
+                System.err.println("Token cache entry " + entry + " unusable: " + e.getMessage());
+            }
+            if (hit) {
+                hits++;
+            } else {
+                if (range) tokenizeRange(fs, p, start, end);
+                else tokenize(fs, p);
+                writeVector(fs, entry, vec, context.getTaskAttemptID().toString());
+                misses++;
+            }
+            docId.set(p.getName()); // the docId Mapper1 takes from the FileSplit
+            if (range) {
+                emitPartial(context);
+                source.set(rangeSource(f[0], start, end) + "\t" + f[1] + "\t" + f[2] + "\t" + hash);
+            } else {
+                emit();
+                source.set(f[0] + "\t" + f[1] + "\t" + f[2] + "\t" + hash);
+            }
+            mos.write(SOURCES_FILE, source, NullWritable.get());
+        }
+
+        // SHA-256 of the lines the range reads, each ended by a newline
+        private String hashRange(FileSystem fs, Path p, long start, long end) throws IOException, InterruptedException {
+            rangeDigest.reset();
+            forEachRangeLine(fs, p, start, end, line, l -> {
+                rangeDigest.update(l.getBytes(), 0, l.getLength());
+                rangeDigest.update((byte) '\n');
+            });
+            return hex(rangeDigest.digest(), 16);
+        }
+
+        private void tokenizeRange(FileSystem fs, Path p, long start, long end) throws IOException, InterruptedException {
+            counts.clear();
+            forEachRangeLine(fs, p, start, end, line, l -> {
+                tokens += tokenizer.tokenize(l.getBytes(), 0, l.getLength(), countSink);
+                bytes += l.getLength();
+            });
+            sortCounts();
+        }
+
+        // SHA-256 of the stored bytes (compressed files are not decompressed)
+        private String hashFile(FileSystem fs, Path p) throws IOException {
+            MessageDigest md = sha256();
+            try (FSDataInputStream in = fs.open(p)) {
+                int n;
+                while ((n = in.read(readBuf)) > 0) md.update(readBuf, 0, n);
+            }
+            return hex(md.digest(), 16);
+        }
+
+        // Term counts of the file into vec, lines split as TextInputFormat does for Mapper1
+        private void tokenize(FileSystem fs, Path p) throws IOException, InterruptedException {
+            counts.clear();
+            CompressionCodec codec = codecs.getCodec(p);
+            try (FSDataInputStream raw = fs.open(p);
+                 InputStream in = codec == null ? raw : codec.createInputStream(raw)) {
+                LineReader lines = new LineReader(in, conf);
+                while (lines.readLine(line) > 0) {
+                    tokens += tokenizer.tokenize(line.getBytes(), 0, line.getLength(), countSink);
+                    bytes += line.getLength();
+                }
+            }
+            sortCounts();
+        }
+
+        private void sortCounts() {
+            List<Text> terms = new ArrayList<>(counts.keySet());
+            terms.sort(null);
+            vec.clear();
+            for (Text t : terms) vec.add(t.getBytes(), 0, t.getLength(), counts.get(t)[0]);
+        }
+
+        // A range's counts are partial: "T#docId<TAB>term" and "D#docId" keys, summed by Combiner1/Reducer1
+        private void emitPartial(Context context) throws IOException, InterruptedException {
+            if (vec.total == 0) return;
+            byte[] prefix = ("T#" + docId + "\t").getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < vec.size; i++) {
+                outKey.set(prefix, 0, prefix.length);
+                outKey.append(vec.bytes, vec.start[i], vec.len[i]);
+                count.set(vec.count[i]);
+                context.write(outKey, count);
+            }
+            outKey.set("D#" + docId);
+            count.set((int) vec.total);
+            context.write(outKey, count);
+        }
+
+        private void emit() throws IOException, InterruptedException {
+            // Documents without tokens have no doctotal row, as in Reducer1
+            if (vec.total == 0) return;
+            for (int i = 0; i < vec.size; i++) {
+                if (binary) {
+                    term.set(vec.bytes, vec.start[i], vec.len[i]);
+                    termDoc.set(term, docId);
+                    vCount.set(vec.count[i]);
+                    mos.write("tfraw", termDoc, vCount);
+                } else {
+                    TextBytes.setJoined(outKey, vec.bytes, vec.start[i], vec.len[i], docId.getBytes(), 0, docId.getLength());
+                    count.set(vec.count[i]);
+                    mos.write("tfraw", outKey, count);
+                }
+            }
+            if (binary) {
+                vCount.set((int) vec.total);
+                mos.write("doctotal", docId, vCount);
+            } else {
+                count.set((int) vec.total);
+                mos.write("doctotal", docId, count);
+            }
+            documents++;
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            mos.close();
+            context.getCounter(PipelineCounters.TOKEN_CACHE_HITS).increment(hits);
+            context.getCounter(PipelineCounters.TOKEN_CACHE_MISSES).increment(misses);
+            context.getCounter(Job1_TermCount.Counters.DOCUMENTS).increment(documents);
+            context.getCounter(PipelineCounters.TOKENS).increment(tokens);
+            context.getCounter(PipelineCounters.STOPWORDS_DROPPED).increment(tokenizer.getStopwordsDropped());
+            context.getCounter(PipelineCounters.BYTES_PARSED).increment(bytes);
+            context.getCounter(PipelineCounters.MALFORMED_RECORDS).increment(malformed);
+        }
+    }
+
+    static Path vectorsDir(Configuration conf) throws IOException {
+        String dir = conf.get(DIR_KEY);
+        if (dir == null) throw new IOException(DIR_KEY + " not provided");
+        return new Path(new Path(dir, VECTORS_DIR), Tokenizer.fingerprint(conf));
+    }
+
+    interface LineVisitor {
+        void visit(Text line) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Visits the lines LineRecordReader gives the split [start, end): a range other than the first skips its first
+     * (partial) line, and the last line read may run past end.
+     */
+    static void forEachRangeLine(FileSystem fs, Path p, long start, long end, Text line, LineVisitor visitor) throws IOException, InterruptedException {
+        try (FSDataInputStream in = fs.open(p)) {
+            in.seek(start);
+            LineReader lines = new LineReader(in);
+            long pos = start;
+            if (start != 0) pos += lines.readLine(line);
+            while (pos <= end) {
+                int n = lines.readLine(line);
+                if (n == 0) break;
+                pos += n;
+                visitor.visit(line);
+            }
+        }
+    }
+
+    static String rangeSource(String path, long start, long end) {
+        return path + "#" + start + "-" + end;
+    }
+
+    // Two-character fan-out keeps directory listings short
+    static Path entryPath(Path vectors, String hash) {
+        return new Path(new Path(vectors, hash.substring(0, 2)), hash);
+    }
+
+    static void readVector(FileSystem fs, Path entry, Vector vec) throws IOException {
+        try (DataInputStream in = new DataInputStream(fs.open(entry))) {
+            readVector(in, vec);
+        }
+    }
+
+    /** Reads one vector at the stream's position (StreamingEngine packs many into a file). */
+    static void readVector(DataInput in, Vector vec) throws IOException {
+        vec.clear();
+        if (in.readInt() != MAGIC) throw new IOException("not a token cache entry");
+        int n = WritableUtils.readVInt(in);
+        long total = WritableUtils.readVLong(in);
+        for (int i = 0; i < n; i++) {
+            int shared = WritableUtils.readVInt(in);
+            int suffix = WritableUtils.readVInt(in);
+            if (shared < 0 || suffix < 0 || (i == 0 ? shared != 0 : shared > vec.len[i - 1])) {
+                throw new IOException("corrupt term " + i);
+            }
+            vec.ensure(shared + suffix);
+            if (shared > 0) System.arraycopy(vec.bytes, vec.start[i - 1], vec.bytes, vec.used, shared);
+            in.readFully(vec.bytes, vec.used + shared, suffix);
+            vec.append(shared + suffix, WritableUtils.readVInt(in));
+        }
+        if (vec.total != total) throw new IOException("counts do not add up to " + total);
+    }
+
+    // Written under a task-private name and renamed, so readers never see a partial entry
+    static void writeVector(FileSystem fs, Path entry, Vector vec, String writer) throws IOException {
+        Path tmp = new Path(entry.getParent(), "." + entry.getName() + "." + writer);
+        try (DataOutputStream out = fs.create(tmp, true)) {
+            writeVector(out, vec);
+        }
+        // Another task may have stored the same content first; either copy is valid
+        if (fs.exists(entry) || !fs.rename(tmp, entry)) fs.delete(tmp, false);
+    }
+
+    // Terms front-coded against their predecessor
+    static void writeVector(DataOutput out, Vector vec) throws IOException {
+        out.writeInt(MAGIC);
+        WritableUtils.writeVInt(out, vec.size);
+        WritableUtils.writeVLong(out, vec.total);
+        for (int i = 0; i < vec.size; i++) {
+            int shared = 0;
+            if (i > 0) {
+                int max = Math.min(vec.len[i - 1], vec.len[i]);
+                while (shared < max && vec.bytes[vec.start[i - 1] + shared] == vec.bytes[vec.start[i] + shared]) shared++;
+            }
+            WritableUtils.writeVInt(out, shared);
+            WritableUtils.writeVInt(out, vec.len[i] - shared);
+            out.write(vec.bytes, vec.start[i] + shared, vec.len[i] - shared);
+            WritableUtils.writeVInt(out, vec.count[i]);
+        }
+    }
+
+    /**
+     * Writes the Step1 manifest: every input file, or every range of a large splittable one, with its content hash
+     * when the sources file knows it for the file's current length and modification time. Returns
+     * {manifest lines, hashes known, of which ranges}.
+     */
+    public static int[] writeManifest(Configuration conf, Path input, Path cacheDir, Path manifest) throws IOException {
+        Map<String, String[]> known = readSources(conf, new Path(cacheDir, SOURCES_FILE));
+        List<FileStatus> files = LocalEngine.listInputFiles(input.getFileSystem(conf), input);
+        files.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+        long splitMB = conf.getLong(SPLIT_MB_KEY, 0);
+        int hashed = 0, ranges = 0, rangedFiles = 0;
+        FileSystem fs = manifest.getFileSystem(conf);
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(fs.create(manifest, true), StandardCharsets.UTF_8))) {
+            for (FileStatus st : files) {
+                String path = st.getPath().toString();
+                String len = String.valueOf(st.getLen());
+                String mtime = String.valueOf(st.getModificationTime());
+                long split = splitMB > 0 ? splitMB * 1024L * 1024L : st.getBlockSize();
+                // Compressed files stay whole: ranges are cut in the stored bytes
+                if (split <= 0 || st.getLen() <= split || codecs.getCodec(st.getPath()) != null) {
+                    String hash = knownHash(known, path, len, mtime);
+                    if (!UNKNOWN.equals(hash)) hashed++;
+                    w.write(path + "\t" + len + "\t" + mtime + "\t" + hash + "\n");
+                    continue;
+                }
+                rangedFiles++;
+                for (long start = 0; start < st.getLen(); start += split) {
+                    long end = Math.min(start + split, st.getLen());
+                    String hash = knownHash(known, rangeSource(path, start, end), len, mtime);
+                    if (!UNKNOWN.equals(hash)) hashed++;
+                    w.write(path + "\t" + len + "\t" + mtime + "\t" + hash + "\t" + start + "\t" + end + "\n");
+                    ranges++;
+                }
+            }
+        }
+        return new int[]{files.size() + ranges - rangedFiles, hashed, ranges};
+    }
+
+    private static String knownHash(Map<String, String[]> known, String source, String len, String mtime) {
+        String[] s = known.get(source);
+        return s != null && s[1].equals(len) && s[2].equals(mtime) ? s[3] : UNKNOWN;
+    }
+
+    /** ranges: whether the manifest lists ranges of large files, whose partial counts need Step1's reducer. */
+    public static Job configure(Configuration conf, Path manifest, Path cacheDir, Path outStep1, boolean ranges) throws IOException {
+        Job job = Job.getInstance(conf, "A1_BD - Step1 - TermCount via token cache");
+        job.setJarByClass(TokenCache.class);
+
+        job.getConfiguration().set(DIR_KEY, cacheDir.toString());
+
+        job.setMapperClass(CacheMapper.class);
+        if (ranges) {
+            job.setCombinerClass(Job1_TermCount.Combiner1.class);
+            job.setReducerClass(Job1_TermCount.Reducer1.class);
+            job.setMapOutputKeyClass(Text.class);
+            job.setMapOutputValueClass(IntWritable.class);
+        } else {
+            // Each map sees whole documents, so the counts are final without a shuffle
+            job.setNumReduceTasks(0);
+        }
+
+        job.setInputFormatClass(NLineInputFormat.class);
+        NLineInputFormat.addInputPath(job, manifest);
+        NLineInputFormat.setNumLinesPerSplit(job, conf.getInt(DOCS_PER_MAP_KEY, 16));
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(IntWritable.class);
+
+        IntermediateFormat.setOutput(job, outStep1);
+        Job1_TermCount.addNamedOutputs(job);
+        MultipleOutputs.addNamedOutput(job, SOURCES_FILE, TextOutputFormat.class, Text.class, NullWritable.class);
+
+        return job;
+    }
+
+    /** Folds the sources-* files of a finished Step1 into the cache's sources file. */
+    public static void mergeSources(Configuration conf, Path outStep1, Path cacheDir) throws IOException {
+        Path file = new Path(cacheDir, SOURCES_FILE);
+        Map<String, String[]> sources = readSources(conf, file);
+        FileSystem fs = outStep1.getFileSystem(conf);
+        FileStatus[] parts = fs.globStatus(new Path(outStep1, SOURCES_FILE + "-*"));
+        if (parts != null) {
+            for (FileStatus st : parts) {
+                IntermediateFormat.forEachLine(conf, st.getPath(), line -> {
+                    String[] f = line.split("\t");
+                    if (f.length == 4) sources.put(f[0], f);
+                });
+            }
+        }
+        FileSystem cfs = file.getFileSystem(conf);
+        Path tmp = new Path(cacheDir, "." + SOURCES_FILE + ".tmp");
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(cfs.create(tmp, true), StandardCharsets.UTF_8))) {
+            for (String[] f : sources.values()) w.write(String.join("\t", f) + "\n");
+        }
+        cfs.delete(file, false);
+        cfs.rename(tmp, file);
+    }
+
+    private static Map<String, String[]> readSources(Configuration conf, Path file) throws IOException {
+        Map<String, String[]> sources = new LinkedHashMap<>();
+        if (!file.getFileSystem(conf).exists(file)) return sources;
+        IntermediateFormat.forEachLine(conf, file, line -> {
+            String[] f = line.split("\t");
+            if (f.length == 4) sources.put(f[0], f);
+        });
+        return sources;
+    }
+
+    /**
+     * Deletes the least recently used entries (oldest modification time; hits touch it) of every tokenizer
+     * fingerprint until the cache holds at most maxBytes. Returns {entries evicted, bytes evicted, bytes kept}.
+     */
+    public static long[] evict(Configuration conf, Path cacheDir, long maxBytes) throws IOException {
+        Path dir = new Path(cacheDir, VECTORS_DIR);
+        FileSystem fs = dir.getFileSystem(conf);
+        if (!fs.exists(dir)) return new long[]{0, 0, 0};
+        List<LocatedFileStatus> entries = new ArrayList<>();
+        long size = 0;
+        RemoteIterator<LocatedFileStatus> it = fs.listFiles(dir, true);
+        while (it.hasNext()) {
+            LocatedFileStatus st = it.next();
+            if (st.getPath().getName().startsWith(".")) continue; // being written
+            entries.add(st);
+            size += st.getLen();
+        }
+        entries.sort((a, b) -> Long.compare(a.getModificationTime(), b.getModificationTime()));
+        long evicted = 0, evictedBytes = 0;
+        for (LocatedFileStatus st : entries) {
+            if (size <= maxBytes) break;
+            if (fs.delete(st.getPath(), false)) {
+                evicted++;
+                evictedBytes += st.getLen();
+                size -= st.getLen();
+            }
+        }
+        return new long[]{evicted, evictedBytes, size};
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is required of every JVM
+        }
+    }
+
+    private static String hex(byte[] d, int n) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < n; i++) hex.append(String.format("%02x", d[i]));
+        return hex.toString();
+    }
+}
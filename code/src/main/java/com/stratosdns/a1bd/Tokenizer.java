@@ -1,24 +1,199 @@
 package com.stratosdns.a1bd;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
 
+/**
+ * Splits text into lowercase [a-z0-9] tokens and drops stopwords.
+ *
+ * The hot path scans UTF-8 bytes (e.g. a Hadoop {@link Text}) directly and hands every token to a
+ * {@link TokenSink} as a slice of a reusable buffer, so no Strings are created per token.
+ * Output is identical to the original {@code line.toLowerCase().split("[^a-z0-9]+")} implementation
+ * (under a non-Turkic default locale): ASCII letters are folded, U+0130 becomes "i" followed by a break
+ * (its lowercase form is "i" + combining dot), U+212A KELVIN SIGN becomes "k", and every other byte is a separator.
+ *
+ * Instances keep a scratch buffer and are not thread-safe; use one per task/thread.
+ */
 public class Tokenizer {
-    // Optional stopwords. Comment out the "continue" line below to disable filtering.
-    private static final List<String> STOP = Arrays.asList(
+
+    public interface TokenSink {
+        void token(byte[] buf, int start, int len) throws IOException, InterruptedException;
+    }
+
+    // Comma-separated stopword list; overrides the default list below
+    public static final String STOPWORDS_KEY = "tokenizer.stopwords";
+    // Set to false to count all tokens
+    public static final String STOPWORDS_ENABLED_KEY = "tokenizer.stopwords.enabled";
+
+    public static final List<String> DEFAULT_STOPWORDS = Collections.unmodifiableList(Arrays.asList(
             "a","an","the","and","or","but","if","then","else","when","of","on","in","to","from","by","for","with","is","are","was","were","be","been","being","it","its"
-    );
+    ));
+
+    // Bump whenever tokenize() splits or folds differently; TokenCache entries are keyed by it
+    private static final int RULES_VERSION = 1;
+
+    private static final ThreadLocal<Tokenizer> DEFAULT = ThreadLocal.withInitial(Tokenizer::new);
+
+    private final ByteSet stop;
+    private byte[] tok = new byte[64];
+    private long stopwordsDropped = 0;
+
+    public Tokenizer() {
+        this(DEFAULT_STOPWORDS);
+    }
+
+    public Tokenizer(Collection<String> stopwords) {
+        stop = new ByteSet(stopwords);
+    }
+
+    public static Tokenizer fromConf(Configuration conf) {
+        return new Tokenizer(stopwords(conf));
+    }
+
+    private static List<String> stopwords(Configuration conf) {
+        if (!conf.getBoolean(STOPWORDS_ENABLED_KEY, true)) return Collections.emptyList();
+        String list = conf.get(STOPWORDS_KEY);
+        if (list == null) return DEFAULT_STOPWORDS;
+        List<String> words = new ArrayList<>();
+        for (String w : list.split(",")) {
+            w = w.trim().toLowerCase(Locale.ROOT); // not the JVM locale: Turkish would turn IS into ıs
+            if (!w.isEmpty()) words.add(w);
+        }
+        return words;
+    }
+
+    /** Identifies the tokens fromConf(conf) produces: the rule version and the effective stopword set. */
+    public static String fingerprint(Configuration conf) {
+        String id = "v" + RULES_VERSION + ":" + String.join(",", new TreeSet<>(stopwords(conf)));
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(id.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) hex.append(String.format("%02x", d[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is required of every JVM
+        }
+    }
 
     public static List<String> tokenize(String line) {
         List<String> out = new ArrayList<>();
         if (line == null) return out;
-        String[] toks = line.toLowerCase().split("[^a-z0-9]+");
-        for (String t : toks) {
-            if (t.isEmpty()) continue;
-            if (STOP.contains(t)) continue; // disable this line to count all tokens
-            out.add(t);
+        byte[] b = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            DEFAULT.get().tokenize(b, 0, b.length,
+                    (buf, s, l) -> out.add(new String(buf, s, l, StandardCharsets.US_ASCII)));
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalStateException(e); // the list sink never throws
         }
         return out;
     }
-}
\ No newline at end of file
+
+    /** Tokens filtered as stopwords by this instance so far. */
+    public long getStopwordsDropped() {
+        return stopwordsDropped;
+    }
+
+    public void tokenize(Text line, TokenSink sink) throws IOException, InterruptedException {
+        tokenize(line.getBytes(), 0, line.getLength(), sink);
+    }
+
+    /** Returns the number of tokens handed to the sink. */
+    public int tokenize(byte[] b, int start, int len, TokenSink sink) throws IOException, InterruptedException {
+        int end = start + len;
+        int n = 0;
+        int emitted = 0;
+        for (int i = start; i < end; i++) {
+            int c = b[i] & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                n = append(n, c);
+            } else if (c >= 'A' && c <= 'Z') {
+                n = append(n, c + ('a' - 'A'));
+            } else if (c == 0xC4 && i + 1 < end && (b[i + 1] & 0xff) == 0xB0) {
+                // U+0130 -> "i̇": the combining dot ends the token
+                n = append(n, 'i');
+                i++;
+                if (emit(n, sink)) emitted++;
+                n = 0;
+            } else if (c == 0xE2 && i + 2 < end && (b[i + 1] & 0xff) == 0x84 && (b[i + 2] & 0xff) == 0xAA) {
+                // U+212A KELVIN SIGN -> 'k'
+                n = append(n, 'k');
+                i += 2;
+            } else if (n > 0) {
+                if (emit(n, sink)) emitted++;
+                n = 0;
+            }
+        }
+        if (n > 0 && emit(n, sink)) emitted++;
+        return emitted;
+    }
+
+    private int append(int n, int c) {
+        if (n == tok.length) tok = Arrays.copyOf(tok, n * 2);
+        tok[n] = (byte) c;
+        return n + 1;
+    }
+
+    private boolean emit(int n, TokenSink sink) throws IOException, InterruptedException {
+        if (n == 0) return false;
+        if (stop.contains(tok, 0, n)) {
+            stopwordsDropped++;
+            return false;
+        }
+        sink.token(tok, 0, n);
+        return true;
+    }
+
+    // Open-addressing set of short ASCII words, probed directly with byte slices
+    private static final class ByteSet {
+        private final byte[][] slots;
+        private final int mask;
+
+        ByteSet(Collection<String> words) {
+            int cap = 16;
+            while (cap < words.size() * 4) cap <<= 1;
+            slots = new byte[cap][];
+            mask = cap - 1;
+            for (String w : words) {
+                byte[] k = w.getBytes(StandardCharsets.UTF_8);
+                if (!contains(k, 0, k.length)) {
+                    int i = hash(k, 0, k.length) & mask;
+                    while (slots[i] != null) i = (i + 1) & mask;
+                    slots[i] = k;
+                }
+            }
+        }
+
+        private static int hash(byte[] b, int s, int l) {
+            int h = 0;
+            for (int i = s; i < s + l; i++) h = 31 * h + b[i];
+            return h ^ (h >>> 16);
+        }
+
+        boolean contains(byte[] b, int s, int l) {
+            int i = hash(b, s, l) & mask;
+            byte[] k;
+            while ((k = slots[i]) != null) {
+                if (k.length == l && equal(k, b, s, l)) return true;
+                i = (i + 1) & mask;
+            }
+            return false;
+        }
+
+        private static boolean equal(byte[] k, byte[] b, int s, int l) {
+            for (int j = 0; j < l; j++) if (k[j] != b[s + j]) return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.stratosdns.a1bd;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Bounded min-heap of (count, term) keeping the N best entries: higher count wins, ties go to the
+ * lexicographically smaller term so results are deterministic. Comparisons are on primitive ints; a term
+ * String is only needed once a candidate is known to enter the heap (see {@link #accepts(int)}).
+ */
+public class TopNHeap {
+    private final int capacity;
+    private final int[] counts;
+    private final String[] terms;
+    private int size = 0;
+    private long inserts = 0;
+
+    public TopNHeap(int capacity) {
+        this.capacity = capacity;
+        this.counts = new int[Math.max(capacity, 0)];
+        this.terms = new String[Math.max(capacity, 0)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Entries that entered the heap since construction (not reset by clear). */
+    public long getInserts() {
+        return inserts;
+    }
+
+    public void clear() {
+        Arrays.fill(terms, 0, size, null);
+        size = 0;
+    }
+
+    /** True if an entry with this count may enter the heap (ties are decided by the term in offer). */
+    public boolean accepts(int count) {
+        return capacity > 0 && (size < capacity || count >= counts[0]);
+    }
+
+    public void offer(String term, int count) {
+        if (size < capacity) {
+            counts[size] = count;
+            terms[size] = term;
+            siftUp(size++);
+            inserts++;
+        } else if (capacity > 0 && worse(counts[0], terms[0], count, term)) {
+            counts[0] = count;
+            terms[0] = term;
+            siftDown(0);
+            inserts++;
+        }
+    }
+
+    // a is worse than b: lower count, or same count and larger term
+    private static boolean worse(int ca, String ta, int cb, String tb) {
+        return ca != cb ? ca < cb : ta.compareTo(tb) > 0;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(counts[i], terms[i], counts[parent], terms[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, min = i;
+            if (l < size && worse(counts[l], terms[l], counts[min], terms[min])) min = l;
+            if (r < size && worse(counts[r], terms[r], counts[min], terms[min])) min = r;
+            if (min == i) return;
+            swap(i, min);
+            i = min;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int c = counts[a];
+        counts[a] = counts[b];
+        counts[b] = c;
+        String t = terms[a];
+        terms[a] = terms[b];
+        terms[b] = t;
+    }
+
+    public interface EntryVisitor {
+        void visit(int rank, String term, int count) throws IOException, InterruptedException;
+    }
+
+    /** Empties the heap, visiting entries best first (rank 1..size). */
+    public void drainDescending(EntryVisitor visitor) throws IOException, InterruptedException {
+        int n = size;
+        String[] t = new String[n];
+        int[] c = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            t[i] = terms[0];
+            c[i] = counts[0];
+            size--;
+            if (size > 0) {
+                counts[0] = counts[size];
+                terms[0] = terms[size];
+                siftDown(0);
+            }
+            terms[size] = null;
+        }
+        for (int i = 0; i < n; i++) visitor.visit(i + 1, t[i], c[i]);
+    }
+}
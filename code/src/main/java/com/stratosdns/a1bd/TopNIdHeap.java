@@ -0,0 +1,104 @@
+package com.stratosdns.a1bd;
+
+import java.io.IOException;
+
+/**
+ * {@link TopNHeap} over int term ids (--encode-ids): higher count wins, ties go to the smaller id. Term ids are
+ * assigned in term order, so results match TopNHeap on the terms themselves, with no term table in the task.
+ */
+public class TopNIdHeap {
+    private final int capacity;
+    private final int[] counts;
+    private final int[] ids;
+    private int size = 0;
+    private long inserts = 0;
+
+    public TopNIdHeap(int capacity) {
+        this.capacity = capacity;
+        this.counts = new int[Math.max(capacity, 0)];
+        this.ids = new int[Math.max(capacity, 0)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Entries that entered the heap since construction (not reset by clear). */
+    public long getInserts() {
+        return inserts;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void offer(int id, int count) {
+        if (size < capacity) {
+            counts[size] = count;
+            ids[size] = id;
+            siftUp(size++);
+            inserts++;
+        } else if (capacity > 0 && worse(counts[0], ids[0], count, id)) {
+            counts[0] = count;
+            ids[0] = id;
+            siftDown(0);
+            inserts++;
+        }
+    }
+
+    // a is worse than b: lower count, or same count and larger id
+    private static boolean worse(int ca, int ia, int cb, int ib) {
+        return ca != cb ? ca < cb : ia > ib;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(counts[i], ids[i], counts[parent], ids[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int l = 2 * i + 1, r = l + 1, min = i;
+            if (l < size && worse(counts[l], ids[l], counts[min], ids[min])) min = l;
+            if (r < size && worse(counts[r], ids[r], counts[min], ids[min])) min = r;
+            if (min == i) return;
+            swap(i, min);
+            i = min;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int c = counts[a];
+        counts[a] = counts[b];
+        counts[b] = c;
+        int t = ids[a];
+        ids[a] = ids[b];
+        ids[b] = t;
+    }
+
+    public interface EntryVisitor {
+        void visit(int rank, int id, int count) throws IOException, InterruptedException;
+    }
+
+    /** Empties the heap, visiting entries best first (rank 1..size). */
+    public void drainDescending(EntryVisitor visitor) throws IOException, InterruptedException {
+        int n = size;
+        int[] t = new int[n];
+        int[] c = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            t[i] = ids[0];
+            c[i] = counts[0];
+            size--;
+            if (size > 0) {
+                counts[0] = counts[size];
+                ids[0] = ids[size];
+                siftDown(0);
+            }
+        }
+        for (int i = 0; i < n; i++) visitor.visit(i + 1, t[i], c[i]);
+    }
+}
@@ -0,0 +1,135 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** IdfDictionary lookups (the default Step4 path) against the HashMap Step4 builds from the same part files. */
+public class IdfDictionaryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Configuration conf = new Configuration(false);
+
+    // Step3 output of `reducers` reducers: part-r-N text rows and idfdict-r-N, each reducer's terms in Text order
+    private List<Path> writeStep3(Path dir, Map<String, Double> idf, int reducers) throws Exception {
+        FileSystem fs = FileSystem.getLocal(conf);
+        List<TreeMap<Text, Double>> byReducer = new ArrayList<>();
+        for (int r = 0; r < reducers; r++) byReducer.add(new TreeMap<>());
+        for (Map.Entry<String, Double> e : idf.entrySet()) {
+            Text t = new Text(e.getKey());
+            byReducer.get((t.hashCode() & Integer.MAX_VALUE) % reducers).put(t, e.getValue());
+        }
+        List<Path> dicts = new ArrayList<>();
+        for (int r = 0; r < reducers; r++) {
+            String suffix = String.format("-r-%05d", r);
+            Path dict = new Path(dir, IdfDictionary.FILE_PREFIX + suffix);
+            try (Writer text = new BufferedWriter(new OutputStreamWriter(fs.create(new Path(dir, "part" + suffix)), StandardCharsets.UTF_8));
+                 IdfDictionary.Writer w = new IdfDictionary.Writer(fs.create(dict))) {
+                for (Map.Entry<Text, Double> e : byReducer.get(r).entrySet()) {
+                    text.write(e.getKey() + "\t" + e.getValue() + "\n");
+                    w.append(e.getKey(), e.getValue());
+                }
+            }
+            dicts.add(dict);
+        }
+        return dicts;
+    }
+
+    // What Mapper4 loads with tfidf.idf.lookup=map
+    private Map<String, Double> readParts(Path dir) throws Exception {
+        FileSystem fs = FileSystem.getLocal(conf);
+        Map<String, Double> map = new HashMap<>();
+        for (FileStatus st : fs.listStatus(dir)) {
+            if (st.getPath().getName().startsWith("part-r-")) IntermediateFormat.readDoublePairs(conf, st.getPath(), map::put);
+        }
+        return map;
+    }
+
+    private static Map<String, Double> randomIdf(Random rnd, int terms) {
+        String alphabet = "abcdefghijklmnopqrstuvwxyz0123456789";
+        Map<String, Double> idf = new HashMap<>();
+        while (idf.size() < terms) {
+            StringBuilder sb = new StringBuilder();
+            int len = 1 + rnd.nextInt(12);
+            for (int i = 0; i < len; i++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+            idf.put(sb.toString(), rnd.nextDouble() * 12 - 1);
+        }
+        // non-ASCII terms sort by unsigned bytes, after every ASCII term
+        idf.put("café", 1.5);
+        idf.put("ärger", 2.5);
+        idf.put("日本", 3.5);
+        return idf;
+    }
+
+    private void checkAgainstMap(int terms, int reducers) throws Exception {
+        Random rnd = new Random(terms * 31L + reducers);
+        Map<String, Double> idf = randomIdf(rnd, terms);
+        Path dir = new Path(tmp.newFolder().getAbsolutePath());
+        List<Path> dicts = writeStep3(dir, idf, reducers);
+        Map<String, Double> map = readParts(dir);
+        IdfDictionary dict = IdfDictionary.load(conf, dicts);
+
+        assertEquals(map.size(), dict.size());
+        for (Map.Entry<String, Double> e : map.entrySet()) {
+            double expected = e.getValue();
+            assertEquals(e.getKey(), expected, dict.get(e.getKey()), 0.0);
+            assertEquals(e.getKey(), expected, dict.get(new Text(e.getKey())), 0.0);
+            byte[] b = ("xx" + e.getKey() + "yy").getBytes(StandardCharsets.UTF_8);
+            assertEquals(e.getKey(), expected, dict.get(b, 2, b.length - 4), 0.0);
+        }
+        // misses: absent from both
+        for (int i = 0; i < 2000; i++) {
+            String probe = "zz" + rnd.nextInt(1000000) + "_";
+            assertTrue(probe, Double.isNaN(dict.get(probe)) && !map.containsKey(probe));
+        }
+        assertTrue(Double.isNaN(dict.get("")));
+    }
+
+    @Test
+    public void singlePart() throws Exception {
+        checkAgainstMap(5000, 1);
+    }
+
+    @Test
+    public void mergesSeveralParts() throws Exception {
+        checkAgainstMap(20000, 4);
+        checkAgainstMap(3000, 7);
+    }
+
+    @Test
+    public void emptyParts() throws Exception {
+        // more reducers than terms: some idfdict files hold no terms
+        checkAgainstMap(3, 8);
+    }
+
+    @Test
+    public void memoryIsUnboxed() throws Exception {
+        Path dir = new Path(tmp.newFolder().getAbsolutePath());
+        Map<String, Double> idf = randomIdf(new Random(1), 1000);
+        IdfDictionary dict = IdfDictionary.load(conf, writeStep3(dir, idf, 3));
+        long termBytes = 0;
+        for (String t : idf.keySet()) termBytes += t.getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(termBytes + 12L * idf.size() + 4, dict.memoryBytes());
+    }
+}
@@ -0,0 +1,172 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Index shards written by InvertedIndex.Writer, searched with MaxScore, against a brute-force sum. */
+public class InvertedIndexTest {
+
+    private static final int DOCS = 3000;
+    private static final int TERMS = 60;
+    private static final int SHARDS = 3;
+    // Documents [0, TIED) hold exactly the term's max on every tied term, so their sums are equal in any order
+    private static final int TIED = 6;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Map<String, int[]> docs = new HashMap<>();
+    private final Map<String, float[]> scores = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<String> terms = new ArrayList<>();
+
+    // Postings for TERMS random terms, some of them longer than a few skip blocks; every third term is tied
+    private InvertedIndex build(Random rnd) throws Exception {
+        for (int d = 0; d < DOCS; d++) names.add("doc" + d);
+        for (int t = 0; t < TERMS; t++) {
+            String term = (t % 7 == 0 ? "é" : "") + "t" + Integer.toString(rnd.nextInt(1 << 20), 36) + "_" + t;
+            int df = rnd.nextInt(4) == 0 ? 1 + rnd.nextInt(InvertedIndex.BLOCK) : InvertedIndex.BLOCK + rnd.nextInt(DOCS / 2);
+            float max = 1f / (1 << rnd.nextInt(6));
+            boolean tied = t % 3 == 0;
+            int[] d = new int[DOCS];
+            int n = 0;
+            if (tied) for (int i = 0; i < TIED; i++) d[n++] = i;
+            List<Integer> rest = new ArrayList<>();
+            for (int i = TIED; i < DOCS; i++) rest.add(i);
+            Collections.shuffle(rest, rnd);
+            for (int i = 0; n < df; i++) d[n++] = rest.get(i);
+            d = Arrays.copyOf(d, n);
+            Arrays.sort(d);
+            float[] s = new float[n];
+            for (int i = 0; i < n; i++) s[i] = d[i] < TIED ? max : max * (0.01f + 0.98f * rnd.nextFloat());
+            // without a tied term the maximum still has to be reached by some posting
+            if (!tied) s[rnd.nextInt(n)] = max;
+            terms.add(term);
+            docs.put(term, d);
+            scores.put(term, s);
+        }
+
+        File dir = tmp.newFolder("index");
+        List<List<Text>> shards = new ArrayList<>();
+        for (int i = 0; i < SHARDS; i++) shards.add(new ArrayList<>());
+        for (String t : terms) shards.get(Math.floorMod(t.hashCode(), SHARDS)).add(new Text(t));
+        for (int i = 0; i < SHARDS; i++) {
+            List<Text> shard = shards.get(i);
+            Collections.sort(shard);
+            File f = new File(dir, String.format("%s-r-%05d", InvertedIndex.FILE_PREFIX, i));
+            try (InvertedIndex.Writer w = new InvertedIndex.Writer(new FileOutputStream(f))) {
+                for (Text t : shard) {
+                    int[] d = docs.get(t.toString());
+                    w.append(t, d, scores.get(t.toString()), d.length);
+                }
+            }
+        }
+        Files.write(new File(dir, InvertedIndex.DOCS_FILE).toPath(), names, StandardCharsets.UTF_8);
+        return InvertedIndex.open(dir.toPath());
+    }
+
+    // Sum of the dequantized impacts, best first and ties to the earlier document
+    private List<InvertedIndex.Hit> bruteForce(List<String> query, int k) {
+        TreeMap<Integer, Double> sums = new TreeMap<>();
+        for (String t : query) {
+            int[] d = docs.get(t);
+            if (d == null) continue;
+            float[] s = scores.get(t);
+            float max = 0f;
+            for (float x : s) max = Math.max(max, x);
+            for (int i = 0; i < d.length; i++) {
+                int impact = Math.round(s[i] / max * 65535f);
+                sums.merge(d[i], impact * (double) max / 65535f, Double::sum);
+            }
+        }
+        List<Map.Entry<Integer, Double>> all = new ArrayList<>(sums.entrySet());
+        all.sort((a, b) -> a.getValue().equals(b.getValue()) ? Integer.compare(a.getKey(), b.getKey()) : Double.compare(b.getValue(), a.getValue()));
+        List<InvertedIndex.Hit> out = new ArrayList<>();
+        for (Map.Entry<Integer, Double> e : all.subList(0, Math.min(k, all.size()))) out.add(new InvertedIndex.Hit(names.get(e.getKey()), e.getValue()));
+        return out;
+    }
+
+    private static void assertSameHits(String what, List<InvertedIndex.Hit> expected, List<InvertedIndex.Hit> actual) {
+        assertEquals(what + ": " + actual, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(what + " rank " + i, expected.get(i).docId, actual.get(i).docId);
+            assertEquals(what + " rank " + i, expected.get(i).score, actual.get(i).score, 1e-9 * Math.max(1, expected.get(i).score));
+        }
+    }
+
+    @Test
+    public void searchMatchesBruteForce() throws Exception {
+        Random rnd = new Random(14);
+        try (InvertedIndex index = build(rnd)) {
+            assertEquals(DOCS, index.numDocs());
+            assertEquals(TERMS, index.numTerms());
+            int[] ks = {1, 3, TIED - 1, 10, 100, DOCS * 2};
+            for (int q = 0; q < 300; q++) {
+                List<String> query = new ArrayList<>();
+                int n = 1 + rnd.nextInt(5);
+                for (int i = 0; i < n; i++) query.add(terms.get(rnd.nextInt(TERMS)));
+                if (rnd.nextInt(4) == 0) query.add("unknown" + q);
+                int k = ks[rnd.nextInt(ks.length)];
+                assertSameHits(query + " k=" + k, bruteForce(new ArrayList<>(new LinkedHashSet<>(query)), k), index.search(query, k));
+            }
+        }
+    }
+
+    @Test
+    public void tiesGoToTheEarlierDocument() throws Exception {
+        try (InvertedIndex index = build(new Random(3))) {
+            List<String> query = new ArrayList<>();
+            for (int t = 0; t < TERMS; t += 3) query.add(terms.get(t));
+            // the tied documents hold the max of every query term, so they lead in document order
+            List<InvertedIndex.Hit> hits = index.search(query, TIED - 2);
+            assertEquals(TIED - 2, hits.size());
+            for (int i = 0; i < hits.size(); i++) {
+                assertEquals("doc" + i, hits.get(i).docId);
+                assertEquals(hits.get(0).score, hits.get(i).score, 0.0);
+            }
+            assertSameHits("tied", bruteForce(query, TIED + 3), index.search(query, TIED + 3));
+        }
+    }
+
+    @Test
+    public void allHitsWhenKExceedsThem() throws Exception {
+        try (InvertedIndex index = build(new Random(8))) {
+            String term = terms.get(1);
+            List<InvertedIndex.Hit> hits = index.search(Collections.singletonList(term), DOCS * 2);
+            assertEquals(docs.get(term).length, hits.size());
+            for (int i = 1; i < hits.size(); i++) assertTrue(hits.get(i - 1).score >= hits.get(i).score);
+        }
+    }
+
+    @Test
+    public void docFreqAndUnknownTerms() throws Exception {
+        try (InvertedIndex index = build(new Random(21))) {
+            for (String t : terms) assertEquals(t, docs.get(t).length, index.docFreq(t));
+            // absent terms sorting before, between and after the stored ones, in every shard
+            for (String t : Arrays.asList("", "a", "t", "tzzzz", "é", "￿", terms.get(0) + "x")) {
+                assertEquals(t, 0, index.docFreq(t));
+                assertTrue(t, index.search(Collections.singletonList(t), 10).isEmpty());
+            }
+            assertTrue(index.search(terms, 0).isEmpty());
+        }
+    }
+}
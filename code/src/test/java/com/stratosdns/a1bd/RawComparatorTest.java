@@ -0,0 +1,109 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** The raw comparators of the binary keys (Step2's sort and grouping, tfraw/step2_tf) against compareTo. */
+public class RawComparatorTest {
+
+    private static final int PAIRS = 20000;
+
+    // Short strings so that equal prefixes and equal keys are common, plus long ones for 2-byte vint lengths;
+    // 'é' sorts after every ASCII byte in Text order
+    private static String randomString(Random rnd) {
+        String alphabet = "abAB09_é";
+        int len = rnd.nextInt(10) == 0 ? 100 + rnd.nextInt(300) : rnd.nextInt(4);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; i++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    // Salts 0..2 (often equal) or up to 100000, past the 1-byte vint range
+    private static int randomSalt(Random rnd) {
+        return rnd.nextBoolean() ? rnd.nextInt(3) : rnd.nextInt(100000);
+    }
+
+    private static DocTagKey randomDocTagKey(Random rnd) {
+        DocTagKey k = new DocTagKey();
+        k.set(new Text(randomString(rnd)), randomSalt(rnd), rnd.nextBoolean() ? DocTagKey.TOTAL : DocTagKey.TERM);
+        return k;
+    }
+
+    // Serialized a then b in one buffer behind some padding, so the comparators see non-zero start offsets
+    private static int[] serialize(DataOutputBuffer buf, Writable a, Writable b) throws Exception {
+        buf.reset();
+        buf.write(new byte[]{7, 7, 7});
+        int s1 = buf.getLength();
+        a.write(buf);
+        int s2 = buf.getLength();
+        b.write(buf);
+        return new int[]{s1, s2 - s1, s2, buf.getLength() - s2};
+    }
+
+    private static void assertSameSign(String what, int expected, int actual) {
+        assertEquals(what, Integer.signum(expected), Integer.signum(actual));
+    }
+
+    @Test
+    public void docTagKeyMatchesCompareTo() throws Exception {
+        Random rnd = new Random(19);
+        WritableComparator raw = WritableComparator.get(DocTagKey.class);
+        assertTrue(raw instanceof DocTagKey.Comparator);
+        DataOutputBuffer buf = new DataOutputBuffer();
+        for (int i = 0; i < PAIRS; i++) {
+            DocTagKey a = randomDocTagKey(rnd);
+            DocTagKey b = rnd.nextInt(8) == 0 ? copy(a, rnd) : randomDocTagKey(rnd);
+            int[] at = serialize(buf, a, b);
+            byte[] bytes = buf.getData();
+            assertSameSign(a + " vs " + b, a.compareTo(b), raw.compare(bytes, at[0], at[1], bytes, at[2], at[3]));
+        }
+    }
+
+    @Test
+    public void groupingIgnoresTheTag() throws Exception {
+        Random rnd = new Random(5);
+        Job2_TF.DocGroupingComparator grouping = new Job2_TF.DocGroupingComparator();
+        DataOutputBuffer buf = new DataOutputBuffer();
+        for (int i = 0; i < PAIRS; i++) {
+            DocTagKey a = randomDocTagKey(rnd);
+            DocTagKey b = rnd.nextInt(4) == 0 ? copy(a, rnd) : randomDocTagKey(rnd);
+            int expected = a.getDocId().compareTo(b.getDocId());
+            if (expected == 0) expected = Integer.compare(a.getSalt(), b.getSalt());
+            int[] at = serialize(buf, a, b);
+            byte[] bytes = buf.getData();
+            assertSameSign(a + " vs " + b, expected, grouping.compare(bytes, at[0], at[1], bytes, at[2], at[3]));
+        }
+    }
+
+    @Test
+    public void termDocWritableMatchesCompareTo() throws Exception {
+        Random rnd = new Random(7);
+        WritableComparator raw = WritableComparator.get(TermDocWritable.class);
+        assertTrue(raw instanceof TermDocWritable.Comparator);
+        DataOutputBuffer buf = new DataOutputBuffer();
+        for (int i = 0; i < PAIRS; i++) {
+            TermDocWritable a = new TermDocWritable(randomString(rnd), randomString(rnd));
+            TermDocWritable b = rnd.nextInt(8) == 0
+                    ? new TermDocWritable(a.getTerm().toString(), rnd.nextBoolean() ? a.getDocId().toString() : randomString(rnd))
+                    : new TermDocWritable(randomString(rnd), randomString(rnd));
+            int[] at = serialize(buf, a, b);
+            byte[] bytes = buf.getData();
+            assertSameSign(a + " vs " + b, a.compareTo(b), raw.compare(bytes, at[0], at[1], bytes, at[2], at[3]));
+        }
+    }
+
+    // Same docId, and sometimes the same salt, so the later fields decide
+    private static DocTagKey copy(DocTagKey a, Random rnd) {
+        DocTagKey k = new DocTagKey();
+        k.set(a.getDocId(), rnd.nextBoolean() ? a.getSalt() : randomSalt(rnd), rnd.nextBoolean() ? DocTagKey.TOTAL : DocTagKey.TERM);
+        return k;
+    }
+}
@@ -0,0 +1,166 @@
+package com.stratosdns.a1bd;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/** Tokenizer against the original {@code toLowerCase().split("[^a-z0-9]+")} tokenizer plus stopword filtering. */
+public class TokenizerTest {
+
+    // The implementation Tokenizer replaced
+    private static List<String> reference(String line, Collection<String> stopwords) {
+        Set<String> stop = new HashSet<>(stopwords);
+        List<String> out = new ArrayList<>();
+        for (String t : line.toLowerCase(Locale.ROOT).split("[^a-z0-9]+")) {
+            if (!t.isEmpty() && !stop.contains(t)) out.add(t);
+        }
+        return out;
+    }
+
+    private static List<String> scan(Tokenizer tokenizer, String line) throws Exception {
+        Text text = new Text(line);
+        List<String> out = new ArrayList<>();
+        tokenizer.tokenize(text, (buf, s, l) -> out.add(new String(buf, s, l, StandardCharsets.US_ASCII)));
+        return out;
+    }
+
+    private static void check(String line) throws Exception {
+        assertEquals(line, reference(line, Tokenizer.DEFAULT_STOPWORDS), scan(new Tokenizer(), line));
+        assertEquals(line, reference(line, Tokenizer.DEFAULT_STOPWORDS), Tokenizer.tokenize(line));
+    }
+
+    @Test
+    public void asciiText() throws Exception {
+        check("The Quick brown FOX, jumps over the lazy dog -- twice_in 2024!");
+        check("I'd rather BE in the 21st-century than 1999... isn't it?");
+        check("a an the and or but if then else");
+        check("trailing token");
+        check("123abc ABC123 a1B2c3");
+    }
+
+    @Test
+    public void emptyAndWhitespaceLines() throws Exception {
+        check("");
+        check(" ");
+        check("\t \t  ");
+        check(",,,;;;---");
+        assertEquals(0, scan(new Tokenizer(), "   \t").size());
+    }
+
+    @Test
+    public void nonAsciiInput() throws Exception {
+        check("naïve café résumé Ärger straße");
+        check("日本語のテキスト mixed with english words");
+        check("emoji 😀 between 🚀 words");
+        check("Ωmega σigma ДРУГОЙ текст");
+        check(" non breaking​spaces");
+    }
+
+    @Test
+    public void codePointsThatLowercaseToAscii() throws Exception {
+        // U+0130 lowercases to "i" + U+0307 (a separator); U+212A KELVIN SIGN lowercases to "k"
+        check("İstanbul");
+        check("İİİ");
+        check("aİb");
+        check("Kelvin 300K");
+        check("KKİK");
+        assertEquals(Arrays.asList("i", "stanbul"), Tokenizer.tokenize("İstanbul"));
+        assertEquals(Arrays.asList("kelvin", "300k"), Tokenizer.tokenize("Kelvin 300K"));
+    }
+
+    @Test
+    public void everyBmpCodePointBetweenLetters() throws Exception {
+        Tokenizer tokenizer = new Tokenizer();
+        for (int c = 0; c <= 0xFFFF; c++) {
+            if (Character.isSurrogate((char) c)) continue;
+            String line = "x" + (char) c + "y Z" + (char) c;
+            assertEquals("U+" + Integer.toHexString(c), reference(line, Tokenizer.DEFAULT_STOPWORDS), scan(tokenizer, line));
+        }
+    }
+
+    @Test
+    public void randomLines() throws Exception {
+        Random rnd = new Random(42);
+        String alphabet = "abcXYZ019 \t.,'-_İKéß中😀theandAN";
+        Tokenizer tokenizer = new Tokenizer();
+        for (int n = 0; n < 20000; n++) {
+            StringBuilder sb = new StringBuilder();
+            int len = rnd.nextInt(40);
+            for (int i = 0; i < len; i++) {
+                int at = rnd.nextInt(alphabet.length());
+                char ch = alphabet.charAt(at);
+                sb.append(ch);
+                if (Character.isHighSurrogate(ch)) sb.append(alphabet.charAt(at + 1));
+                else if (Character.isLowSurrogate(ch)) sb.setLength(sb.length() - 1);
+            }
+            String line = sb.toString();
+            assertEquals(line, reference(line, Tokenizer.DEFAULT_STOPWORDS), scan(tokenizer, line));
+        }
+    }
+
+    @Test
+    public void configuredStopwords() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.set(Tokenizer.STOPWORDS_KEY, " Foo, bar ,,baz");
+        Tokenizer tokenizer = Tokenizer.fromConf(conf);
+        String line = "Foo and the BAR went to baz-land with foobar";
+        assertEquals(reference(line, Arrays.asList("foo", "bar", "baz")), scan(tokenizer, line));
+        assertEquals(Arrays.asList("and", "the", "went", "to", "land", "with", "foobar"), scan(tokenizer, line));
+        assertEquals(6, tokenizer.getStopwordsDropped()); // foo, bar, baz per scan
+    }
+
+    @Test
+    public void stopwordsIgnoreDefaultLocale() throws Exception {
+        Locale saved = Locale.getDefault();
+        Configuration conf = new Configuration(false);
+        conf.set(Tokenizer.STOPWORDS_KEY, "IS,TIME");
+        String fingerprint = Tokenizer.fingerprint(conf);
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertEquals(Arrays.asList("this", "it"), scan(Tokenizer.fromConf(conf), "This is it TIME"));
+            assertEquals(fingerprint, Tokenizer.fingerprint(conf));
+        } finally {
+            Locale.setDefault(saved);
+        }
+    }
+
+    @Test
+    public void stopwordsDisabled() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.setBoolean(Tokenizer.STOPWORDS_ENABLED_KEY, false);
+        String line = "The cat and the hat";
+        assertEquals(reference(line, new ArrayList<>()), scan(Tokenizer.fromConf(conf), line));
+        assertEquals(Arrays.asList("the", "cat", "and", "the", "hat"), scan(Tokenizer.fromConf(conf), line));
+    }
+
+    @Test
+    public void longTokensGrowTheBuffer() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) sb.append((char) ('A' + i % 26));
+        check(sb + " " + sb.toString().toLowerCase(Locale.ROOT));
+    }
+
+    @Test
+    public void fingerprintTracksStopwords() {
+        Configuration a = new Configuration(false);
+        Configuration b = new Configuration(false);
+        b.set(Tokenizer.STOPWORDS_KEY, "foo");
+        Configuration c = new Configuration(false);
+        c.set(Tokenizer.STOPWORDS_KEY, String.join(",", Tokenizer.DEFAULT_STOPWORDS));
+        assertEquals(Tokenizer.fingerprint(a), Tokenizer.fingerprint(c));
+        assertNotEquals(Tokenizer.fingerprint(a), Tokenizer.fingerprint(b));
+    }
+}